@@ -0,0 +1,112 @@
+package org.bala.neela.benchmarks;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.bala.neela.fs.P2PServices;
+import org.bala.neela.service.BootStrapper;
+import org.bala.neela.service.Browser;
+import org.bala.neela.service.ChunkStore;
+import org.bala.neela.service.Dht;
+import org.bala.neela.service.Downloader;
+import org.bala.neela.service.FsyncPolicy;
+import org.bala.neela.service.Gossiper;
+import org.bala.neela.service.ManifestStore;
+import org.bala.neela.service.MappedRegions;
+import org.bala.neela.service.Membership;
+import org.bala.neela.service.Metrics;
+import org.bala.neela.service.MetricsInterceptor;
+import org.bala.neela.service.PeerCallPolicy;
+import org.bala.neela.service.PeerChannelPool;
+import org.bala.neela.service.PeerHealth;
+import org.bala.neela.service.ResultCache;
+import org.bala.neela.service.SearchEngine;
+import org.bala.neela.service.SharedIndex;
+import org.bala.neela.service.TransferCompression;
+import org.bala.neela.service.Tracing;
+import org.bala.neela.service.UploadReceiver;
+import org.bala.neela.service.Uploader;
+
+import com.google.common.io.ByteStreams;
+
+import io.grpc.ClientInterceptor;
+import io.grpc.Server;
+import io.grpc.ServerInterceptors;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+
+/*
+ * A peer wired the way ServiceConfig wires one, except that it reaches other peers in-process by host name
+ * and caches no search results, so that every benchmark invocation does the work it measures. None of the
+ * background tasks (gossip, DHT publishing, share scanning) are started.
+ */
+final class LocalPeer {
+  static final int PORT = 51162;
+
+  final String selfAddress;
+  final MetricsInterceptor metricsInterceptor;
+  final Tracing tracing;
+  final PeerChannelPool peerChannelPool;
+  final Membership membership;
+  final BootStrapper bootStrapper;
+  final SearchEngine searchEngine;
+  final Uploader uploader;
+  final P2PServices services;
+
+  LocalPeer(final String selfAddress, final Path sharedLocation) {
+    final String share = sharedLocation.toString();
+    final PeerHealth peerHealth = new PeerHealth(3, 30000);
+    final TransferCompression transferCompression = new TransferCompression(6, 1, 0.9);
+    final ManifestStore manifestStore = new ManifestStore(share, 4 * 1024 * 1024);
+    final ChunkStore chunkStore = new ChunkStore(share, true);
+    final SharedIndex sharedIndex = new SharedIndex(share, manifestStore, chunkStore, 10000, 0, Collections.emptyList());
+    final ResultCache resultCache = new ResultCache(10000, 0, 0, 0);
+    final Metrics metrics = new Metrics();
+    this.selfAddress = selfAddress;
+    this.metricsInterceptor = new MetricsInterceptor(metrics);
+    this.tracing = new Tracing();
+    this.peerChannelPool = inProcessPool(peerHealth, Arrays.asList(metricsInterceptor, tracing));
+    this.membership = new Membership(selfAddress, 3, 5000, 60000);
+    this.bootStrapper = new BootStrapper(selfAddress, sharedLocation.resolve("PeerRegister.txt").toString(), peerChannelPool, membership);
+    final Dht dht = new Dht(membership, sharedIndex, peerChannelPool, peerHealth, 20, 3, 8, 60 * 60 * 1000, 30000, 30 * 60 * 1000);
+    this.searchEngine = new SearchEngine(sharedIndex, bootStrapper, peerChannelPool, peerHealth, dht, resultCache, metrics, 16, Integer.MAX_VALUE, 4);
+    final Downloader downloader = new Downloader(share, 1024 * 1024, 4, 32, new MappedRegions(8 * 1024 * 1024, 64 * 1024 * 1024, 16, true),
+                                                 searchEngine, peerChannelPool, peerHealth, transferCompression, chunkStore);
+    this.uploader = new Uploader(share, 1024 * 1024, peerChannelPool, transferCompression, chunkStore);
+    this.services = new P2PServices(bootStrapper,
+                                    new Browser(sharedIndex, peerChannelPool, resultCache, 1000, 256),
+                                    searchEngine,
+                                    downloader,
+                                    new UploadReceiver(share, 256 * 1024, FsyncPolicy.ON_COMPLETE, 4, chunkStore),
+                                    sharedIndex,
+                                    manifestStore,
+                                    new Gossiper(membership, peerChannelPool, peerHealth, 1000, 3, 8),
+                                    dht);
+  }
+
+  Server serve() throws IOException {
+    return InProcessServerBuilder.forName(selfAddress).addService(ServerInterceptors.intercept(services, metricsInterceptor, tracing)).build().start();
+  }
+
+  // The services report progress to the console for the user; a benchmark would only measure the terminal
+  static void silenceConsole() {
+    System.setOut(new PrintStream(ByteStreams.nullOutputStream()));
+  }
+
+  static void delete(final Path directory) throws IOException {
+    try (final Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  static PeerChannelPool inProcessPool(final PeerHealth peerHealth, final List<ClientInterceptor> interceptors) {
+    return new PeerChannelPool(PORT, 64, 300000, 3, new PeerCallPolicy(3.0, 500), peerHealth, interceptors, host -> InProcessChannelBuilder.forName(host).build());
+  }
+}
@@ -0,0 +1,71 @@
+package org.bala.neela.benchmarks;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.bala.neela.grpc.PeerInfo;
+import org.bala.neela.grpc.PeerRegister;
+import org.bala.neela.grpc.PeerState;
+import org.bala.neela.service.BootStrapper;
+import org.bala.neela.service.Membership;
+import org.bala.neela.service.PeerChannelPool;
+import org.bala.neela.service.PeerHealth;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Cost of BootStrapper.mergePeerRegister against the size of the register merged: into a fresh membership,
+ * as when a peer bootstraps, and into one that already knows every peer, as on most later exchanges.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MembershipBenchmark {
+  private static final String SELF = "10.0.0.1";
+
+  @Param({"16", "256", "4096"})
+  public int registerSize;
+
+  private PeerChannelPool peerChannelPool;
+  private PeerRegister register;
+  private BootStrapper known;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    peerChannelPool = LocalPeer.inProcessPool(new PeerHealth(3, 30000), Collections.emptyList());
+    final PeerRegister.Builder builder = PeerRegister.newBuilder();
+    for (int i = 0; i < registerSize; i++) {
+      builder.addKnownPeers(PeerInfo.newBuilder().setHostAddress("10.1." + (i / 256) + "." + (i % 256)).setIncarnation(1).setState(PeerState.ALIVE));
+    }
+    register = builder.build();
+    known = bootStrapper();
+    known.mergePeerRegister(register);
+  }
+
+  @Benchmark
+  public PeerRegister mergeIntoEmpty() {
+    return bootStrapper().mergePeerRegister(register);
+  }
+
+  @Benchmark
+  public PeerRegister mergeAlreadyKnown() {
+    return known.mergePeerRegister(register);
+  }
+
+  private BootStrapper bootStrapper() {
+    return new BootStrapper(SELF, "PeerRegister.txt", peerChannelPool, new Membership(SELF, 3, 5000, 60000));
+  }
+}
@@ -0,0 +1,100 @@
+package org.bala.neela.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bala.neela.grpc.NeelaGrpc;
+import org.bala.neela.grpc.PeerInfo;
+import org.bala.neela.grpc.PeerRegister;
+import org.bala.neela.grpc.PeerState;
+import org.bala.neela.grpc.SearchRequest;
+import org.bala.neela.grpc.SearchResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+/*
+ * Latency of SearchEngine asking every known peer for a file, the last of them holding it. The peers are
+ * in-process fakes that answer SEARCH straight away, so what is measured is the fan-out itself: hedged
+ * calls, the in-flight window, callbacks and ranking. Nothing is cached and the DHT has no one to ask.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+  private static final String FILENAME = "movie.mp4";
+
+  @Param({"1", "8", "64", "256"})
+  public int peers;
+
+  private final List<Server> servers = new ArrayList<>();
+  private Path share;
+  private LocalPeer self;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    LocalPeer.silenceConsole();
+    share = Files.createTempDirectory("neela-search");
+    self = new LocalPeer("self.search.benchmark", share);
+    final PeerRegister.Builder register = PeerRegister.newBuilder();
+    for (int i = 0; i < peers; i++) {
+      final String host = "peer-" + i + ".search.benchmark";
+      servers.add(InProcessServerBuilder.forName(host).addService(new FakePeer(host, i == peers - 1)).build().start());
+      register.addKnownPeers(PeerInfo.newBuilder().setHostAddress(host).setIncarnation(1).setState(PeerState.ALIVE));
+    }
+    self.bootStrapper.mergePeerRegister(register.build());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    servers.forEach(Server::shutdownNow);
+    LocalPeer.delete(share);
+  }
+
+  @Benchmark
+  public List<SearchResponse> searchAll() throws Exception {
+    return self.searchEngine.searchAll(FILENAME).get(1, TimeUnit.MINUTES);
+  }
+
+  private static final class FakePeer extends NeelaGrpc.NeelaImplBase {
+    private final String host;
+    private final boolean holder;
+
+    private FakePeer(final String host, final boolean holder) {
+      this.host = host;
+      this.holder = holder;
+    }
+
+    @Override
+    public void search(final SearchRequest searchRequest, final StreamObserver<SearchResponse> responseObserver) {
+      responseObserver.onNext(SearchResponse.newBuilder()
+                                            .setFilename(searchRequest.getFilename())
+                                            .setFound(holder)
+                                            .setHostAddress(host)
+                                            .setSize(holder ? 1024 * 1024 : 0)
+                                            .build());
+      responseObserver.onCompleted();
+    }
+  }
+}
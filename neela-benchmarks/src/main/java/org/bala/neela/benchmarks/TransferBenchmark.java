@@ -0,0 +1,132 @@
+package org.bala.neela.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.bala.neela.grpc.DownloadRequest;
+import org.bala.neela.grpc.DownloadResponse;
+import org.bala.neela.grpc.NeelaGrpc;
+import org.bala.neela.service.TransferCompression;
+import org.bala.neela.ui.UserCommand;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+
+/*
+ * Whole file transfers between two in-process peers: DOWNLOAD as served by Downloader.streamResponse, and
+ * UPLOAD from Uploader into UploadRequestObserver, committed into the share. Contents are random, so the
+ * compression sample gives up on the first chunk. Besides ops/s, the bytes counter reports bytes/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransferBenchmark {
+  private static final String SERVER = "server.transfer.benchmark";
+  private static final String CLIENT = "client.transfer.benchmark";
+  private static final String DOWNLOADED = "download.bin";
+  private static final String UPLOADED = "upload.bin";
+
+  @Param({"65536", "4194304", "67108864"})
+  public int fileSize;
+
+  private Path serverShare;
+  private Path clientShare;
+  private Server server;
+  private ManagedChannel channel;
+  private LocalPeer client;
+  private DownloadRequest downloadRequest;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    LocalPeer.silenceConsole();
+    serverShare = Files.createTempDirectory("neela-server");
+    clientShare = Files.createTempDirectory("neela-client");
+    final Random random = new Random(fileSize);
+    Files.write(serverShare.resolve(DOWNLOADED), randomBytes(random));
+    Files.write(clientShare.resolve(UPLOADED), randomBytes(random));
+    server = new LocalPeer(SERVER, serverShare).serve();
+    client = new LocalPeer(CLIENT, clientShare);
+    channel = InProcessChannelBuilder.forName(SERVER).build();
+    downloadRequest = DownloadRequest.newBuilder().setFilename(DOWNLOADED).addAllAcceptedCompression(TransferCompression.ACCEPTED).build();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    channel.shutdownNow();
+    server.shutdownNow();
+    LocalPeer.delete(serverShare);
+    LocalPeer.delete(clientShare);
+  }
+
+  @Benchmark
+  public long download(final Bytes bytes) {
+    final Iterator<DownloadResponse> responses = NeelaGrpc.newBlockingStub(channel).download(downloadRequest);
+    long received = 0;
+    while (responses.hasNext()) {
+      received += responses.next().getLength();
+    }
+    bytes.bytes += received;
+    return received;
+  }
+
+  @Benchmark
+  public String upload(final Bytes bytes, final Landed landed) throws Exception {
+    final CompletableFuture<String> status = new CompletableFuture<>();
+    client.uploader.upload(new UserCommand("upload " + UPLOADED + ":" + SERVER), status::complete);
+    final String done = status.get(1, TimeUnit.MINUTES);
+    if (done.startsWith("Error")) {
+      throw new IllegalStateException(done);
+    }
+    bytes.bytes += fileSize;
+    return done;
+  }
+
+  private byte[] randomBytes(final Random random) {
+    final byte[] content = new byte[fileSize];
+    random.nextBytes(content);
+    return content;
+  }
+
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Bytes {
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      bytes = 0;
+    }
+  }
+
+  // Each upload must land as a new file rather than next to the previous one as a timestamped copy
+  @State(Scope.Thread)
+  public static class Landed {
+    @TearDown(Level.Invocation)
+    public void remove(final TransferBenchmark benchmark) throws IOException {
+      Files.deleteIfExists(benchmark.serverShare.resolve(UPLOADED));
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package org.bala.neela.fs;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
 import static org.bala.neela.service.BootStrapper.isValidPort;
 
 import java.io.IOException;
@@ -9,8 +10,12 @@ import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.bala.neela.service.NettyTransport;
+
 import io.grpc.BindableService;
 import io.grpc.Server;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
 import io.grpc.netty.NettyServerBuilder;
 
 public class P2PServer {
@@ -19,18 +24,22 @@ public class P2PServer {
   private final int port;
   private Server server; 
   private final List<BindableService> bindableServices;
+  private final List<ServerInterceptor> interceptors;
+  private final NettyTransport transport;
   
-  public P2PServer(final int port, final List<BindableService> bindableServices) {
+  public P2PServer(final int port, final List<BindableService> bindableServices, final List<ServerInterceptor> interceptors, final NettyTransport transport) {
     checkArgument(isValidPort(port), "Invalid port; out of valid range");
     checkArgument(bindableServices != null && !bindableServices.isEmpty(), "No services to bind to!");
 
     this.port = port;
     this.bindableServices = bindableServices;
+    this.interceptors = requireNonNull(interceptors);
+    this.transport = requireNonNull(transport);
   }
   
   public void start() throws IOException {
-    final NettyServerBuilder nettyServerBuilder = NettyServerBuilder.forPort(port);
-    bindableServices.forEach(nettyServerBuilder::addService);
+    final NettyServerBuilder nettyServerBuilder = transport.serverBuilder(port);
+    bindableServices.forEach(service -> nettyServerBuilder.addService(ServerInterceptors.intercept(service, interceptors)));
     server = nettyServerBuilder.build();
     server.start();
     LOGGER.info("Listening for requests from remote peers at port {}...", port);
@@ -1,25 +1,40 @@
 package org.bala.neela.fs;
 
-import static com.google.common.base.Preconditions.checkArgument;
 import static java.util.Objects.requireNonNull;
-import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 import org.bala.neela.service.BootStrapper;
 import org.bala.neela.service.Browser;
+import org.bala.neela.service.Dht;
 import org.bala.neela.service.Downloader;
+import org.bala.neela.service.Gossiper;
+import org.bala.neela.service.ManifestStore;
 import org.bala.neela.service.SearchEngine;
-import org.bala.neela.service.UploadRequestObserver;
+import org.bala.neela.service.SharedIndex;
+import org.bala.neela.service.UploadReceiver;
 
+import org.bala.neela.grpc.BrowseRequest;
 import org.bala.neela.grpc.BrowserOutput;
+import org.bala.neela.grpc.ChunkList;
+import org.bala.neela.grpc.DhtRequest;
+import org.bala.neela.grpc.DhtResponse;
 import org.bala.neela.grpc.DownloadRequest;
 import org.bala.neela.grpc.DownloadResponse;
+import org.bala.neela.grpc.FileManifest;
+import org.bala.neela.grpc.FindRequest;
+import org.bala.neela.grpc.GossipMessage;
+import org.bala.neela.grpc.ManifestRequest;
 import org.bala.neela.grpc.NeelaGrpc;
 import org.bala.neela.grpc.PeerRegister;
 import org.bala.neela.grpc.SearchRequest;
 import org.bala.neela.grpc.SearchResponse;
+import org.bala.neela.grpc.StoreRequest;
 import org.bala.neela.grpc.UploadRequest;
 import org.bala.neela.grpc.UploadResponse;
 
+import java.io.IOException;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
 public class P2PServices extends NeelaGrpc.NeelaImplBase {
@@ -27,19 +42,30 @@ public class P2PServices extends NeelaGrpc.NeelaImplBase {
   private final Browser browser;
   private final SearchEngine searchEngine;
   private final Downloader downloader;
-  private final String sharedLocation;
+  private final UploadReceiver uploadReceiver;
+  private final SharedIndex sharedIndex;
+  private final ManifestStore manifestStore;
+  private final Gossiper gossiper;
+  private final Dht dht;
   
   public P2PServices(final BootStrapper bootStrapper,
                      final Browser browser,
                      final SearchEngine searchEngine,
                      final Downloader downloader,
-                     final String sharedLocation) {
+                     final UploadReceiver uploadReceiver,
+                     final SharedIndex sharedIndex,
+                     final ManifestStore manifestStore,
+                     final Gossiper gossiper,
+                     final Dht dht) {
     this.bootStrapper = requireNonNull(bootStrapper);
     this.browser = requireNonNull(browser);
     this.searchEngine = requireNonNull(searchEngine);
     this.downloader = requireNonNull(downloader);
-    checkArgument(isNotBlank(sharedLocation), "Invalid sharedLocation");
-    this.sharedLocation = sharedLocation.trim();
+    this.uploadReceiver = requireNonNull(uploadReceiver);
+    this.sharedIndex = requireNonNull(sharedIndex);
+    this.manifestStore = requireNonNull(manifestStore);
+    this.gossiper = requireNonNull(gossiper);
+    this.dht = requireNonNull(dht);
   }
   
   @Override
@@ -49,10 +75,8 @@ public class P2PServices extends NeelaGrpc.NeelaImplBase {
   }
   
   @Override
-  public void browse(PeerRegister peerRegister, StreamObserver<BrowserOutput> responseObserver) {
-    bootStrapper.mergePeerRegister(peerRegister);
-    responseObserver.onNext(browser.browse());
-    responseObserver.onCompleted();
+  public void browse(BrowseRequest browseRequest, StreamObserver<BrowserOutput> responseObserver) {
+    browser.browse(browseRequest, responseObserver);
   }
 
   @Override
@@ -63,12 +87,88 @@ public class P2PServices extends NeelaGrpc.NeelaImplBase {
 
   @Override
   public void download(DownloadRequest downloadRequest, StreamObserver<DownloadResponse> responseObserver) {
-    downloader.streamResponse(downloadRequest, responseObserver);
-    responseObserver.onCompleted();
+    if (!isShared(downloadRequest.getFilename(), responseObserver)) {
+      return;
+    }
+    // Returns at once; the response is completed as the file is read, at the pace the client takes it. The
+    // server hands every call a ServerCallStreamObserver, which is what lets the pace follow isReady
+    downloader.streamResponse(downloadRequest, (ServerCallStreamObserver<DownloadResponse>) responseObserver);
   }
   
   @Override
   public StreamObserver<UploadRequest> upload(StreamObserver<UploadResponse> responseObserver) {
-    return new UploadRequestObserver(responseObserver, sharedLocation);
+    return uploadReceiver.receive(responseObserver);
+  }
+
+  @Override
+  public void manifest(ManifestRequest manifestRequest, StreamObserver<FileManifest> responseObserver) {
+    if (!isShared(manifestRequest.getFilename(), responseObserver)) {
+      return;
+    }
+    try {
+      responseObserver.onNext(manifestStore.getManifest(manifestRequest.getFilename()));
+      responseObserver.onCompleted();
+    } catch (IOException e) {
+      responseObserver.onError(Status.NOT_FOUND.withDescription("Unable to read " + manifestRequest.getFilename()).withCause(e).asRuntimeException());
+    }
+  }
+
+  @Override
+  public void chunks(ManifestRequest manifestRequest, StreamObserver<ChunkList> responseObserver) {
+    if (!isShared(manifestRequest.getFilename(), responseObserver)) {
+      return;
+    }
+    // A file not chunked yet is read on the shared index's hasher thread, which answers when it is done
+    sharedIndex.chunksOf(manifestRequest.getFilename()).whenComplete((chunkList, t) -> {
+      if (t == null) {
+        responseObserver.onNext(chunkList);
+        responseObserver.onCompleted();
+      } else {
+        responseObserver.onError(Status.NOT_FOUND.withDescription("Unable to read " + manifestRequest.getFilename()).withCause(t).asRuntimeException());
+      }
+    });
+  }
+
+  // The stores resolve a name within the share as given, so only names the shared index publishes reach them
+  private boolean isShared(final String filename, final StreamObserver<?> responseObserver) {
+    if (sharedIndex.publishes(filename)) {
+      return true;
+    }
+    responseObserver.onError(Status.NOT_FOUND.withDescription(filename + " is not shared").asRuntimeException());
+    return false;
+  }
+
+  @Override
+  public void uploadOffset(UploadRequest uploadRequest, StreamObserver<UploadResponse> responseObserver) {
+    responseObserver.onNext(uploadReceiver.resumeOffset(uploadRequest));
+    responseObserver.onCompleted();
+  }
+
+  @Override
+  public void find(FindRequest findRequest, StreamObserver<SearchResponse> responseObserver) {
+    searchEngine.find(findRequest, responseObserver);
+  }
+
+  @Override
+  public void gossip(GossipMessage gossipMessage, StreamObserver<GossipMessage> responseObserver) {
+    gossiper.gossip(gossipMessage, responseObserver);
+  }
+
+  @Override
+  public void findNode(DhtRequest dhtRequest, StreamObserver<DhtResponse> responseObserver) {
+    responseObserver.onNext(dht.findNode(dhtRequest));
+    responseObserver.onCompleted();
+  }
+
+  @Override
+  public void findValue(DhtRequest dhtRequest, StreamObserver<DhtResponse> responseObserver) {
+    responseObserver.onNext(dht.findValue(dhtRequest));
+    responseObserver.onCompleted();
+  }
+
+  @Override
+  public void store(StoreRequest storeRequest, StreamObserver<DhtResponse> responseObserver) {
+    responseObserver.onNext(dht.store(storeRequest));
+    responseObserver.onCompleted();
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,340 @@
+package org.bala.neela.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.protobuf.MessageLite;
+
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Grpc;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+/*
+ * Admits the RPCs this peer serves by priority. CONTROL calls (bootstrap, gossip, search, DHT, manifests)
+ * are cheap and others wait on them, so the last reservedControlCalls of maxConcurrentCalls are theirs alone;
+ * BULK transfers are shed first. A method may also have its own concurrency limit, which for the transfers
+ * keeps them from taking every handler thread. A call over a limit is refused at once with RESOURCE_EXHAUSTED
+ * and a jittered neela-retry-after-ms trailer rather than queued. What BULK calls send is shaped by a token
+ * bucket per peer and one for all egress, a rate of 0 leaving either unlimited. Shaping never blocks: a call
+ * whose buckets are in debt reports itself not ready, and is woken once they are paid.
+ */
+public class AdmissionControl implements ServerInterceptor {
+  private static final Logger LOGGER = LoggerFactory.getLogger(AdmissionControl.class);
+  public static final Metadata.Key<String> RETRY_AFTER_HEADER = Metadata.Key.of("neela-retry-after-ms", Metadata.ASCII_STRING_MARSHALLER);
+  private static final long PEER_IDLE_MINUTES = 10;
+  private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  public enum Priority { CONTROL, BULK }
+
+  private final int maxConcurrentCalls;
+  private final int reservedControlCalls;
+  private final long controlRetryAfterMillis;
+  private final long bulkRetryAfterMillis;
+  private final Semaphore calls;
+  private final Bucket egress;
+  private final LoadingCache<String, Bucket> peerEgress;
+  private final ScheduledExecutorService shaper;
+  private final ConcurrentMap<String, Limit> limits = new ConcurrentHashMap<>();
+
+  public AdmissionControl(final int maxConcurrentCalls,
+                          final int reservedControlCalls,
+                          final long controlRetryAfterMillis,
+                          final long bulkRetryAfterMillis,
+                          final long peerBytesPerSecond,
+                          final long egressBytesPerSecond) {
+    checkArgument(maxConcurrentCalls > 0, "Invalid maxConcurrentCalls");
+    checkArgument(reservedControlCalls >= 0 && reservedControlCalls < maxConcurrentCalls, "Invalid reservedControlCalls");
+    checkArgument(controlRetryAfterMillis > 0 && bulkRetryAfterMillis > 0, "Invalid retry hints");
+    checkArgument(peerBytesPerSecond >= 0 && egressBytesPerSecond >= 0, "Invalid egress rates");
+
+    this.maxConcurrentCalls = maxConcurrentCalls;
+    this.reservedControlCalls = reservedControlCalls;
+    this.controlRetryAfterMillis = controlRetryAfterMillis;
+    this.bulkRetryAfterMillis = bulkRetryAfterMillis;
+    this.calls = new Semaphore(maxConcurrentCalls);
+    this.egress = (egressBytesPerSecond == 0) ? null : new Bucket(egressBytesPerSecond);
+    this.peerEgress = (peerBytesPerSecond == 0) ? null : CacheBuilder.newBuilder()
+                                                                     .expireAfterAccess(PEER_IDLE_MINUTES, TimeUnit.MINUTES)
+                                                                     .build(CacheLoader.from(peer -> new Bucket(peerBytesPerSecond)));
+    this.shaper = (egress == null && peerEgress == null) ? null : Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread thread = new Thread(r, "egress-shaper");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    if (shaper != null) {
+      shaper.shutdownNow();
+    }
+  }
+
+  // Methods not given a limit are CONTROL, bounded only by maxConcurrentCalls
+  public AdmissionControl limit(final MethodDescriptor<?, ?> method, final Priority priority, final int maxConcurrentCalls) {
+    checkArgument(maxConcurrentCalls > 0 && maxConcurrentCalls <= this.maxConcurrentCalls, "Invalid maxConcurrentCalls for " + method.getFullMethodName());
+    limits.put(method.getFullMethodName(), new Limit(priority, maxConcurrentCalls));
+    return this;
+  }
+
+  // The hint a peer sent with RESOURCE_EXHAUSTED, if the failure is one
+  public static Optional<Long> retryAfterMillis(final Throwable t) {
+    if (Status.fromThrowable(t).getCode() != Status.Code.RESOURCE_EXHAUSTED) {
+      return Optional.empty();
+    }
+    return Optional.ofNullable(Status.trailersFromThrowable(t))
+                   .map(trailers -> trailers.get(RETRY_AFTER_HEADER))
+                   .filter(value -> value.matches("[0-9]{1,18}"))
+                   .map(Long::valueOf);
+  }
+
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(final ServerCall<ReqT, RespT> call, final Metadata headers, final ServerCallHandler<ReqT, RespT> next) {
+    final String method = call.getMethodDescriptor().getFullMethodName();
+    final Limit limit = limits.get(method);
+    final Priority priority = (limit == null) ? Priority.CONTROL : limit.priority;
+    final String peer = peerOf(call);
+    if (!admit(priority, limit)) {
+      final long retryAfterMillis = retryAfterMillis(priority);
+      LOGGER.info("Refusing {} from {}; too busy, retry after {} ms", method, peer, retryAfterMillis);
+      final Metadata trailers = new Metadata();
+      trailers.put(RETRY_AFTER_HEADER, Long.toString(retryAfterMillis));
+      call.close(Status.RESOURCE_EXHAUSTED.withDescription("Peer is busy serving " + priority + " calls; retry after " + retryAfterMillis + " ms"), trailers);
+      return new ServerCall.Listener<ReqT>() {};
+    }
+    final AtomicBoolean released = new AtomicBoolean();
+    final Runnable release = () -> {
+      if (released.compareAndSet(false, true)) {
+        calls.release();
+        if (limit != null) {
+          limit.permits.release();
+        }
+      }
+    };
+    final ShapedCall<ReqT, RespT> shaped = (priority == Priority.BULK && shaper != null) ? new ShapedCall<>(call, peer) : null;
+    try {
+      final ServerCall.Listener<ReqT> started = next.startCall((shaped == null) ? call : shaped, headers);
+      final ServerCall.Listener<ReqT> listener = (shaped == null) ? started : shaped.started(started);
+      return new SimpleForwardingServerCallListener<ReqT>(listener) {
+        @Override
+        public void onComplete() {
+          release.run();
+          super.onComplete();
+        }
+
+        @Override
+        public void onCancel() {
+          release.run();
+          super.onCancel();
+        }
+      };
+    } catch (RuntimeException e) {
+      release.run();
+      throw e;
+    }
+  }
+
+  /*
+   * Both permits are taken without waiting. The reserve check and the acquire are not one step, so a burst
+   * of BULK calls can dip a little into the CONTROL reserve; it only has to keep most of it free.
+   */
+  private boolean admit(final Priority priority, final Limit limit) {
+    if (priority == Priority.BULK && calls.availablePermits() <= reservedControlCalls) {
+      return false;
+    }
+    if (!calls.tryAcquire()) {
+      return false;
+    }
+    if (limit != null && !limit.permits.tryAcquire()) {
+      calls.release();
+      return false;
+    }
+    return true;
+  }
+
+  // Jittered up to half again, so that peers turned away together do not all come back together
+  private long retryAfterMillis(final Priority priority) {
+    final long base = (priority == Priority.BULK) ? bulkRetryAfterMillis : controlRetryAfterMillis;
+    return base + ThreadLocalRandom.current().nextLong(base / 2 + 1);
+  }
+
+  private static String peerOf(final ServerCall<?, ?> call) {
+    final SocketAddress address = call.getAttributes().get(Grpc.TRANSPORT_ATTR_REMOTE_ADDR);
+    if (address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress() != null) {
+      return ((InetSocketAddress) address).getAddress().getHostAddress();
+    }
+    return String.valueOf(address);
+  }
+
+  /*
+   * A message is sent whole and its bytes are owed to the buckets. While either is in debt the call is not
+   * ready, so a sender honouring isReady, as DownloadStreamer does, reads nothing more. Once the debt is paid
+   * the shaper queues onReady behind the listener's other callbacks rather than running it beside them: every
+   * callback of a shaped call is delivered in order, one at a time, by whichever thread finds none running.
+   */
+  private final class ShapedCall<ReqT, RespT> extends SimpleForwardingServerCall<ReqT, RespT> {
+    private final List<Bucket> buckets = new ArrayList<>();
+    private final Queue<Runnable> callbacks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean delivering = new AtomicBoolean();
+    private ServerCall.Listener<ReqT> listener;
+    private boolean wakeUpScheduled = false;
+    private boolean wakeUpMissed = false;
+
+    private ShapedCall(final ServerCall<ReqT, RespT> call, final String peer) {
+      super(call);
+      if (peerEgress != null) {
+        buckets.add(peerEgress.getUnchecked(peer));
+      }
+      if (egress != null) {
+        buckets.add(egress);
+      }
+    }
+
+    @Override
+    public void sendMessage(final RespT message) {
+      final int bytes = (message instanceof MessageLite) ? Math.max(1, ((MessageLite) message).getSerializedSize()) : 1;
+      buckets.forEach(bucket -> bucket.charge(bytes));
+      super.sendMessage(message);
+    }
+
+    @Override
+    public boolean isReady() {
+      final long owedNanos = buckets.stream().mapToLong(Bucket::owedNanos).max().orElse(0);
+      if (owedNanos == 0) {
+        return super.isReady();
+      }
+      synchronized (this) {
+        if (!wakeUpScheduled) {
+          wakeUpScheduled = true;
+          shaper.schedule(this::wakeUp, owedNanos, TimeUnit.NANOSECONDS);
+        }
+      }
+      return false;
+    }
+
+    // The handler may find the call not ready before it has returned its listener; that wake-up is run late
+    private ServerCall.Listener<ReqT> started(final ServerCall.Listener<ReqT> listener) {
+      final boolean missed;
+      synchronized (this) {
+        this.listener = listener;
+        missed = wakeUpMissed;
+      }
+      if (missed) {
+        deliver(listener::onReady);
+      }
+      return new ServerCall.Listener<ReqT>() {
+        @Override
+        public void onMessage(final ReqT message) {
+          deliver(() -> listener.onMessage(message));
+        }
+
+        @Override
+        public void onHalfClose() {
+          deliver(listener::onHalfClose);
+        }
+
+        @Override
+        public void onCancel() {
+          deliver(listener::onCancel);
+        }
+
+        @Override
+        public void onComplete() {
+          deliver(listener::onComplete);
+        }
+
+        @Override
+        public void onReady() {
+          deliver(listener::onReady);
+        }
+      };
+    }
+
+    private void wakeUp() {
+      final ServerCall.Listener<ReqT> target;
+      synchronized (this) {
+        wakeUpScheduled = false;
+        target = listener;
+        wakeUpMissed = (target == null);
+      }
+      if (target != null) {
+        deliver(target::onReady);
+      }
+    }
+
+    // A callback queued while another runs is left to the thread running it, which drains the queue before leaving
+    private void deliver(final Runnable callback) {
+      callbacks.add(callback);
+      while (!callbacks.isEmpty() && delivering.compareAndSet(false, true)) {
+        try {
+          for (Runnable next = callbacks.poll(); next != null; next = callbacks.poll()) {
+            next.run();
+          }
+        } finally {
+          delivering.set(false);
+        }
+      }
+    }
+  }
+
+  // Lets each message through and owes its bytes; an idle bucket banks up to a second of them
+  private static final class Bucket {
+    private final double nanosPerByte;
+    private long paidUpTo = System.nanoTime();
+
+    private Bucket(final long bytesPerSecond) {
+      this.nanosPerByte = (double) TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+    }
+
+    private synchronized void charge(final int bytes) {
+      final long bankedFrom = System.nanoTime() - BURST_NANOS;
+      if (paidUpTo - bankedFrom < 0) {
+        paidUpTo = bankedFrom;
+      }
+      paidUpTo += (long) (bytes * nanosPerByte);
+    }
+
+    private synchronized long owedNanos() {
+      return Math.max(0, paidUpTo - System.nanoTime());
+    }
+  }
+
+  private static final class Limit {
+    private final Priority priority;
+    private final Semaphore permits;
+
+    private Limit(final Priority priority, final int maxConcurrentCalls) {
+      this.priority = priority;
+      this.permits = new Semaphore(maxConcurrentCalls);
+    }
+  }
+}
@@ -1,20 +1,19 @@
 package org.bala.neela.service;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
 import static java.util.stream.Collectors.toList;
 import static org.apache.commons.lang3.StringUtils.isNoneBlank;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 
@@ -28,42 +27,40 @@ import org.bala.neela.grpc.NeelaGrpc;
 import org.bala.neela.grpc.PeerInfo;
 import org.bala.neela.grpc.PeerRegister;
 
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
 import io.grpc.StatusRuntimeException;
 
 public class BootStrapper {
   private static final Logger LOGGER = LoggerFactory.getLogger(BootStrapper.class);
 
   private final String host;
-  private final int port;
   private final String peerRegisterPath;
-  private AtomicReference<PeerRegister> peerRegister = new AtomicReference<>();
+  private final PeerChannelPool peerChannelPool;
+  private final Membership membership;
   
-  public BootStrapper(final String host, final int port, final String peerRegisterPath) {
+  public BootStrapper(final String host, final String peerRegisterPath, final PeerChannelPool peerChannelPool, final Membership membership) {
     checkArgument(isNoneBlank(host), "Invalid central host");
-    checkArgument(isValidPort(port), "Invalid port; out of valid range");
     checkArgument(isNoneBlank(peerRegisterPath), "Invalid peerRegisterPath");
 
     this.host = host.trim();
-    this.port = port;
     this.peerRegisterPath = peerRegisterPath.trim();
+    this.peerChannelPool = requireNonNull(peerChannelPool);
+    this.membership = requireNonNull(membership);
   }
 
   @PostConstruct
   private void loadFromLocalCache() throws IOException {
     LOGGER.info("Loading locally existing peerRegister...");
-    peerRegister.set(PeerRegister.newBuilder().addAllKnownPeers(getKnownPeers()).build());
+    membership.seed(getKnownPeers());
   }
 
-  private List<PeerInfo> getKnownPeers() throws IOException {
+  private List<String> getKnownPeers() throws IOException {
     final Path path = Paths.get(peerRegisterPath);
     if (path.toFile().exists()) {
       try (final Stream<String> hosts = Files.lines(path)) {
-        return hosts.map(h -> PeerInfo.newBuilder().setHostAddress(h).build()).collect(toList());
+        return hosts.map(String::trim).collect(toList());
       }
     } else {
-      return Arrays.asList(PeerInfo.newBuilder().setHostAddress("127.0.0.1").build());
+      return Arrays.asList("127.0.0.1");
     }
   }
   
@@ -71,35 +68,33 @@ public class BootStrapper {
   private void persistPeerRegister() throws IOException {
     LOGGER.info("Persisting the current peerRegister");
     final Path path = Paths.get(peerRegisterPath);
-    final List<String> lines = peerRegister.get().getKnownPeersList().stream().map(PeerInfo::getHostAddress).collect(toList());
-    Files.write(path, lines, StandardOpenOption.CREATE);
+    final List<String> lines = getPeerRegister().getKnownPeersList()
+                                                .stream()
+                                                .map(PeerInfo::getHostAddress)
+                                                .filter(h -> !h.equals(membership.getSelfAddress()))
+                                                .collect(toList());
+    Files.write(path, lines, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
   }
   
+  // Joining is the one exchange of a full register; from then on membership changes travel by gossip
   public void bootStrap() throws InterruptedException {
-    LOGGER.info("Bootstrapping from {}:{}...", host, port);
-    final ManagedChannel channel = ManagedChannelBuilder.forAddress(host, port).usePlaintext(true).build();
-    final NeelaGrpc.NeelaBlockingStub blockingStub = NeelaGrpc.newBlockingStub(channel);
+    LOGGER.info("Bootstrapping from {}:{}...", host, peerChannelPool.getPort());
+    final NeelaGrpc.NeelaBlockingStub blockingStub = NeelaGrpc.newBlockingStub(peerChannelPool.channelFor(host));
     try {
-      peerRegister.set(blockingStub.bootstrap(peerRegister.get()));
-      LOGGER.info("Updated list of known peers: {}", peerRegister);
+      membership.applyAll(blockingStub.bootstrap(PeerRegister.newBuilder().addKnownPeers(membership.self()).build()).getKnownPeersList());
+      LOGGER.info("Updated list of known peers: {}", getPeerRegister());
     } catch (StatusRuntimeException e) {
       LOGGER.error("Failed bootsrapping",e);
-    } finally {
-      channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
     }
   }
   
   public PeerRegister getPeerRegister() {
-    return peerRegister.get();
+    return membership.getPeerRegister();
   }
   
-  public synchronized PeerRegister mergePeerRegister(final PeerRegister peerRegisterToMerge) {
-    final Set<PeerInfo> peerInfosMerged = new HashSet<>(peerRegisterToMerge.getKnownPeersList());
-    final PeerRegister peerRegisterExisting = peerRegister.get();
-    peerInfosMerged.addAll(peerRegisterExisting.getKnownPeersList());
-    final PeerRegister peerRegisterMerged = PeerRegister.newBuilder().addAllKnownPeers(peerInfosMerged).build();
-    peerRegister.set(peerRegisterMerged);
-    return peerRegister.get();
+  public PeerRegister mergePeerRegister(final PeerRegister peerRegisterToMerge) {
+    membership.applyAll(peerRegisterToMerge.getKnownPeersList());
+    return getPeerRegister();
   }
   
   public void listPeers(final Consumer<? super PeerInfo> consumer) {
@@ -109,4 +104,13 @@ public class BootStrapper {
   public static boolean isValidPort(int port) {
     return port > 1024 && port < 65535;
   }
+
+  public static String getMyHostAddress() {
+    try {
+      return InetAddress.getLocalHost().getHostAddress();
+    } catch (UnknownHostException e) {
+      LOGGER.error("Unable to find my address ;(", e);
+      return "unknown";
+    }
+  }
 }
\ No newline at end of file
@@ -2,89 +2,185 @@ package org.bala.neela.service;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static java.util.Objects.requireNonNull;
-import static java.util.stream.Collectors.toList;
-import static org.apache.commons.lang3.StringUtils.isNoneBlank;
-import static org.bala.neela.service.BootStrapper.isValidPort;
-
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+
+import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletionException;
 import java.util.function.Consumer;
-import java.util.stream.Stream;
+import java.util.function.Function;
 
 import org.bala.neela.ui.UserCommand;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.bala.neela.grpc.BrowseRequest;
 import org.bala.neela.grpc.BrowserOutput;
 import org.bala.neela.grpc.NeelaGrpc;
 
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
 import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.StreamObserver;
 
 public class Browser {
   private static final Logger LOGGER = LoggerFactory.getLogger(BootStrapper.class);
   public static final BrowserOutput EMPTY_OUTPUT = BrowserOutput.newBuilder().build();
 
-  private final int port;
-  private final String sharedLocation;
-  private final BootStrapper bootStrapper;
+  private final SharedIndex sharedIndex;
+  private final PeerChannelPool peerChannelPool;
+  private final ResultCache resultCache;
+  private final int pageSize;
+  private final Cache<String, Listing> listings;
   
-  public Browser(final int port, final String sharedLocation, final BootStrapper bootStrapper) {
-    checkArgument(isValidPort(port), "Invalid port; out of valid range");
-    checkArgument(isNoneBlank(sharedLocation), "Invalid sharedLocation");
+  public Browser(final SharedIndex sharedIndex,
+                 final PeerChannelPool peerChannelPool,
+                 final ResultCache resultCache,
+                 final int pageSize,
+                 final int maxListings) {
+    checkArgument(pageSize > 0, "Invalid pageSize");
+    checkArgument(maxListings > 0, "Invalid maxListings");
 
-    this.port = port;
-    this.sharedLocation = sharedLocation;
-    this.bootStrapper = requireNonNull(bootStrapper);
+    this.sharedIndex = requireNonNull(sharedIndex);
+    this.peerChannelPool = requireNonNull(peerChannelPool);
+    this.resultCache = requireNonNull(resultCache);
+    this.pageSize = pageSize;
+    this.listings = CacheBuilder.newBuilder().maximumSize(maxListings).build();
   }
   
   public void browse(final UserCommand userCommand, final Consumer<? super BrowserOutput> consumer) {
-    CompletableFuture.supplyAsync(() -> browse(userCommand.getCommandArg()))
-                     .exceptionally(this::handleException)
-                     .thenAcceptAsync(consumer);
+    final String host = userCommand.getCommandArg();
+    resultCache.browse(host, this::browse)
+               .exceptionally(ex -> handleException(host, ex))
+               .thenAcceptAsync(consumer);
   }
 
-  private BrowserOutput browse(final String host) {
-    final ManagedChannel channel = ManagedChannelBuilder.forAddress(host, port).usePlaintext(true).build();
-    final NeelaGrpc.NeelaBlockingStub blockingStub = NeelaGrpc.newBlockingStub(channel);
+  /*
+   * Asks only for what changed since the listing we last saw from the host and applies it to our copy. Listing is
+   * read-only, so it is hedged like the unary calls and bounded by the BROWSE deadline. Failures propagate so that
+   * the cache drops them instead of serving an empty listing for the whole TTL.
+   */
+  private CompletableFuture<BrowserOutput> browse(final String host) {
+    final Listing previous = listings.getIfPresent(host);
+    final BrowseRequest browseRequest = BrowseRequest.newBuilder().setSinceVersion((previous == null) ? 0 : previous.version).setPageSize(pageSize).build();
+    final CompletableFuture<BrowserOutput> output = new CompletableFuture<>();
+    Futures.addCallback(peerChannelPool.hedge(host, NeelaGrpc.METHOD_BROWSE, channel -> fetch(channel, host, browseRequest, previous)), new FutureCallback<BrowserOutput>() {
+      @Override
+      public void onSuccess(final BrowserOutput listing) {
+        LOGGER.info("Browsed {} at version {}, {} listing of {} files", host, listing.getIndexVersion(), listing.getDelta() ? "delta" : "full", listing.getFilenamesCount());
+        listings.put(host, new Listing(listing.getIndexVersion(), new TreeSet<>(listing.getFilenamesList())));
+        output.complete(listing.toBuilder().clearDelta().build());
+      }
 
-    try {
-      return blockingStub.browse(bootStrapper.getPeerRegister());
-    } catch (StatusRuntimeException e) {
-      LOGGER.error("Error browsing host:{}, {}", host, e);
-      return EMPTY_OUTPUT;
-    } finally {
-      try {
-        channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
+      @Override
+      public void onFailure(final Throwable t) {
+        output.completeExceptionally(t);
+      }
+    }, MoreExecutors.directExecutor());
+    return output;
+  }
+
+  // One attempt, collecting the pages as they stream in into the whole listing; cancelling the future cancels the call
+  private static ListenableFuture<BrowserOutput> fetch(final Channel channel, final String host, final BrowseRequest browseRequest, final Listing previous) {
+    final SettableFuture<BrowserOutput> listing = SettableFuture.create();
+    final ClientCall<BrowseRequest, BrowserOutput> call = channel.newCall(NeelaGrpc.METHOD_BROWSE, CallOptions.DEFAULT);
+    ClientCalls.asyncServerStreamingCall(call, browseRequest, new StreamObserver<BrowserOutput>() {
+      private SortedSet<String> filenames;
+      private BrowserOutput first;
+
+      @Override
+      public void onNext(final BrowserOutput page) {
+        if (first == null) {
+          first = page;
+          filenames = (page.getDelta() && previous != null) ? new TreeSet<>(previous.filenames) : new TreeSet<>();
+        }
+        apply(page, filenames);
+      }
+
+      @Override
+      public void onError(final Throwable t) {
+        listing.setException(t);
+      }
+
+      @Override
+      public void onCompleted() {
+        if (first == null) {
+          listing.setException(new IllegalStateException("Empty browse response from " + host));
+        } else {
+          listing.set(BrowserOutput.newBuilder().addAllFilenames(filenames).setIndexVersion(first.getIndexVersion()).setDelta(first.getDelta()).build());
+        }
+      }
+    });
+    listing.addListener(() -> {
+      if (listing.isCancelled()) {
+        call.cancel("Browse answered by another attempt", null);
       }
+    }, MoreExecutors.directExecutor());
+    return listing;
+  }
+
+  private static void apply(final BrowserOutput page, final SortedSet<String> filenames) {
+    filenames.removeAll(page.getRemovedList());
+    filenames.addAll(page.getFilenamesList());
+  }
+
+  // A known version gets only the changes since, anything else the full listing, either way in pages of at most pageSize
+  public void browse(final BrowseRequest browseRequest, final StreamObserver<BrowserOutput> responseObserver) {
+    final int size = (browseRequest.getPageSize() > 0) ? Math.min(browseRequest.getPageSize(), pageSize) : pageSize;
+    final Optional<SharedIndex.Changes> changes = (browseRequest.getSinceVersion() > 0) ? sharedIndex.changesSince(browseRequest.getSinceVersion()) : Optional.empty();
+    if (changes.isPresent()) {
+      final BrowserOutput.Builder delta = BrowserOutput.newBuilder().setIndexVersion(changes.get().getVersion()).setDelta(true);
+      send(Lists.partition(changes.get().getAdded(), size), page -> delta.clone().addAllFilenames(page), responseObserver);
+      send(Lists.partition(changes.get().getRemoved(), size), page -> delta.clone().addAllRemoved(page), responseObserver);
+      if (changes.get().getAdded().isEmpty() && changes.get().getRemoved().isEmpty()) {
+        responseObserver.onNext(delta.build());
+      }
+    } else {
+      final long indexVersion = sharedIndex.getVersion();
+      final List<List<String>> pages = Lists.partition(sharedIndex.filenames(), size);
+      send(pages.isEmpty() ? Collections.singletonList(Collections.emptyList()) : pages,
+           page -> BrowserOutput.newBuilder().setIndexVersion(indexVersion).addAllFilenames(page),
+           responseObserver);
     }
+    responseObserver.onCompleted();
   }
-  
-  public BrowserOutput browse() {
-    try (final Stream<Path> paths = Files.list(Paths.get(sharedLocation))) {
-      return BrowserOutput.newBuilder().addAllFilenames(getFilenames(paths)).build();
-    } catch (IOException e) {
-      LOGGER.error("Error browsing location {}, {}", sharedLocation, e);
+
+  private static void send(final List<List<String>> pages,
+                           final Function<List<String>, BrowserOutput.Builder> toPage,
+                           final StreamObserver<BrowserOutput> responseObserver) {
+    pages.forEach(page -> responseObserver.onNext(toPage.apply(page).build()));
+  }
+
+  private BrowserOutput handleException(final String host, final Throwable ex) {
+    final Throwable cause = (ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex;
+    if (cause instanceof StatusRuntimeException) {
+      LOGGER.error("Error browsing host:{}, {}", host, cause);
       return EMPTY_OUTPUT;
     }
+    return BrowserOutput.newBuilder().setErrorStatus("Error browsing:" + cause.toString()).build();
   }
-  
-  private List<String> getFilenames(final Stream<Path> paths) throws IOException {
-    return paths.filter(Files::isRegularFile)
-                .map(Path::getFileName)
-                .map(Path::toString)
-                .collect(toList());
-  }
 
-  private BrowserOutput handleException(final Throwable ex) {
-    return BrowserOutput.newBuilder().setErrorStatus("Error browsing:" + ex.toString()).build();
+  private static final class Listing {
+    private final long version;
+    private final SortedSet<String> filenames;
+
+    private Listing(final long version, final SortedSet<String> filenames) {
+      this.version = version;
+      this.filenames = filenames;
+    }
   }
-}
\ No newline at end of file
+}
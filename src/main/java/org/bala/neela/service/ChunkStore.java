@@ -0,0 +1,337 @@
+package org.bala.neela.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.stream.Collectors.toList;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.bala.neela.grpc.Chunk;
+import org.bala.neela.grpc.ChunkList;
+import org.bala.neela.grpc.FileManifest;
+
+import com.google.protobuf.ByteString;
+
+/*
+ * Content addressed view of the share. Every shared file is cut into content defined chunks with a gear
+ * rolling hash, so an insert or delete only changes the chunks around it, and each chunk is indexed by its
+ * digest. A download can then rebuild whatever the file has in common with anything we already share, and
+ * only the chunks we do not hold cross the network.
+ */
+public class ChunkStore {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChunkStore.class);
+  static final int MIN_CHUNK_SIZE = 16 * 1024;
+  static final int MAX_CHUNK_SIZE = 256 * 1024;
+  // A boundary wherever the top 16 bits of the hash are zero gives chunks of 64KB on average past the minimum
+  private static final long BOUNDARY_MASK = 0xFFFFL << 48;
+  private static final long[] GEAR = new Random(0x6e65656c61L).longs(256).toArray();
+  private static final int READ_BUFFER_SIZE = 1024 * 1024;
+  private static final Pattern TIMESTAMPED_COPY = Pattern.compile("\\.\\d{13}$");
+
+  private final String sharedLocation;
+  private final boolean dropDuplicateCopies;
+  private final ConcurrentMap<String, Indexed> files = new ConcurrentHashMap<>();
+  private final ConcurrentMap<ByteString, Set<Location>> locations = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Object> computing = new ConcurrentHashMap<>();
+
+  public ChunkStore(final String sharedLocation, final boolean dropDuplicateCopies) {
+    checkArgument(isNotBlank(sharedLocation), "Invalid sharedLocation");
+
+    this.sharedLocation = sharedLocation.trim();
+    this.dropDuplicateCopies = dropDuplicateCopies;
+  }
+
+  public ChunkList chunksOf(final String filename) throws IOException {
+    final Path path = Paths.get(sharedLocation, filename);
+    final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    final Indexed indexed = files.get(filename);
+    if (indexed != null && indexed.isCurrent(attributes)) {
+      return indexed.chunkList;
+    }
+    // Concurrent requests for the same file wait for one computation; the lock goes once it is done
+    final Object lock = computing.computeIfAbsent(filename, f -> new Object());
+    try {
+      synchronized (lock) {
+        final Indexed computed = files.get(filename);
+        if (computed != null && computed.isCurrent(attributes)) {
+          return computed.chunkList;
+        }
+        final ChunkList chunkList = ChunkList.newBuilder().setFilename(filename).setSize(attributes.size()).addAllChunks(chunk(path)).build();
+        forget(filename);
+        files.put(filename, new Indexed(attributes, chunkList));
+        chunkList.getChunksList().forEach(chunk -> locations.computeIfAbsent(chunk.getDigest(), digest -> ConcurrentHashMap.newKeySet())
+                                                            .add(new Location(filename, chunk.getOffset())));
+        return chunkList;
+      }
+    } finally {
+      computing.remove(filename, lock);
+    }
+  }
+
+  // The chunk list of the file as it is now if it has been chunked already; the file itself is not read
+  public Optional<ChunkList> indexedChunksOf(final String filename) throws IOException {
+    final BasicFileAttributes attributes = Files.readAttributes(Paths.get(sharedLocation, filename), BasicFileAttributes.class);
+    final Indexed indexed = files.get(filename);
+    return (indexed != null && indexed.isCurrent(attributes)) ? Optional.of(indexed.chunkList) : Optional.empty();
+  }
+
+  public void forget(final String filename) {
+    final Indexed indexed = files.remove(filename);
+    if (indexed != null) {
+      indexed.chunkList.getChunksList().forEach(chunk -> locations.computeIfPresent(chunk.getDigest(), (digest, held) -> {
+        held.remove(new Location(filename, chunk.getOffset()));
+        return held.isEmpty() ? null : held;
+      }));
+    }
+  }
+
+  // True when the shared file of that name already has exactly these chunks
+  public boolean holds(final String filename, final List<Chunk> chunks) {
+    try {
+      return !chunks.isEmpty() && digests(chunksOf(filename).getChunksList()).equals(digests(chunks));
+    } catch (NoSuchFileException e) {
+      return false;
+    } catch (IOException e) {
+      LOGGER.warn("Unable to chunk {}, {}", filename, e);
+      return false;
+    }
+  }
+
+  // The chunk's content from any shared file holding it; locations whose file has since changed are dropped
+  public Optional<ByteString> read(final Chunk chunk) {
+    for (final Location location : locations.getOrDefault(chunk.getDigest(), Collections.emptySet())) {
+      try (final FileChannel fileChannel = FileChannel.open(Paths.get(sharedLocation, location.filename), StandardOpenOption.READ)) {
+        final ByteBuffer content = ByteBuffer.allocate(chunk.getLength());
+        while (content.hasRemaining()) {
+          if (fileChannel.read(content, location.offset + content.position()) < 0) {
+            break;
+          }
+        }
+        content.flip();
+        final MessageDigest digest = ManifestStore.newDigest();
+        digest.update(content.duplicate());
+        if (ByteString.copyFrom(digest.digest()).equals(chunk.getDigest())) {
+          return Optional.of(ByteString.copyFrom(content));
+        }
+      } catch (IOException e) {
+        LOGGER.debug("Unable to read chunk of {} at {}, {}", location.filename, location.offset, e);
+      }
+      locations.getOrDefault(chunk.getDigest(), Collections.emptySet()).remove(location);
+    }
+    return Optional.empty();
+  }
+
+  /*
+   * Writes every missing piece of a download that can be rebuilt from chunks we hold. Ranges of such a piece
+   * that we do not hold come from remote, which may return empty to leave the piece to the regular transfer.
+   * Pieces are verified against the manifest like any other, and the number of bytes reused is returned.
+   */
+  public long reuse(final PartialDownload partialDownload, final List<Chunk> chunks, final Function<Chunk, Optional<ByteString>> remote) throws IOException {
+    if (chunks.isEmpty()) {
+      return 0;
+    }
+    final FileManifest manifest = partialDownload.getManifest();
+    final ByteBuffer piece = ByteBuffer.allocate(manifest.getPieceSize());
+    long reused = 0;
+    for (final int index : partialDownload.missingPieces()) {
+      final long pieceOffset = ManifestStore.pieceOffset(manifest, index);
+      piece.clear().limit(ManifestStore.pieceLength(manifest, index));
+      final List<Chunk> missing = fill(chunks, pieceOffset, piece);
+      final long missingBytes = missing.stream().mapToLong(Chunk::getLength).sum();
+      if (missingBytes == piece.limit() || !fetch(missing, pieceOffset, piece, remote)) {
+        continue;
+      }
+      final AtomicBoolean verified = new AtomicBoolean();
+      new PieceHasher(manifest, pieceOffset, i -> verified.set(true), i -> LOGGER.warn("Piece {} of {} rebuilt from local chunks is corrupt", i, manifest.getFilename()))
+          .update(pieceOffset, piece.duplicate());
+      if (verified.get() && partialDownload.writePiece(index, piece.duplicate())) {
+        reused += piece.limit() - missingBytes;
+      }
+    }
+    LOGGER.info("Reused {} of {} bytes of {} from local chunks", reused, manifest.getSize(), manifest.getFilename());
+    return reused;
+  }
+
+  // Copies the chunks we hold into the piece and returns the ranges of it we do not hold, adjacent ones merged
+  List<Chunk> fill(final List<Chunk> chunks, final long pieceOffset, final ByteBuffer piece) {
+    final long pieceEnd = pieceOffset + piece.limit();
+    final List<Chunk> missing = new ArrayList<>();
+    for (int i = firstOverlapping(chunks, pieceOffset); i < chunks.size() && chunks.get(i).getOffset() < pieceEnd; i++) {
+      final Chunk chunk = chunks.get(i);
+      final long start = Math.max(pieceOffset, chunk.getOffset());
+      final long end = Math.min(pieceEnd, chunk.getOffset() + chunk.getLength());
+      final Optional<ByteString> content = read(chunk);
+      if (content.isPresent()) {
+        content.get().substring((int) (start - chunk.getOffset()), (int) (end - chunk.getOffset())).copyTo(slice(piece, start - pieceOffset, end - start));
+      } else if (!missing.isEmpty() && last(missing).getOffset() + last(missing).getLength() == start) {
+        missing.set(missing.size() - 1, last(missing).toBuilder().setLength((int) (end - last(missing).getOffset())).build());
+      } else {
+        missing.add(Chunk.newBuilder().setOffset(start).setLength((int) (end - start)).build());
+      }
+    }
+    return missing;
+  }
+
+  private static boolean fetch(final List<Chunk> missing, final long pieceOffset, final ByteBuffer piece, final Function<Chunk, Optional<ByteString>> remote) {
+    for (final Chunk range : missing) {
+      final Optional<ByteString> content = remote.apply(range);
+      if (!content.isPresent() || content.get().size() != range.getLength()) {
+        return false;
+      }
+      content.get().copyTo(slice(piece, range.getOffset() - pieceOffset, range.getLength()));
+    }
+    return true;
+  }
+
+  /*
+   * Called once a transfer has landed a file. A timestamped copy of a same named file with the same content
+   * is dropped in favour of that file. Any other file is kept as written, even when we share its content under
+   * another name: a link between the two would let a write to either name change both.
+   */
+  public Path deduplicate(final Path path) {
+    final String filename = path.getFileName().toString();
+    final String originalName = TIMESTAMPED_COPY.matcher(filename).replaceFirst("");
+    if (!dropDuplicateCopies || originalName.equals(filename)) {
+      return path;
+    }
+    final Path originalPath = path.resolveSibling(originalName);
+    try {
+      if (!Files.isRegularFile(originalPath) || Files.size(originalPath) != Files.size(path)
+          || !digests(chunksOf(filename).getChunksList()).equals(digests(chunksOf(originalName).getChunksList()))) {
+        return path;
+      }
+      forget(filename);
+      Files.delete(path);
+      LOGGER.info("{} has the same content as {}; dropped the copy", filename, originalName);
+      return originalPath;
+    } catch (IOException e) {
+      LOGGER.warn("Unable to deduplicate {}, {}", path, e);
+      return path;
+    }
+  }
+
+  static List<Chunk> chunk(final Path path) throws IOException {
+    final List<Chunk> chunks = new ArrayList<>();
+    final MessageDigest digest = ManifestStore.newDigest();
+    final byte[] buffer = new byte[READ_BUFFER_SIZE];
+    long offset = 0;
+    int length = 0;
+    long hash = 0;
+    try (final FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+      int read;
+      while ((read = fileChannel.read(ByteBuffer.wrap(buffer))) >= 0) {
+        int start = 0;
+        for (int i = 0; i < read; i++) {
+          hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+          length++;
+          if ((length >= MIN_CHUNK_SIZE && (hash & BOUNDARY_MASK) == 0) || length == MAX_CHUNK_SIZE) {
+            digest.update(buffer, start, i + 1 - start);
+            chunks.add(Chunk.newBuilder().setOffset(offset).setLength(length).setDigest(ByteString.copyFrom(digest.digest())).build());
+            start = i + 1;
+            offset += length;
+            length = 0;
+            hash = 0;
+          }
+        }
+        digest.update(buffer, start, read - start);
+      }
+    }
+    if (length > 0) {
+      chunks.add(Chunk.newBuilder().setOffset(offset).setLength(length).setDigest(ByteString.copyFrom(digest.digest())).build());
+    }
+    return chunks;
+  }
+
+  private static int firstOverlapping(final List<Chunk> chunks, final long offset) {
+    int low = 0;
+    int high = chunks.size() - 1;
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      final Chunk chunk = chunks.get(mid);
+      if (chunk.getOffset() + chunk.getLength() <= offset) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private static ByteBuffer slice(final ByteBuffer piece, final long position, final long length) {
+    final ByteBuffer slice = piece.duplicate();
+    slice.position((int) position).limit((int) (position + length));
+    return slice;
+  }
+
+  private static Chunk last(final List<Chunk> chunks) {
+    return chunks.get(chunks.size() - 1);
+  }
+
+  private static List<ByteString> digests(final List<Chunk> chunks) {
+    return chunks.stream().map(Chunk::getDigest).collect(toList());
+  }
+
+  private static final class Indexed {
+    private final long size;
+    private final long lastModified;
+    private final ChunkList chunkList;
+
+    private Indexed(final BasicFileAttributes attributes, final ChunkList chunkList) {
+      this.size = attributes.size();
+      this.lastModified = attributes.lastModifiedTime().toMillis();
+      this.chunkList = chunkList;
+    }
+
+    private boolean isCurrent(final BasicFileAttributes attributes) {
+      return size == attributes.size() && lastModified == attributes.lastModifiedTime().toMillis();
+    }
+  }
+
+  private static final class Location {
+    private final String filename;
+    private final long offset;
+
+    private Location(final String filename, final long offset) {
+      this.filename = filename;
+      this.offset = offset;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (!(other instanceof Location)) {
+        return false;
+      }
+      final Location location = (Location) other;
+      return filename.equals(location.filename) && offset == location.offset;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(filename, offset);
+    }
+  }
+}
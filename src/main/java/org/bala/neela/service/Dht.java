@@ -0,0 +1,450 @@
+package org.bala.neela.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+import static java.util.stream.Collectors.toList;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.bala.neela.grpc.DhtRequest;
+import org.bala.neela.grpc.DhtResponse;
+import org.bala.neela.grpc.NeelaGrpc;
+import org.bala.neela.grpc.PeerInfo;
+import org.bala.neela.grpc.SearchResponse;
+import org.bala.neela.grpc.StoreRequest;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+
+import io.grpc.Channel;
+import io.grpc.StatusRuntimeException;
+
+/*
+ * Kademlia style location of shared files: every peer stores "filename -> holder" records for its share at
+ * the replication closest peers to SHA-1(filename), and a lookup walks towards that key, alpha queries at a
+ * time, which takes O(log N) hops instead of asking every peer. The same records are stored under the key of
+ * the file's content digest, which finds holders of identical bytes whatever they named them. Records expire
+ * unless republished.
+ */
+public class Dht {
+  private static final Logger LOGGER = LoggerFactory.getLogger(Dht.class);
+  private static final int MAX_HOLDERS_PER_KEY = 128;
+
+  private final Membership membership;
+  private final SharedIndex sharedIndex;
+  private final PeerChannelPool peerChannelPool;
+  private final RoutingTable routingTable;
+  private final int replication;
+  private final int alpha;
+  private final int publishParallelism;
+  private final long recordTtlMillis;
+  private final long publishIntervalMillis;
+  private final long republishIntervalMillis;
+  private final ConcurrentMap<BigInteger, ConcurrentMap<String, Record>> records = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, String> published = new ConcurrentHashMap<>();
+  private long lastRepublish = 0;
+  private final ScheduledExecutorService publisher = Executors.newSingleThreadScheduledExecutor(r -> {
+    final Thread thread = new Thread(r, "dht-publisher");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  public Dht(final Membership membership,
+             final SharedIndex sharedIndex,
+             final PeerChannelPool peerChannelPool,
+             final PeerHealth peerHealth,
+             final int replication,
+             final int alpha,
+             final int publishParallelism,
+             final long recordTtlMillis,
+             final long publishIntervalMillis,
+             final long republishIntervalMillis) {
+    checkArgument(replication > 0, "Invalid replication");
+    checkArgument(alpha > 0, "Invalid alpha");
+    checkArgument(publishParallelism > 0, "Invalid publishParallelism");
+    checkArgument(publishIntervalMillis > 0, "Invalid publishIntervalMillis");
+    checkArgument(republishIntervalMillis >= publishIntervalMillis && republishIntervalMillis < recordTtlMillis, "Records must be republished before they expire");
+
+    this.membership = requireNonNull(membership);
+    this.sharedIndex = requireNonNull(sharedIndex);
+    this.peerChannelPool = requireNonNull(peerChannelPool);
+    this.routingTable = new RoutingTable(membership.getSelfAddress(), replication, peerHealth);
+    this.replication = replication;
+    this.alpha = alpha;
+    this.publishParallelism = publishParallelism;
+    this.recordTtlMillis = recordTtlMillis;
+    this.publishIntervalMillis = publishIntervalMillis;
+    this.republishIntervalMillis = republishIntervalMillis;
+  }
+
+  @PostConstruct
+  private void start() {
+    publisher.scheduleWithFixedDelay(this::publish, publishIntervalMillis, publishIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    publisher.shutdownNow();
+  }
+
+  public CompletableFuture<List<SearchResponse>> lookup(final String filename) {
+    return lookup(RoutingTable.idOf(filename));
+  }
+
+  public CompletableFuture<List<SearchResponse>> lookupContent(final ByteString rootDigest) {
+    checkArgument(!rootDigest.isEmpty(), "Invalid rootDigest");
+    return lookup(contentIdOf(rootDigest));
+  }
+
+  private CompletableFuture<List<SearchResponse>> lookup(final BigInteger key) {
+    final List<SearchResponse> local = localHolders(key);
+    if (!local.isEmpty()) {
+      return CompletableFuture.completedFuture(local);
+    }
+    return new Lookup(key, true).start().thenApply(DhtResponse::getHoldersList);
+  }
+
+  public DhtResponse findNode(final DhtRequest dhtRequest) {
+    learn(dhtRequest.getSender());
+    return closestResponse(toId(dhtRequest.getKey())).build();
+  }
+
+  public DhtResponse findValue(final DhtRequest dhtRequest) {
+    learn(dhtRequest.getSender());
+    final BigInteger key = toId(dhtRequest.getKey());
+    return closestResponse(key).addAllHolders(localHolders(key)).build();
+  }
+
+  public DhtResponse store(final StoreRequest storeRequest) {
+    learn(storeRequest.getSender());
+    final BigInteger key = toId(storeRequest.getKey());
+    storeRequest.getHoldersList()
+                .stream()
+                .filter(holder -> keysOf(holder).contains(key))
+                .forEach(holder -> storeLocally(key, holder));
+    return DhtResponse.getDefaultInstance();
+  }
+
+  private void learn(final PeerInfo sender) {
+    routingTable.add(sender.getHostAddress());
+  }
+
+  private DhtResponse.Builder closestResponse(final BigInteger key) {
+    return DhtResponse.newBuilder()
+                      .addAllClosest(routingTable.closest(key, replication)
+                                                 .stream()
+                                                 .map(host -> PeerInfo.newBuilder().setHostAddress(host).build())
+                                                 .collect(toList()));
+  }
+
+  private List<SearchResponse> localHolders(final BigInteger key) {
+    final long now = System.currentTimeMillis();
+    final Map<String, Record> holders = records.get(key);
+    if (holders == null) {
+      return Collections.emptyList();
+    }
+    return holders.values().stream().filter(record -> record.expiresAt > now).map(record -> record.holder).collect(toList());
+  }
+
+  private void storeLocally(final BigInteger key, final SearchResponse holder) {
+    final ConcurrentMap<String, Record> holders = records.computeIfAbsent(key, k -> new ConcurrentHashMap<>());
+    holders.put(holder.getHostAddress(), new Record(holder, System.currentTimeMillis() + recordTtlMillis));
+    if (holders.size() > MAX_HOLDERS_PER_KEY) {
+      holders.values().stream().min((a, b) -> Long.compare(a.expiresAt, b.expiresAt)).ifPresent(oldest -> holders.remove(oldest.holder.getHostAddress(), oldest));
+    }
+  }
+
+  /*
+   * Runs on the publisher thread only. At most publishParallelism files are published at once, so a large
+   * share is republished well within the record TTL without flooding the network; a file that could not be
+   * published keeps its old signature and is tried again on the next pass.
+   */
+  private void publish() {
+    try {
+      // Until lookups have taught us enough peers, the gossiped membership is the way into the network
+      if (routingTable.size() < replication) {
+        membership.probeTargets().forEach(routingTable::add);
+      }
+      expireRecords();
+      final long now = System.currentTimeMillis();
+      final boolean republishAll = now - lastRepublish >= republishIntervalMillis;
+      final Set<String> shared = new HashSet<>();
+      final Semaphore slots = new Semaphore(publishParallelism);
+      final List<CompletableFuture<Void>> publishing = new ArrayList<>();
+      for (final String filename : sharedIndex.filenames()) {
+        final Optional<SharedIndex.SharedFile> sharedFile = sharedIndex.lookup(filename);
+        if (!sharedFile.isPresent()) {
+          continue;
+        }
+        shared.add(filename);
+        final String signature = signature(sharedFile.get());
+        if (republishAll || !signature.equals(published.get(filename))) {
+          slots.acquire();
+          publishing.add(publish(sharedFile.get()).thenAccept(stored -> {
+            slots.release();
+            if (stored) {
+              published.put(filename, signature);
+            }
+          }));
+        }
+      }
+      CompletableFuture.allOf(publishing.toArray(new CompletableFuture<?>[publishing.size()])).join();
+      published.keySet().retainAll(shared);
+      if (republishAll) {
+        lastRepublish = now;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      LOGGER.error("Error publishing shared files to the DHT", e);
+    }
+  }
+
+  // Completes with whether every key of the file reached at least one of its closest peers, and never fails
+  private CompletableFuture<Boolean> publish(final SharedIndex.SharedFile sharedFile) {
+    final SearchResponse holder = SearchResponse.newBuilder()
+                                                .setFilename(sharedFile.getFilename())
+                                                .setFound(true)
+                                                .setHostAddress(membership.getSelfAddress())
+                                                .setSize(sharedFile.getSize())
+                                                .setRootDigest(sharedFile.getRootDigest())
+                                                .setIndexVersion(sharedIndex.getVersion())
+                                                .build();
+    final List<CompletableFuture<Boolean>> stores = keysOf(holder).stream().map(key -> publish(key, holder)).collect(toList());
+    return CompletableFuture.allOf(stores.toArray(new CompletableFuture<?>[stores.size()]))
+                            .thenApply(ignored -> stores.stream().allMatch(CompletableFuture::join));
+  }
+
+  private CompletableFuture<Boolean> publish(final BigInteger key, final SearchResponse holder) {
+    final StoreRequest storeRequest = StoreRequest.newBuilder().setKey(toKey(key)).setSender(membership.self()).addHolders(holder).build();
+    try {
+      return new Lookup(key, false).start().thenCompose(response -> {
+        final List<String> nodes = response.getClosestList().stream().map(PeerInfo::getHostAddress).collect(toList());
+        final boolean local = nodes.size() < replication || isCloserThan(key, nodes.get(nodes.size() - 1));
+        if (local) {
+          storeLocally(key, holder);
+        }
+        LOGGER.debug("Publishing {} to {}", holder.getFilename(), nodes);
+        final List<CompletableFuture<Boolean>> stores = nodes.stream()
+                                                             .map(node -> stored(call(node, channel -> NeelaGrpc.newFutureStub(channel).store(storeRequest))))
+                                                             .collect(toList());
+        return CompletableFuture.allOf(stores.toArray(new CompletableFuture<?>[stores.size()]))
+                                .thenApply(ignored -> local || stores.stream().anyMatch(CompletableFuture::join));
+      }).exceptionally(ex -> {
+        LOGGER.warn("Error publishing {}, {}", holder.getFilename(), ex.toString());
+        return false;
+      });
+    } catch (RuntimeException e) {
+      LOGGER.warn("Error publishing {}, {}", holder.getFilename(), e.toString());
+      return CompletableFuture.completedFuture(false);
+    }
+  }
+
+  private boolean isCloserThan(final BigInteger key, final String host) {
+    return routingTable.distanceTo(key).compareTo(RoutingTable.idOf(host).xor(key)) < 0;
+  }
+
+  private void expireRecords() {
+    final long now = System.currentTimeMillis();
+    records.values().forEach(holders -> holders.values().removeIf(record -> record.expiresAt <= now));
+    records.values().removeIf(Map::isEmpty);
+  }
+
+  private ListenableFuture<DhtResponse> call(final String host, final Function<Channel, ListenableFuture<DhtResponse>> call) {
+    try {
+      return call.apply(peerChannelPool.channelFor(host));
+    } catch (StatusRuntimeException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
+  private static CompletableFuture<Boolean> stored(final ListenableFuture<DhtResponse> future) {
+    final CompletableFuture<Boolean> stored = new CompletableFuture<>();
+    Futures.addCallback(future, new FutureCallback<DhtResponse>() {
+      @Override
+      public void onSuccess(final DhtResponse response) {
+        stored.complete(true);
+      }
+
+      @Override
+      public void onFailure(final Throwable t) {
+        stored.complete(false);
+      }
+    }, MoreExecutors.directExecutor());
+    return stored;
+  }
+
+  // The filename key, and the content key once the file has been hashed
+  private static List<BigInteger> keysOf(final SearchResponse holder) {
+    final List<BigInteger> keys = new ArrayList<>();
+    keys.add(RoutingTable.idOf(holder.getFilename()));
+    if (!holder.getRootDigest().isEmpty()) {
+      keys.add(contentIdOf(holder.getRootDigest()));
+    }
+    return keys;
+  }
+
+  private static BigInteger contentIdOf(final ByteString rootDigest) {
+    return RoutingTable.idOf("sha256:" + BaseEncoding.base16().lowerCase().encode(rootDigest.toByteArray()));
+  }
+
+  private static String signature(final SharedIndex.SharedFile sharedFile) {
+    return sharedFile.getSize() + ":" + sharedFile.getLastModified() + ":" + BaseEncoding.base16().encode(sharedFile.getRootDigest().toByteArray());
+  }
+
+  private static ByteString toKey(final BigInteger id) {
+    final byte[] bytes = id.toByteArray();
+    final byte[] key = new byte[RoutingTable.ID_BITS / 8];
+    final int length = Math.min(bytes.length, key.length);
+    System.arraycopy(bytes, bytes.length - length, key, key.length - length, length);
+    return ByteString.copyFrom(key);
+  }
+
+  private static BigInteger toId(final ByteString key) {
+    return new BigInteger(1, key.toByteArray());
+  }
+
+  private static final class Record {
+    private final SearchResponse holder;
+    private final long expiresAt;
+
+    private Record(final SearchResponse holder, final long expiresAt) {
+      this.holder = holder;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  /*
+   * An iterative lookup: keeps alpha queries in flight to the closest peers not yet asked, learning closer
+   * ones from each answer, and stops once the replication closest known peers have all answered, or, when
+   * looking for a value, as soon as any of them returns holders.
+   */
+  private final class Lookup {
+    private final BigInteger key;
+    private final boolean findValue;
+    private final DhtRequest request;
+    private final TreeMap<BigInteger, String> candidates = new TreeMap<>();
+    private final TreeMap<BigInteger, String> responded = new TreeMap<>();
+    private final Set<String> contacted = new HashSet<>();
+    private final CompletableFuture<DhtResponse> result = new CompletableFuture<>();
+    private int inFlight = 0;
+
+    private Lookup(final BigInteger key, final boolean findValue) {
+      this.key = key;
+      this.findValue = findValue;
+      this.request = DhtRequest.newBuilder().setKey(toKey(key)).setSender(membership.self()).build();
+    }
+
+    private CompletableFuture<DhtResponse> start() {
+      routingTable.closest(key, replication).forEach(this::consider);
+      launchMore();
+      return result;
+    }
+
+    private void consider(final String host) {
+      if (!host.equals(membership.getSelfAddress())) {
+        candidates.putIfAbsent(RoutingTable.idOf(host).xor(key), host);
+      }
+    }
+
+    // Only the replication closest candidates matter; failed peers drop out, letting the next closest in
+    private synchronized void launchMore() {
+      final List<String> next = new ArrayList<>();
+      int considered = 0;
+      for (final String host : candidates.values()) {
+        if (considered++ >= replication || inFlight + next.size() >= alpha) {
+          break;
+        }
+        if (contacted.add(host)) {
+          next.add(host);
+        }
+      }
+      inFlight += next.size();
+      if (inFlight == 0) {
+        finish(Collections.emptyList());
+      }
+      next.forEach(this::query);
+    }
+
+    private void query(final String host) {
+      final ListenableFuture<DhtResponse> future = call(host, channel -> findValue ? NeelaGrpc.newFutureStub(channel).findValue(request)
+                                                                                   : NeelaGrpc.newFutureStub(channel).findNode(request));
+      Futures.addCallback(future, new FutureCallback<DhtResponse>() {
+        @Override
+        public void onSuccess(final DhtResponse response) {
+          answered(host, response);
+        }
+
+        @Override
+        public void onFailure(final Throwable t) {
+          LOGGER.debug("DHT peer {} did not answer, {}", host, t.toString());
+          failed(host);
+        }
+      }, MoreExecutors.directExecutor());
+    }
+
+    private void answered(final String host, final DhtResponse response) {
+      routingTable.add(host);
+      synchronized (this) {
+        inFlight--;
+        responded.put(RoutingTable.idOf(host).xor(key), host);
+        while (responded.size() > replication) {
+          responded.pollLastEntry();
+        }
+        response.getClosestList().forEach(peer -> consider(peer.getHostAddress()));
+      }
+      if (findValue && response.getHoldersCount() > 0) {
+        finish(response.getHoldersList());
+      } else if (!result.isDone()) {
+        launchMore();
+      }
+    }
+
+    private void failed(final String host) {
+      routingTable.remove(host);
+      synchronized (this) {
+        inFlight--;
+        candidates.values().remove(host);
+      }
+      if (!result.isDone()) {
+        launchMore();
+      }
+    }
+
+    private synchronized void finish(final List<SearchResponse> holders) {
+      result.complete(DhtResponse.newBuilder()
+                                 .addAllClosest(responded.values()
+                                                         .stream()
+                                                         .map(host -> PeerInfo.newBuilder().setHostAddress(host).build())
+                                                         .collect(toList()))
+                                 .addAllHolders(holders)
+                                 .build());
+    }
+  }
+}
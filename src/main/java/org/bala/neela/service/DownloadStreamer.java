@@ -0,0 +1,215 @@
+package org.bala.neela.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.bala.neela.grpc.Compression;
+import org.bala.neela.grpc.DownloadRequest;
+import org.bala.neela.grpc.DownloadResponse;
+
+import com.google.protobuf.ByteString;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+
+/*
+ * Serves one DOWNLOAD without holding a thread. The next chunk is read only when the client can take it,
+ * so a slow reader leaves the rest of the file on disk rather than queued in the server. At most one read
+ * is in flight, and what it reads into comes from the ReadBuffers shared by all downloads. A range large
+ * enough to map is sent as views of leased mapped regions instead, its bytes never copied onto the heap;
+ * while no region is free it reads through the buffers like any other.
+ */
+final class DownloadStreamer implements CompletionHandler<Integer, ByteBuffer> {
+  private static final Logger LOGGER = LoggerFactory.getLogger(DownloadStreamer.class);
+
+  private final DownloadRequest downloadRequest;
+  private final Path path;
+  private final AsynchronousFileChannel fileChannel;
+  private final long end;
+  private final TransferCompression.Encoder encoder;
+  private final ReadBuffers readBuffers;
+  private final MappedRegions mappedRegions;
+  private final boolean mapped;
+  private final ServerCallStreamObserver<DownloadResponse> responseObserver;
+  private final Runnable pump = this::pump;
+  private long position;
+  private boolean reading = false;
+  private boolean finished = false;
+  private FileChannel mappedChannel;
+  private MappedRegions.Lease region;
+
+  DownloadStreamer(final DownloadRequest downloadRequest,
+                   final Path path,
+                   final AsynchronousFileChannel fileChannel,
+                   final long start,
+                   final long end,
+                   final TransferCompression.Encoder encoder,
+                   final ReadBuffers readBuffers,
+                   final MappedRegions mappedRegions,
+                   final ServerCallStreamObserver<DownloadResponse> responseObserver) {
+    this.downloadRequest = downloadRequest;
+    this.path = path;
+    this.fileChannel = fileChannel;
+    this.position = start;
+    this.end = end;
+    this.encoder = encoder;
+    this.readBuffers = readBuffers;
+    this.mappedRegions = mappedRegions;
+    this.mapped = mappedRegions.shouldMap(end - start);
+    this.responseObserver = responseObserver;
+  }
+
+  // Has to be called from the handler itself, before it returns
+  void start() {
+    responseObserver.setOnCancelHandler(this::cancel);
+    responseObserver.setOnReadyHandler(pump);
+    pump();
+  }
+
+  private synchronized void pump() {
+    while (!finished && !reading && responseObserver.isReady()) {
+      if (position >= end) {
+        finish();
+        return;
+      }
+      if (mapped && region == null) {
+        try {
+          region = lease();
+        } catch (IOException|RuntimeException e) {
+          abort(e);
+          return;
+        }
+      }
+      if (region != null) {
+        sendFromRegion();
+        continue;
+      }
+      final ByteBuffer buffer = readBuffers.take(pump);
+      if (buffer == null) {
+        return;
+      }
+      reading = true;
+      buffer.limit((int) Math.min(buffer.capacity(), end - position));
+      fileChannel.read(buffer, position, buffer, this);
+    }
+  }
+
+  // The region from here on, or null while none is free; mapping needs a FileChannel of its own
+  private MappedRegions.Lease lease() throws IOException {
+    if (mappedChannel == null) {
+      mappedChannel = FileChannel.open(path, StandardOpenOption.READ);
+    }
+    return mappedRegions.tryLease(mappedChannel, position, Math.min(end - position, mappedRegions.getMaxRegionSize())).orElse(null);
+  }
+
+  // The region is unmapped once the lease is given back, so onNext must have serialized the view by then
+  private void sendFromRegion() {
+    final int offset = (int) (position - region.getPosition());
+    final ByteBuffer chunk = region.getBuffer().duplicate();
+    chunk.position(offset);
+    chunk.limit((int) Math.min(offset + (long) readBuffers.getBufferSize(), region.getEnd() - region.getPosition()));
+    final DownloadResponse response = constructResponse(position, mappedRegions.content(chunk.slice()));
+    responseObserver.onNext(response);
+    position += response.getLength();
+    if (position >= region.getEnd()) {
+      region.close();
+      region = null;
+    }
+  }
+
+  // Only the read in flight touches the encoder and position, so the response is built without the lock
+  @Override
+  public void completed(final Integer read, final ByteBuffer buffer) {
+    buffer.flip();
+    final DownloadResponse response = buffer.hasRemaining() ? constructResponse(position, ByteString.copyFrom(buffer)) : null;
+    readBuffers.give(buffer);
+    synchronized (this) {
+      reading = false;
+      if (finished) {
+        close();
+        return;
+      }
+      if (response == null) {
+        // The file is shorter than when the download started
+        finish();
+        return;
+      }
+      responseObserver.onNext(response);
+      position += response.getLength();
+    }
+    pump();
+  }
+
+  @Override
+  public void failed(final Throwable t, final ByteBuffer buffer) {
+    readBuffers.give(buffer);
+    synchronized (this) {
+      reading = false;
+      abort(t);
+    }
+  }
+
+  private void abort(final Throwable t) {
+    LOGGER.error("Error reading {}, {}", downloadRequest.getFilename(), t);
+    close();
+    if (!finished) {
+      finished = true;
+      responseObserver.onError(Status.ABORTED.withDescription("Error reading " + downloadRequest.getFilename()).withCause(t).asRuntimeException());
+    }
+  }
+
+  // A read still in flight closes the file when it completes
+  private synchronized void cancel() {
+    if (finished) {
+      return;
+    }
+    LOGGER.info("Download of {} cancelled after {} bytes", downloadRequest.getFilename(), encoder.getRawBytes());
+    finished = true;
+    if (!reading) {
+      close();
+    }
+  }
+
+  private void finish() {
+    finished = true;
+    close();
+    LOGGER.info("Sent {} bytes of {} as {} bytes", encoder.getRawBytes(), downloadRequest.getFilename(), encoder.getSentBytes());
+    responseObserver.onCompleted();
+  }
+
+  private void close() {
+    encoder.close();
+    if (region != null) {
+      region.close();
+      region = null;
+    }
+    try {
+      fileChannel.close();
+      if (mappedChannel != null) {
+        mappedChannel.close();
+      }
+    } catch (IOException e) {
+      LOGGER.error("Error closing {}, {}", downloadRequest.getFilename(), e);
+    }
+  }
+
+  private DownloadResponse constructResponse(final long offset, final ByteString content) {
+    final Optional<ByteString> deflated = encoder.deflate(content);
+    return DownloadResponse.newBuilder()
+                           .setFilename(downloadRequest.getFilename())
+                           .setOffset(offset)
+                           .setLength(content.size())
+                           .setContent(deflated.orElse(content))
+                           .setCompression(deflated.isPresent() ? Compression.DEFLATE : Compression.NONE)
+                           .build();
+  }
+}
@@ -2,49 +2,83 @@ package org.bala.neela.service;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static java.util.Objects.requireNonNull;
-import static org.bala.neela.service.BootStrapper.isValidPort;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.channels.AsynchronousFileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Iterator;
-import java.util.concurrent.TimeUnit;
-import java.util.stream.Stream;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipException;
+
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.lang3.StringUtils;
 import org.bala.neela.ui.UserCommand;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.bala.neela.grpc.Chunk;
 import org.bala.neela.grpc.DownloadRequest;
 import org.bala.neela.grpc.DownloadResponse;
+import org.bala.neela.grpc.FileManifest;
+import org.bala.neela.grpc.ManifestRequest;
 import org.bala.neela.grpc.NeelaGrpc;
 import org.bala.neela.grpc.SearchResponse;
 
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
+import com.google.protobuf.ByteString;
+
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
-import io.grpc.stub.StreamObserver;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.netty.util.concurrent.DefaultThreadFactory;
 
 public class Downloader {
   private static final Logger LOGGER = LoggerFactory.getLogger(Downloader.class);
+  public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024 - 16 * 1024;
+  private static final int MAX_REFETCH_ATTEMPTS = 3;
   
-  private final int port;
   private final String sharedLocation;
+  private final ExecutorService readers;
+  private final ReadBuffers readBuffers;
+  private final MappedRegions mappedRegions;
   private final SearchEngine searchEngine;
+  private final PeerChannelPool peerChannelPool;
+  private final PeerHealth peerHealth;
+  private final TransferCompression transferCompression;
+  private final ChunkStore chunkStore;
   
-  public Downloader(final int port, final String sharedLocation, final SearchEngine searchEngine) {
-    validateConstructorArgs(port, sharedLocation);
-    this.port = port;
+  public Downloader(final String sharedLocation,
+                    final int chunkSize,
+                    final int readerThreads,
+                    final int maxReadBuffers,
+                    final MappedRegions mappedRegions,
+                    final SearchEngine searchEngine,
+                    final PeerChannelPool peerChannelPool,
+                    final PeerHealth peerHealth,
+                    final TransferCompression transferCompression,
+                    final ChunkStore chunkStore) {
+    validateConstructorArgs(sharedLocation, chunkSize, readerThreads);
     this.sharedLocation = sharedLocation.trim();
+    this.readBuffers = new ReadBuffers(chunkSize, maxReadBuffers);
+    this.mappedRegions = requireNonNull(mappedRegions);
     this.searchEngine = requireNonNull(searchEngine);
+    this.peerChannelPool = requireNonNull(peerChannelPool);
+    this.peerHealth = requireNonNull(peerHealth);
+    this.transferCompression = requireNonNull(transferCompression);
+    this.chunkStore = requireNonNull(chunkStore);
+    // Only file reads of the downloads being served run here, each one chunk long
+    this.readers = Executors.newFixedThreadPool(readerThreads, new DefaultThreadFactory("neela-download-reader", true));
   }
 
   public void download(final UserCommand userCommand) {
-    searchEngine.search(userCommand, this::download);
+    Tracing.trace(() -> searchEngine.search(userCommand, this::download));
   }
   
   private void download(final SearchResponse searchResponse) {
@@ -52,66 +86,166 @@ public class Downloader {
     if (!searchResponse.getFound()) {
       return;
     }
-    final DownloadRequest downloadRequest = DownloadRequest.newBuilder().setFilename(searchResponse.getFilename()).build();
-    final ManagedChannel channel = ManagedChannelBuilder.forAddress(searchResponse.getHostAddress(), port).usePlaintext(true).build();
-    final NeelaGrpc.NeelaBlockingStub blockingStub = NeelaGrpc.newBlockingStub(channel);
+    final String filename = searchResponse.getFilename();
+    final String host = searchResponse.getHostAddress();
+    final NeelaGrpc.NeelaBlockingStub blockingStub = NeelaGrpc.newBlockingStub(peerChannelPool.channelFor(host));
 
     try {
-      Iterator<DownloadResponse> it = blockingStub.download(downloadRequest);
-      persist(downloadRequest.getFilename(),it);
+      final ManifestRequest manifestRequest = ManifestRequest.newBuilder().setFilename(filename).build();
+      final FileManifest manifest = peerChannelPool.callHedged(host, NeelaGrpc.METHOD_MANIFEST, channel -> NeelaGrpc.newFutureStub(channel).manifest(manifestRequest));
+      final List<Chunk> chunks = remoteChunks(host, filename);
+      if (chunkStore.holds(filename, chunks)) {
+        final String msg = filename + " is already shared with the same content; nothing to download";
+        System.out.println(msg);
+        LOGGER.info(msg);
+        return;
+      }
+      persist(blockingStub, host, PartialDownload.open(sharedLocation, manifest), chunks);
+    } catch (IOException|StatusRuntimeException e) {
+      LOGGER.error("Error downloading {} from {}, {}", filename, host, e);
+      System.out.println("Downloading of " + filename + " failed: " + e.getMessage());
+    }
+  }
+
+  private List<Chunk> remoteChunks(final String host, final String filename) {
+    try {
+      final ManifestRequest manifestRequest = ManifestRequest.newBuilder().setFilename(filename).build();
+      return peerChannelPool.callHedged(host, NeelaGrpc.METHOD_CHUNKS, channel -> NeelaGrpc.newFutureStub(channel).chunks(manifestRequest)).getChunksList();
     } catch (StatusRuntimeException e) {
-      LOGGER.error("Error downloading {} from {}, {}", downloadRequest, searchResponse.getHostAddress(), e);
-    } finally {
-      try {
-        channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
+      LOGGER.warn("No chunk list of {} from {}; fetching all of it, {}", filename, host, e);
+      return Collections.emptyList();
+    }
+  }
+
+  private void persist(final NeelaGrpc.NeelaBlockingStub blockingStub, final String host, final PartialDownload partialDownload, final List<Chunk> chunks) throws IOException {
+    final FileManifest manifest = partialDownload.getManifest();
+    try {
+      chunkStore.reuse(partialDownload, chunks, range -> fetchChunk(blockingStub, host, manifest.getFilename(), range));
+      for (int attempt = 0; attempt <= MAX_REFETCH_ATTEMPTS && !partialDownload.isComplete(); attempt++) {
+        if (attempt > 0) {
+          LOGGER.warn("Re-fetching {} missing/corrupt pieces of {}, attempt {}", partialDownload.missingPieces().size(), manifest.getFilename(), attempt);
+        }
+        fetchMissingPieces(blockingStub, host, partialDownload);
       }
+      final Path path = chunkStore.deduplicate(partialDownload.commit());
+      final String msg = "Downloading of " + manifest.getFilename() + " complete; verified and saved as " + path;
+      System.out.println(msg);
+      LOGGER.info(msg);
+    } catch (IOException|RuntimeException e) {
+      partialDownload.close();
+      System.out.println("Downloading of " + manifest.getFilename() + " interrupted; download it again to resume");
+      throw e;
     }
   }
-  
-  public void streamResponse(final DownloadRequest downloadRequest, StreamObserver<DownloadResponse> responseObserver) {
-    LOGGER.info("Processing downloadRequest {}",  downloadRequest);
-    try (final Stream<String> stream = Files.lines(Paths.get(sharedLocation + "/" + downloadRequest.getFilename()))) {
-      stream.map(line -> constructResponse(downloadRequest, line))
-            .forEach(responseObserver::onNext);
-    } catch (IOException e) {
-      LOGGER.error("Error reading file {}, {}", downloadRequest, e);
-      throw new RuntimeException(e);
+
+  private void fetchMissingPieces(final NeelaGrpc.NeelaBlockingStub blockingStub, final String host, final PartialDownload partialDownload) throws IOException {
+    final FileManifest manifest = partialDownload.getManifest();
+    final List<Integer> missingPieces = partialDownload.missingPieces();
+    int first = 0;
+    for (int i = 1; i <= missingPieces.size(); i++) {
+      if (i == missingPieces.size() || missingPieces.get(i) != missingPieces.get(i - 1) + 1) {
+        final long offset = ManifestStore.pieceOffset(manifest, missingPieces.get(first));
+        final long end = ManifestStore.pieceOffset(manifest, missingPieces.get(i - 1)) + ManifestStore.pieceLength(manifest, missingPieces.get(i - 1));
+        fetchRange(blockingStub, host, partialDownload, offset, end - offset);
+        first = i;
+      }
     }
   }
 
-  private DownloadResponse constructResponse(final DownloadRequest downloadRequest, final String line) {
-    return DownloadResponse.newBuilder()
-                           .setFilename(downloadRequest.getFilename())
-                           .setContent(line)
-                           .build();
+  private void fetchRange(final NeelaGrpc.NeelaBlockingStub blockingStub, final String host, final PartialDownload partialDownload, final long offset, final long length) throws IOException {
+    final String filename = partialDownload.getManifest().getFilename();
+    final DownloadRequest downloadRequest = DownloadRequest.newBuilder()
+                                                           .setFilename(filename)
+                                                           .setOffset(offset)
+                                                           .setLength(length)
+                                                           .addAllAcceptedCompression(TransferCompression.ACCEPTED)
+                                                           .build();
+    final PieceHasher hasher = partialDownload.newHasher(offset, index -> LOGGER.warn("Piece {} of {} from {} is corrupt", index, filename, host));
+    final long startedAt = System.nanoTime();
+    long received = 0;
+    long transferred = 0;
+    try {
+      final Iterator<DownloadResponse> it = blockingStub.download(downloadRequest);
+      while (it.hasNext()) {
+        final DownloadResponse response = it.next();
+        final ByteString content = TransferCompression.contentOf(response);
+        partialDownload.write(response.getOffset(), content, hasher);
+        received += content.size();
+        transferred += response.getContent().size();
+      }
+      peerHealth.recordTransfer(host, received, System.nanoTime() - startedAt);
+      LOGGER.info("Received {} bytes of {} from {} as {} bytes", received, filename, host, transferred);
+    } catch (StatusRuntimeException|IllegalStateException|ZipException e) {
+      LOGGER.error("Error downloading {} from {}, {}", downloadRequest, host, e);
+    }
   }
   
-  private void persist(final String filename, final Iterator<DownloadResponse> it) {
-    if (it == null || !it.hasNext()) {
-      LOGGER.error("Empty/Null iterator!!!");
+  private Optional<ByteString> fetchChunk(final NeelaGrpc.NeelaBlockingStub blockingStub, final String host, final String filename, final Chunk range) {
+    final DownloadRequest downloadRequest = DownloadRequest.newBuilder()
+                                                           .setFilename(filename)
+                                                           .setOffset(range.getOffset())
+                                                           .setLength(range.getLength())
+                                                           .addAllAcceptedCompression(TransferCompression.ACCEPTED)
+                                                           .build();
+    try {
+      final ByteString.Output content = ByteString.newOutput(range.getLength());
+      final Iterator<DownloadResponse> it = blockingStub.download(downloadRequest);
+      while (it.hasNext()) {
+        TransferCompression.contentOf(it.next()).writeTo(content);
+      }
+      return Optional.of(content.toByteString());
+    } catch (IOException|StatusRuntimeException e) {
+      LOGGER.warn("Error fetching {} from {}, {}", downloadRequest, host, e);
+      return Optional.empty();
+    }
+  }
+  
+  // Reads run on the reader pool and sends follow the client's demand, so this returns at once
+  public void streamResponse(final DownloadRequest downloadRequest, final ServerCallStreamObserver<DownloadResponse> responseObserver) {
+    LOGGER.info("Processing downloadRequest {}",  downloadRequest);
+    final Path path = Paths.get(sharedLocation + "/" + downloadRequest.getFilename());
+    final AsynchronousFileChannel fileChannel;
+    final long size;
+    try {
+      fileChannel = AsynchronousFileChannel.open(path, EnumSet.of(StandardOpenOption.READ), readers);
+    } catch (IOException|RuntimeException e) {
+      LOGGER.error("Error opening file {}, {}", downloadRequest, e);
+      responseObserver.onError(Status.NOT_FOUND.withDescription("Unable to read " + downloadRequest.getFilename()).withCause(e).asRuntimeException());
       return;
     }
-
-    final Path path = getPathToWriteTo(sharedLocation, filename);
-    write(it, path);
-
-    final String msg = "Downloading of " + filename + " complete";
-    System.out.println(msg);
-    LOGGER.info(msg);
+    try {
+      size = fileChannel.size();
+    } catch (IOException e) {
+      LOGGER.error("Error reading file {}, {}", downloadRequest, e);
+      closeQuietly(fileChannel);
+      responseObserver.onError(Status.ABORTED.withDescription("Error reading " + downloadRequest.getFilename()).withCause(e).asRuntimeException());
+      return;
+    }
+    final long start = Math.min(downloadRequest.getOffset(), size);
+    final long end = (downloadRequest.getLength() > 0) ? Math.min(size, start + downloadRequest.getLength()) : size;
+    new DownloadStreamer(downloadRequest,
+                         path,
+                         fileChannel,
+                         start,
+                         end,
+                         transferCompression.encoder(downloadRequest.getFilename(), downloadRequest.getAcceptedCompressionList()),
+                         readBuffers,
+                         mappedRegions,
+                         responseObserver).start();
   }
 
-  private void write(final Iterator<DownloadResponse> it, final Path path) {
-    try (BufferedWriter writer = Files.newBufferedWriter(path, StandardOpenOption.CREATE_NEW)) {
-      while (it.hasNext()) {
-        writer.write(it.next().getContent() + "\n");
-      }
+  private static void closeQuietly(final AsynchronousFileChannel fileChannel) {
+    try {
+      fileChannel.close();
     } catch (IOException e) {
-      LOGGER.error("Error writing to file:{}, {}", path, e);
-      throw new RuntimeException(e);
+      LOGGER.warn("Error closing {}", fileChannel, e);
     }
   }
+
+  @PreDestroy
+  private void shutdown() {
+    readers.shutdownNow();
+  }
   
   public static Path getPathToWriteTo(final String sharedLocation, final String filename) {
     Path path = Paths.get(sharedLocation + "/" + filename);
@@ -122,8 +256,9 @@ public class Downloader {
     return path;
   }
 
-  private void validateConstructorArgs(final int port, final String sharedLocation) {
-    checkArgument(isValidPort(port), "Invalid port; out of valid range");
+  private void validateConstructorArgs(final String sharedLocation, final int chunkSize, final int readerThreads) {
     checkArgument(StringUtils.isNoneBlank(sharedLocation), "Invalid sharedLocation");
+    checkArgument(chunkSize > 0 && chunkSize <= MAX_CHUNK_SIZE, "Invalid chunkSize; out of valid range");
+    checkArgument(readerThreads > 0, "Invalid readerThreads");
   }
 }
\ No newline at end of file
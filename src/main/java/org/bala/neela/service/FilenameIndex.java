@@ -0,0 +1,58 @@
+package org.bala.neela.service;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+public class FilenameIndex {
+  private static final int GRAM_LENGTH = 3;
+
+  private final ConcurrentMap<String, Set<String>> postings = new ConcurrentHashMap<>();
+  private final Set<String> filenames = ConcurrentHashMap.newKeySet();
+
+  public void add(final String filename) {
+    if (filenames.add(filename)) {
+      grams(filename).forEach(gram -> postings.computeIfAbsent(gram, g -> ConcurrentHashMap.newKeySet()).add(filename));
+    }
+  }
+
+  public void remove(final String filename) {
+    if (filenames.remove(filename)) {
+      grams(filename).forEach(gram -> postings.computeIfPresent(gram, (g, names) -> {
+        names.remove(filename);
+        return names.isEmpty() ? null : names;
+      }));
+    }
+  }
+
+  // Every filename containing all of the literals is returned, along with a few that only share their trigrams
+  public Set<String> candidates(final Collection<String> literals) {
+    Set<String> candidates = null;
+    for (final String literal : literals) {
+      for (final String gram : grams(literal)) {
+        final Set<String> names = postings.getOrDefault(gram, new HashSet<>());
+        if (candidates == null) {
+          candidates = new HashSet<>(names);
+        } else {
+          candidates.retainAll(names);
+        }
+        if (candidates.isEmpty()) {
+          return candidates;
+        }
+      }
+    }
+    return (candidates == null) ? new HashSet<>(filenames) : candidates;
+  }
+
+  private static Set<String> grams(final String text) {
+    final String normalized = text.toLowerCase(Locale.ROOT);
+    final Set<String> grams = new HashSet<>();
+    for (int i = 0; i + GRAM_LENGTH <= normalized.length(); i++) {
+      grams.add(normalized.substring(i, i + GRAM_LENGTH));
+    }
+    return grams;
+  }
+}
@@ -0,0 +1,128 @@
+package org.bala.neela.service;
+
+import static java.util.stream.Collectors.toList;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.OptionalDouble;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.bala.neela.grpc.FindRequest;
+import org.bala.neela.grpc.MatchType;
+
+public class FilenamePattern {
+  private static final Pattern KEYWORD_SEPARATORS = Pattern.compile("[\\s._\\-]+");
+  private static final Pattern GLOB_WILDCARDS = Pattern.compile("[*?]+");
+
+  private final MatchType matchType;
+  private final String pattern;
+  private final List<String> literals;
+  private final Pattern regex;
+
+  private FilenamePattern(final MatchType matchType, final String pattern, final List<String> literals, final Pattern regex) {
+    this.matchType = matchType;
+    this.pattern = pattern;
+    this.literals = literals;
+    this.regex = regex;
+  }
+
+  /*
+   * A user pattern is taken as a regex with "re:", a prefix with "prefix:" and a glob with "glob:" or when
+   * it contains * or ?. Several words are matched as keywords and anything else as a substring.
+   */
+  public static FindRequest parse(final String userPattern) {
+    final String trimmed = userPattern.trim();
+    final FindRequest.Builder builder = FindRequest.newBuilder();
+    if (trimmed.startsWith("re:")) {
+      return builder.setMatchType(MatchType.REGEX).setPattern(trimmed.substring(3)).build();
+    } else if (trimmed.startsWith("prefix:")) {
+      return builder.setMatchType(MatchType.PREFIX).setPattern(trimmed.substring(7)).build();
+    } else if (trimmed.startsWith("glob:")) {
+      return builder.setMatchType(MatchType.GLOB).setPattern(trimmed.substring(5)).build();
+    } else if (GLOB_WILDCARDS.matcher(trimmed).find()) {
+      return builder.setMatchType(MatchType.GLOB).setPattern(trimmed).build();
+    } else if (trimmed.contains(" ")) {
+      return builder.setMatchType(MatchType.KEYWORDS).setPattern(trimmed).build();
+    }
+    return builder.setMatchType(MatchType.SUBSTRING).setPattern(trimmed).build();
+  }
+
+  public static FilenamePattern compile(final FindRequest findRequest) {
+    final String pattern = findRequest.getPattern();
+    final String normalized = pattern.toLowerCase(Locale.ROOT);
+    switch (findRequest.getMatchType()) {
+      case PREFIX:
+      case SUBSTRING:
+        return new FilenamePattern(findRequest.getMatchType(), normalized, Collections.singletonList(normalized), null);
+      case KEYWORDS:
+        return new FilenamePattern(MatchType.KEYWORDS, normalized, splitOn(KEYWORD_SEPARATORS, normalized), null);
+      case GLOB:
+        return new FilenamePattern(MatchType.GLOB, normalized, splitOn(GLOB_WILDCARDS, normalized), globToRegex(normalized));
+      case REGEX:
+        return new FilenamePattern(MatchType.REGEX, pattern, Collections.emptyList(), Pattern.compile(pattern, Pattern.CASE_INSENSITIVE));
+      default:
+        throw new PatternSyntaxException("Unsupported match type " + findRequest.getMatchType(), pattern, -1);
+    }
+  }
+
+  private static List<String> splitOn(final Pattern separators, final String text) {
+    return Arrays.stream(separators.split(text))
+                 .filter(token -> !token.isEmpty())
+                 .collect(toList());
+  }
+
+  private static Pattern globToRegex(final String glob) {
+    final StringBuilder regex = new StringBuilder();
+    for (final char c : glob.toCharArray()) {
+      if (c == '*') {
+        regex.append(".*");
+      } else if (c == '?') {
+        regex.append('.');
+      } else {
+        regex.append(Pattern.quote(String.valueOf(c)));
+      }
+    }
+    return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+  }
+
+  public List<String> getLiterals() {
+    return literals;
+  }
+
+  /*
+   * Exact matches rank above prefix matches, which rank above the rest; within each band filenames mostly
+   * covered by the pattern rank higher.
+   */
+  public OptionalDouble score(final String filename) {
+    final String normalized = filename.toLowerCase(Locale.ROOT);
+    final int matchedLength;
+    switch (matchType) {
+      case PREFIX:
+        matchedLength = normalized.startsWith(pattern) ? pattern.length() : -1;
+        break;
+      case SUBSTRING:
+        matchedLength = normalized.contains(pattern) ? pattern.length() : -1;
+        break;
+      case KEYWORDS:
+        matchedLength = literals.stream().allMatch(normalized::contains) ? literals.stream().mapToInt(String::length).sum() : -1;
+        break;
+      case GLOB:
+        matchedLength = regex.matcher(filename).matches() ? literals.stream().mapToInt(String::length).sum() : -1;
+        break;
+      default:
+        final Matcher matcher = regex.matcher(filename);
+        matchedLength = matcher.find() ? matcher.end() - matcher.start() : -1;
+        break;
+    }
+    if (matchedLength < 0) {
+      return OptionalDouble.empty();
+    }
+    final double coverage = filename.isEmpty() ? 0 : Math.min(1.0, (double) matchedLength / filename.length());
+    final double band = normalized.equals(pattern) ? 2 : (!literals.isEmpty() && normalized.startsWith(literals.get(0))) ? 1 : 0;
+    return OptionalDouble.of(band + coverage);
+  }
+}
@@ -0,0 +1,15 @@
+package org.bala.neela.service;
+
+public enum FsyncPolicy {
+  NEVER,
+  ON_COMPLETE,
+  EVERY_FLUSH;
+
+  public boolean syncOnFlush() {
+    return this == EVERY_FLUSH;
+  }
+
+  public boolean syncOnComplete() {
+    return this != NEVER;
+  }
+}
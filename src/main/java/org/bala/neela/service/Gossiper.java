@@ -0,0 +1,201 @@
+package org.bala.neela.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.bala.neela.grpc.GossipMessage;
+import org.bala.neela.grpc.NeelaGrpc;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+
+/*
+ * One protocol period probes one member, in a shuffled round robin. A member that does not answer is probed
+ * indirectly through a few others before it is suspected, so one bad link does not get a live peer declared
+ * dead. Whatever the cluster size, a period costs a bounded number of small messages.
+ */
+public class Gossiper {
+  private static final Logger LOGGER = LoggerFactory.getLogger(Gossiper.class);
+
+  private final Membership membership;
+  private final PeerChannelPool peerChannelPool;
+  private final PeerHealth peerHealth;
+  private final long intervalMillis;
+  private final int indirectProbes;
+  private final int maxUpdatesPerMessage;
+  private final Deque<String> probeOrder = new ArrayDeque<>();
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+    final Thread thread = new Thread(r, "gossiper");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  public Gossiper(final Membership membership,
+                  final PeerChannelPool peerChannelPool,
+                  final PeerHealth peerHealth,
+                  final long intervalMillis,
+                  final int indirectProbes,
+                  final int maxUpdatesPerMessage) {
+    checkArgument(intervalMillis > 0, "Invalid intervalMillis");
+    checkArgument(indirectProbes >= 0, "Invalid indirectProbes");
+    checkArgument(maxUpdatesPerMessage > 0, "Invalid maxUpdatesPerMessage");
+
+    this.membership = requireNonNull(membership);
+    this.peerChannelPool = requireNonNull(peerChannelPool);
+    this.peerHealth = requireNonNull(peerHealth);
+    this.intervalMillis = intervalMillis;
+    this.indirectProbes = indirectProbes;
+    this.maxUpdatesPerMessage = maxUpdatesPerMessage;
+  }
+
+  @PostConstruct
+  private void start() {
+    scheduler.scheduleWithFixedDelay(this::round, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  private void round() {
+    try {
+      // Membership alone decides who is dead; what our calls saw of a peer goes with it
+      membership.expire().forEach(peerHealth::forget);
+      final String target = nextProbeTarget();
+      if (target != null) {
+        probe(target);
+      }
+    } catch (RuntimeException e) {
+      LOGGER.error("Error in gossip round", e);
+    }
+  }
+
+  private String nextProbeTarget() {
+    if (probeOrder.isEmpty()) {
+      final List<String> targets = membership.probeTargets();
+      Collections.shuffle(targets);
+      probeOrder.addAll(targets);
+    }
+    return probeOrder.poll();
+  }
+
+  private void probe(final String target) {
+    Futures.addCallback(ping(target, ""), new FutureCallback<GossipMessage>() {
+      @Override
+      public void onSuccess(final GossipMessage reply) {
+        received(reply);
+      }
+
+      @Override
+      public void onFailure(final Throwable t) {
+        LOGGER.debug("Peer {} did not answer a direct probe, {}", target, t.toString());
+        probeIndirectly(target);
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  private void probeIndirectly(final String target) {
+    final List<String> helpers = membership.probeTargets();
+    helpers.remove(target);
+    Collections.shuffle(helpers);
+    final List<String> chosen = helpers.subList(0, Math.min(indirectProbes, helpers.size()));
+    if (chosen.isEmpty()) {
+      membership.suspect(target);
+      return;
+    }
+    final AtomicInteger outstanding = new AtomicInteger(chosen.size());
+    for (final String helper : chosen) {
+      Futures.addCallback(ping(helper, target), new FutureCallback<GossipMessage>() {
+        @Override
+        public void onSuccess(final GossipMessage reply) {
+          received(reply);
+          if (reply.getAcked()) {
+            outstanding.set(-1);
+          } else {
+            onFailure(null);
+          }
+        }
+
+        @Override
+        public void onFailure(final Throwable t) {
+          if (outstanding.decrementAndGet() == 0) {
+            LOGGER.info("Peer {} did not answer {} indirect probes; suspecting it", target, chosen.size());
+            membership.suspect(target);
+          }
+        }
+      }, MoreExecutors.directExecutor());
+    }
+  }
+
+  private ListenableFuture<GossipMessage> ping(final String host, final String probeTarget) {
+    final GossipMessage message = newMessage().setProbeTarget(probeTarget).build();
+    final NeelaGrpc.NeelaFutureStub stub = NeelaGrpc.newFutureStub(peerChannelPool.channelFor(host));
+    try {
+      // A relayed probe has to outlive the probe the helper makes on our behalf
+      return isNotBlank(probeTarget) ? stub.withDeadlineAfter(2 * intervalMillis, TimeUnit.MILLISECONDS).gossip(message) : stub.gossip(message);
+    } catch (StatusRuntimeException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
+  private GossipMessage.Builder newMessage() {
+    return GossipMessage.newBuilder()
+                        .setSender(membership.self())
+                        .addAllUpdates(membership.nextUpdates(maxUpdatesPerMessage));
+  }
+
+  private void received(final GossipMessage message) {
+    if (message.hasSender()) {
+      membership.apply(message.getSender());
+    }
+    membership.applyAll(message.getUpdatesList());
+  }
+
+  public void gossip(final GossipMessage request, final StreamObserver<GossipMessage> responseObserver) {
+    received(request);
+    if (!isNotBlank(request.getProbeTarget())) {
+      responseObserver.onNext(newMessage().setAcked(true).build());
+      responseObserver.onCompleted();
+      return;
+    }
+    Futures.addCallback(ping(request.getProbeTarget(), ""), new FutureCallback<GossipMessage>() {
+      @Override
+      public void onSuccess(final GossipMessage reply) {
+        received(reply);
+        respond(true);
+      }
+
+      @Override
+      public void onFailure(final Throwable t) {
+        respond(false);
+      }
+
+      private void respond(final boolean acked) {
+        responseObserver.onNext(newMessage().setAcked(acked).build());
+        responseObserver.onCompleted();
+      }
+    }, MoreExecutors.directExecutor());
+  }
+}
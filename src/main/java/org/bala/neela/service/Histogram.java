@@ -0,0 +1,76 @@
+package org.bala.neela.service;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * A lock free log-linear histogram in the manner of HdrHistogram. Each power of two range of values is split
+ * into the same number of linear sub-buckets, so every value is reported within 1/64 of itself whatever its
+ * magnitude, from nanosecond latencies to transfer rates, in a fixed 30 KB of counters.
+ */
+public class Histogram {
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int HALF = SUB_BUCKETS / 2;
+  private static final int MAX_SHIFT = Long.SIZE - SUB_BUCKET_BITS;
+
+  private final AtomicLongArray counts = new AtomicLongArray((MAX_SHIFT + 1) * HALF + HALF);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+  public void record(final long value) {
+    final long recorded = Math.max(0, value);
+    counts.incrementAndGet(indexOf(recorded));
+    count.increment();
+    sum.add(recorded);
+    max.accumulate(recorded);
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getSum() {
+    return sum.sum();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  // The highest value equivalent to the one at the given quantile, never above the largest value recorded
+  public long valueAt(final double quantile) {
+    final long total = getCount();
+    if (total == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+    long seen = 0;
+    for (int index = 0; index < counts.length(); index++) {
+      seen += counts.get(index);
+      if (seen >= rank) {
+        return Math.min(highestEquivalent(index), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  static int indexOf(final long value) {
+    final int shift = Long.SIZE - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    if (shift <= 0) {
+      return (int) value;
+    }
+    return shift * HALF + (int) (value >>> shift);
+  }
+
+  static long highestEquivalent(final int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    final int shift = index / HALF - 1;
+    final long subBucket = index - shift * HALF;
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
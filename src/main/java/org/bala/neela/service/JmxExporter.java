@@ -0,0 +1,48 @@
+package org.bala.neela.service;
+
+import static java.util.Objects.requireNonNull;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * Publishes the metrics as one MXBean attribute, a table of series to values, for jconsole and JMX scrapers.
+ */
+public class JmxExporter implements MetricsMXBean {
+  private static final Logger LOGGER = LoggerFactory.getLogger(JmxExporter.class);
+  public static final String OBJECT_NAME = "org.bala.neela:type=Metrics";
+
+  private final Metrics metrics;
+
+  public JmxExporter(final Metrics metrics) {
+    this.metrics = requireNonNull(metrics);
+  }
+
+  @PostConstruct
+  private void register() throws JMException {
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+    LOGGER.info("Metrics registered with JMX as {}", OBJECT_NAME);
+  }
+
+  @PreDestroy
+  private void unregister() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+    } catch (JMException e) {
+      LOGGER.warn("Unable to unregister {}, {}", OBJECT_NAME, e);
+    }
+  }
+
+  @Override
+  public Map<String, Double> getMetrics() {
+    return metrics.snapshot();
+  }
+}
@@ -0,0 +1,155 @@
+package org.bala.neela.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.bala.neela.grpc.FileManifest;
+
+import com.google.protobuf.ByteString;
+
+public class ManifestStore {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ManifestStore.class);
+  public static final String ALGORITHM = "SHA-256";
+  private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+  private final String sharedLocation;
+  private final int pieceSize;
+  private final ConcurrentMap<Path, CachedManifest> manifests = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Path, Object> computing = new ConcurrentHashMap<>();
+
+  public ManifestStore(final String sharedLocation, final int pieceSize) {
+    checkArgument(isNotBlank(sharedLocation), "Invalid sharedLocation");
+    checkArgument(pieceSize > 0, "Invalid pieceSize");
+
+    this.sharedLocation = sharedLocation.trim();
+    this.pieceSize = pieceSize;
+  }
+
+  public FileManifest getManifest(final String filename) throws IOException {
+    final Path path = Paths.get(sharedLocation + "/" + filename);
+    final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    final CachedManifest cached = manifests.get(path);
+    if (cached != null && cached.isCurrent(attributes)) {
+      return cached.manifest;
+    }
+    // Concurrent requests for the same file, e.g. a hedged Manifest call, wait for one computation
+    final Object lock = computing.computeIfAbsent(path, p -> new Object());
+    try {
+      synchronized (lock) {
+        final CachedManifest computed = manifests.get(path);
+        if (computed != null && computed.isCurrent(attributes)) {
+          return computed.manifest;
+        }
+        final FileManifest manifest = computeManifest(filename, path);
+        manifests.put(path, new CachedManifest(attributes, manifest));
+        return manifest;
+      }
+    } finally {
+      computing.remove(path, lock);
+    }
+  }
+
+  private FileManifest computeManifest(final String filename, final Path path) throws IOException {
+    LOGGER.info("Computing manifest of {}", path);
+    final FileManifest.Builder builder = FileManifest.newBuilder()
+                                                     .setFilename(filename)
+                                                     .setPieceSize(pieceSize)
+                                                     .setAlgorithm(ALGORITHM);
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    final MessageDigest digest = newDigest();
+    long size = 0;
+    long pieceRemaining = pieceSize;
+    try (final FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+      while (fileChannel.read(buffer) >= 0 || buffer.position() > 0) {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+          final int length = (int) Math.min(buffer.remaining(), pieceRemaining);
+          final ByteBuffer slice = buffer.duplicate();
+          slice.limit(slice.position() + length);
+          digest.update(slice);
+          buffer.position(buffer.position() + length);
+          size += length;
+          pieceRemaining -= length;
+          if (pieceRemaining == 0) {
+            builder.addPieceDigests(ByteString.copyFrom(digest.digest()));
+            pieceRemaining = pieceSize;
+          }
+        }
+        buffer.clear();
+      }
+    }
+    if (pieceRemaining < pieceSize) {
+      builder.addPieceDigests(ByteString.copyFrom(digest.digest()));
+    }
+    return builder.setSize(size)
+                  .setRootDigest(rootDigest(builder.getPieceDigestsList()))
+                  .build();
+  }
+
+  public static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public static ByteString rootDigest(final List<ByteString> pieceDigests) {
+    final MessageDigest digest = newDigest();
+    pieceDigests.forEach(pieceDigest -> digest.update(pieceDigest.asReadOnlyByteBuffer()));
+    return ByteString.copyFrom(digest.digest());
+  }
+
+  public static int pieceCount(final FileManifest manifest) {
+    return manifest.getPieceDigestsCount();
+  }
+
+  public static long pieceOffset(final FileManifest manifest, final int index) {
+    return (long) index * manifest.getPieceSize();
+  }
+
+  public static int pieceLength(final FileManifest manifest, final int index) {
+    return (int) Math.min(manifest.getPieceSize(), manifest.getSize() - pieceOffset(manifest, index));
+  }
+
+  public static boolean isConsistent(final FileManifest manifest) {
+    final long expectedPieces = (manifest.getSize() + manifest.getPieceSize() - 1) / Math.max(1, manifest.getPieceSize());
+    return manifest.getPieceSize() > 0
+        && ALGORITHM.equals(manifest.getAlgorithm())
+        && manifest.getPieceDigestsCount() == expectedPieces
+        && rootDigest(manifest.getPieceDigestsList()).equals(manifest.getRootDigest());
+  }
+
+  private static final class CachedManifest {
+    private final long size;
+    private final long lastModified;
+    private final FileManifest manifest;
+
+    private CachedManifest(final BasicFileAttributes attributes, final FileManifest manifest) {
+      this.size = attributes.size();
+      this.lastModified = attributes.lastModifiedTime().toMillis();
+      this.manifest = manifest;
+    }
+
+    private boolean isCurrent(final BasicFileAttributes attributes) {
+      return size == attributes.size() && lastModified == attributes.lastModifiedTime().toMillis();
+    }
+  }
+}
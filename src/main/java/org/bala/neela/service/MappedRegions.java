@@ -0,0 +1,135 @@
+package org.bala.neela.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Optional;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+/*
+ * Bounds the file regions mapped to serve downloads: at most maxLeases of them, each at most maxRegionSize
+ * bytes, are mapped at once across all downloads. A lease is taken without waiting, and a download that finds
+ * none reads through its buffers instead. A released region is unmapped at once, so what is sent from it must
+ * have been serialized by then: Netty does so within onNext, while a transport that hands messages over as they
+ * are, like the in-process one, needs copyOnSend.
+ */
+public class MappedRegions {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MappedRegions.class);
+
+  private final long minFileSize;
+  private final int maxRegionSize;
+  private final boolean copyOnSend;
+  private final Semaphore leases;
+  private final AtomicInteger mapped = new AtomicInteger();
+
+  public MappedRegions(final long minFileSize, final int maxRegionSize, final int maxLeases, final boolean copyOnSend) {
+    checkArgument(minFileSize >= 0, "Invalid minFileSize");
+    checkArgument(maxRegionSize > 0, "Invalid maxRegionSize");
+    checkArgument(maxLeases > 0, "Invalid maxLeases");
+
+    this.minFileSize = minFileSize;
+    this.maxRegionSize = maxRegionSize;
+    this.copyOnSend = copyOnSend;
+    this.leases = new Semaphore(maxLeases);
+  }
+
+  public boolean shouldMap(final long fileSize) {
+    return fileSize >= minFileSize;
+  }
+
+  public int getMaxRegionSize() {
+    return maxRegionSize;
+  }
+
+  // Regions mapped and not yet unmapped
+  public int getMappedRegions() {
+    return mapped.get();
+  }
+
+  // The content of a message sent from a view of a leased region
+  public ByteString content(final ByteBuffer view) {
+    return copyOnSend ? ByteString.copyFrom(view) : UnsafeByteOperations.unsafeWrap(view);
+  }
+
+  public Optional<Lease> tryLease(final FileChannel fileChannel, final long position, final long size) throws IOException {
+    checkArgument(size > 0 && size <= maxRegionSize, "Invalid region size");
+    if (!leases.tryAcquire()) {
+      LOGGER.debug("No mapped region available; falling back to buffered reads");
+      return Optional.empty();
+    }
+    try {
+      final MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, size);
+      mapped.incrementAndGet();
+      return Optional.of(new Lease(buffer, position));
+    } catch (IOException|RuntimeException e) {
+      leases.release();
+      throw e;
+    }
+  }
+
+  public final class Lease implements AutoCloseable {
+    private final long position;
+    private MappedByteBuffer buffer;
+
+    private Lease(final MappedByteBuffer buffer, final long position) {
+      this.buffer = buffer;
+      this.position = position;
+    }
+
+    public MappedByteBuffer getBuffer() {
+      return buffer;
+    }
+
+    // Offset in the file of the region's first byte
+    public long getPosition() {
+      return position;
+    }
+
+    public long getEnd() {
+      return position + buffer.capacity();
+    }
+
+    @Override
+    public void close() {
+      if (buffer != null) {
+        if (unmap(buffer)) {
+          mapped.decrementAndGet();
+        }
+        buffer = null;
+        leases.release();
+      }
+    }
+  }
+
+  /*
+   * Unmaps eagerly rather than waiting for the buffer to be garbage collected, so that the address space
+   * is handed back as soon as the lease is released. Callers must not hold on to any view of the buffer.
+   */
+  private static boolean unmap(final MappedByteBuffer buffer) {
+    try {
+      final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      final Object cleaner = cleanerMethod.invoke(buffer);
+      if (cleaner != null) {
+        final Method cleanMethod = cleaner.getClass().getMethod("clean");
+        cleanMethod.setAccessible(true);
+        cleanMethod.invoke(cleaner);
+      }
+      return true;
+    } catch (ReflectiveOperationException|RuntimeException e) {
+      LOGGER.warn("Unable to unmap eagerly; leaving it to the garbage collector", e);
+      return false;
+    }
+  }
+}
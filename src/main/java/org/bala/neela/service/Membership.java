@@ -0,0 +1,192 @@
+package org.bala.neela.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.stream.Collectors.toList;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.bala.neela.grpc.PeerInfo;
+import org.bala.neela.grpc.PeerRegister;
+import org.bala.neela.grpc.PeerState;
+
+/*
+ * SWIM style membership: every member carries an incarnation number that only the member itself bumps,
+ * to refute suspicion. Updates are ordered by (incarnation, ALIVE < SUSPECT < DEAD), and each change is
+ * queued for piggybacking on a bounded number of gossip messages rather than shipping the whole register.
+ */
+public class Membership {
+  private static final Logger LOGGER = LoggerFactory.getLogger(Membership.class);
+
+  private final String selfAddress;
+  private final int retransmitMultiplier;
+  private final long suspicionTimeoutMillis;
+  private final long deadRetentionMillis;
+  private final Map<String, Member> members = new HashMap<>();
+  private final Map<String, Integer> transmissions = new HashMap<>();
+  // Starting from the clock means a restarted peer always outranks what others remember of its previous run
+  private long incarnation = System.currentTimeMillis();
+  private volatile PeerRegister peerRegister;
+
+  public Membership(final String selfAddress, final int retransmitMultiplier, final long suspicionTimeoutMillis, final long deadRetentionMillis) {
+    checkArgument(isNotBlank(selfAddress), "Invalid selfAddress");
+    checkArgument(retransmitMultiplier > 0, "Invalid retransmitMultiplier");
+    checkArgument(suspicionTimeoutMillis >= 0, "Invalid suspicionTimeoutMillis");
+    checkArgument(deadRetentionMillis >= 0, "Invalid deadRetentionMillis");
+
+    this.selfAddress = selfAddress.trim();
+    this.retransmitMultiplier = retransmitMultiplier;
+    this.suspicionTimeoutMillis = suspicionTimeoutMillis;
+    this.deadRetentionMillis = deadRetentionMillis;
+  }
+
+  public String getSelfAddress() {
+    return selfAddress;
+  }
+
+  public synchronized PeerInfo self() {
+    return PeerInfo.newBuilder().setHostAddress(selfAddress).setIncarnation(incarnation).setState(PeerState.ALIVE).build();
+  }
+
+  // Locally configured hosts are only contact points; they are probed but not gossiped until they answer
+  public synchronized void seed(final Collection<String> hosts) {
+    hosts.stream()
+         .filter(host -> isNotBlank(host) && !host.equals(selfAddress) && !members.containsKey(host))
+         .forEach(host -> members.put(host, new Member(PeerInfo.newBuilder().setHostAddress(host).build())));
+    peerRegister = null;
+  }
+
+  public synchronized boolean apply(final PeerInfo update) {
+    final String host = update.getHostAddress();
+    if (!isNotBlank(host)) {
+      return false;
+    }
+    if (host.equals(selfAddress)) {
+      return refute(update);
+    }
+    final Member current = members.get(host);
+    if (current != null && !overrides(update, current.info)) {
+      return false;
+    }
+    if (current == null || current.info.getState() != update.getState()) {
+      LOGGER.info("Peer {} is now {} (incarnation {})", host, update.getState(), update.getIncarnation());
+    }
+    members.put(host, new Member(update));
+    transmissions.put(host, 0);
+    peerRegister = null;
+    return true;
+  }
+
+  public void applyAll(final Collection<PeerInfo> updates) {
+    updates.forEach(this::apply);
+  }
+
+  public synchronized void suspect(final String host) {
+    final Member current = members.get(host);
+    if (current != null && current.info.getState() == PeerState.ALIVE) {
+      apply(current.info.toBuilder().setState(PeerState.SUSPECT).build());
+    }
+  }
+
+  // Suspects that were not refuted in time are declared dead; the dead are remembered long enough to gossip it
+  public synchronized List<String> expire() {
+    final long now = System.currentTimeMillis();
+    final List<String> removed = new ArrayList<>();
+    for (final Member member : new ArrayList<>(members.values())) {
+      final PeerInfo info = member.info;
+      if (info.getState() == PeerState.SUSPECT && now - member.changedAt >= suspicionTimeoutMillis) {
+        apply(info.toBuilder().setState(PeerState.DEAD).build());
+      } else if (info.getState() == PeerState.DEAD && now - member.changedAt >= deadRetentionMillis) {
+        members.remove(info.getHostAddress());
+        transmissions.remove(info.getHostAddress());
+        removed.add(info.getHostAddress());
+      }
+    }
+    return removed;
+  }
+
+  // The updates gossiped the fewest times go first; each is dropped after about multiplier * ln(N) sends
+  public synchronized List<PeerInfo> nextUpdates(final int maxUpdates) {
+    final int retransmitLimit = (int) Math.ceil(retransmitMultiplier * Math.log(members.size() + 2));
+    final List<String> hosts = transmissions.entrySet()
+                                            .stream()
+                                            .sorted(Comparator.comparing(Map.Entry::getValue))
+                                            .limit(maxUpdates)
+                                            .map(Map.Entry::getKey)
+                                            .collect(toList());
+    final List<PeerInfo> updates = new ArrayList<>(hosts.size());
+    for (final String host : hosts) {
+      final int sent = transmissions.get(host) + 1;
+      if (sent >= retransmitLimit) {
+        transmissions.remove(host);
+      } else {
+        transmissions.put(host, sent);
+      }
+      updates.add(host.equals(selfAddress) ? self() : members.get(host).info);
+    }
+    return updates;
+  }
+
+  public synchronized List<String> probeTargets() {
+    return members.values()
+                  .stream()
+                  .filter(member -> member.info.getState() != PeerState.DEAD)
+                  .map(member -> member.info.getHostAddress())
+                  .collect(toList());
+  }
+
+  // Rebuilt only after membership has changed, so the many readers of the register share one instance
+  public PeerRegister getPeerRegister() {
+    final PeerRegister current = peerRegister;
+    return (current != null) ? current : snapshot();
+  }
+
+  private boolean refute(final PeerInfo update) {
+    if (update.getState() == PeerState.ALIVE || update.getIncarnation() < incarnation) {
+      return false;
+    }
+    LOGGER.warn("Refuting {} rumour about this peer at incarnation {}", update.getState(), update.getIncarnation());
+    incarnation = update.getIncarnation() + 1;
+    transmissions.put(selfAddress, 0);
+    peerRegister = null;
+    return true;
+  }
+
+  private synchronized PeerRegister snapshot() {
+    if (peerRegister == null) {
+      peerRegister = PeerRegister.newBuilder()
+                                 .addKnownPeers(self())
+                                 .addAllKnownPeers(members.values()
+                                                          .stream()
+                                                          .map(member -> member.info)
+                                                          .filter(info -> info.getState() != PeerState.DEAD)
+                                                          .collect(toList()))
+                                 .build();
+    }
+    return peerRegister;
+  }
+
+  private static boolean overrides(final PeerInfo update, final PeerInfo current) {
+    if (update.getIncarnation() != current.getIncarnation()) {
+      return update.getIncarnation() > current.getIncarnation();
+    }
+    return update.getState().getNumber() > current.getState().getNumber();
+  }
+
+  private static final class Member {
+    private final PeerInfo info;
+    private final long changedAt = System.currentTimeMillis();
+
+    private Member(final PeerInfo info) {
+      this.info = info;
+    }
+  }
+}
@@ -0,0 +1,169 @@
+package org.bala.neela.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Counters, gauges and histograms of RPCs, transfers and searches, each series named by its family and an
+ * ordered list of label pairs. Recording is lock free; exporters take a consistent enough snapshot through
+ * samples(), in which a histogram becomes a Prometheus style summary of quantiles, sum and count.
+ */
+public class Metrics {
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+  public enum Type { COUNTER, GAUGE, SUMMARY }
+
+  public enum Family {
+    RPC_CALLS("neela_rpc_calls_total", Type.COUNTER, 1, "RPCs completed, by side, method and status code"),
+    RPC_IN_FLIGHT("neela_rpc_in_flight", Type.GAUGE, 1, "RPCs started and not yet completed, by side and method"),
+    RPC_LATENCY("neela_rpc_latency_seconds", Type.SUMMARY, 1e-9, "RPC latency from start to close, by side and method"),
+    RPC_BYTES("neela_rpc_bytes_total", Type.COUNTER, 1, "Serialized message bytes, by side, method and direction"),
+    TRANSFER_RATE("neela_transfer_bytes_per_second", Type.SUMMARY, 1, "Rate of streaming RPCs carrying file content, by side and method"),
+    SEARCH_FANOUT("neela_search_fanout_peers", Type.SUMMARY, 1, "Peers asked by a search that fell back to asking every peer"),
+    SEARCH_FIRST_HIT("neela_search_first_hit_seconds", Type.SUMMARY, 1e-9, "Time from the start of a search fan-out to its first holder");
+
+    private final String name;
+    private final Type type;
+    private final double scale;
+    private final String help;
+
+    private Family(final String name, final Type type, final double scale, final String help) {
+      this.name = name;
+      this.type = type;
+      this.scale = scale;
+      this.help = help;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public Type getType() {
+      return type;
+    }
+
+    public String getHelp() {
+      return help;
+    }
+  }
+
+  private final ConcurrentMap<Series, LongAdder> counters = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Series, AtomicLong> gauges = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Series, Histogram> histograms = new ConcurrentHashMap<>();
+
+  public void increment(final Family family, final long delta, final String... labels) {
+    counter(family, labels).add(delta);
+  }
+
+  // For hot paths, which hold on to the counter rather than look it up for every increment
+  LongAdder counter(final Family family, final String... labels) {
+    checkArgument(family.type == Type.COUNTER, "Not a counter: " + family);
+    return counters.computeIfAbsent(new Series(family, labels), series -> new LongAdder());
+  }
+
+  public void adjust(final Family family, final long delta, final String... labels) {
+    checkArgument(family.type == Type.GAUGE, "Not a gauge: " + family);
+    gauges.computeIfAbsent(new Series(family, labels), series -> new AtomicLong()).addAndGet(delta);
+  }
+
+  public void record(final Family family, final long value, final String... labels) {
+    checkArgument(family.type == Type.SUMMARY, "Not a summary: " + family);
+    histograms.computeIfAbsent(new Series(family, labels), series -> new Histogram()).record(value);
+  }
+
+  // Every sample of every series, grouped by family in declaration order
+  public List<Sample> samples() {
+    final List<Sample> samples = new ArrayList<>();
+    counters.forEach((series, counter) -> samples.add(new Sample(series, "", series.labels, counter.sum())));
+    gauges.forEach((series, gauge) -> samples.add(new Sample(series, "", series.labels, gauge.get())));
+    histograms.forEach((series, histogram) -> {
+      for (final double quantile : QUANTILES) {
+        samples.add(new Sample(series, "", withLabel(series.labels, "quantile", Double.toString(quantile)), histogram.valueAt(quantile) * series.family.scale));
+      }
+      samples.add(new Sample(series, "_sum", series.labels, histogram.getSum() * series.family.scale));
+      samples.add(new Sample(series, "_count", series.labels, histogram.getCount()));
+    });
+    samples.sort(Comparator.comparing((Sample sample) -> sample.series.family).thenComparing(sample -> sample.series.labels));
+    return samples;
+  }
+
+  // The samples keyed as in exposition format, for exporters that take a flat map
+  public Map<String, Double> snapshot() {
+    final Map<String, Double> snapshot = new LinkedHashMap<>();
+    samples().forEach(sample -> snapshot.put(sample.getKey(), sample.getValue()));
+    return snapshot;
+  }
+
+  private static String withLabel(final String labels, final String name, final String value) {
+    return (labels.isEmpty() ? "" : labels + ",") + name + "=\"" + value + "\"";
+  }
+
+  public static final class Sample {
+    private final Series series;
+    private final String name;
+    private final String labels;
+    private final double value;
+
+    private Sample(final Series series, final String suffix, final String labels, final double value) {
+      this.series = series;
+      this.name = series.family.name + suffix;
+      this.labels = labels;
+      this.value = value;
+    }
+
+    public Family getFamily() {
+      return series.family;
+    }
+
+    // In exposition format, e.g. neela_rpc_calls_total{side="server",method="Search",code="OK"}
+    public String getKey() {
+      return labels.isEmpty() ? name : name + "{" + labels + "}";
+    }
+
+    public double getValue() {
+      return value;
+    }
+  }
+
+  private static final class Series {
+    private final Family family;
+    private final String labels;
+
+    private Series(final Family family, final String... labels) {
+      checkArgument(labels.length % 2 == 0, "Labels must come in name, value pairs");
+      this.family = family;
+      String joined = "";
+      for (int i = 0; i < labels.length; i += 2) {
+        joined = withLabel(joined, labels[i], escape(labels[i + 1]));
+      }
+      this.labels = joined;
+    }
+
+    private static String escape(final String value) {
+      return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (!(other instanceof Series)) {
+        return false;
+      }
+      final Series series = (Series) other;
+      return family == series.family && labels.equals(series.labels);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * family.hashCode() + labels.hashCode();
+    }
+  }
+}
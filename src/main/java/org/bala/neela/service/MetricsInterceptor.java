@@ -0,0 +1,163 @@
+package org.bala.neela.service;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.protobuf.MessageLite;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall.SimpleForwardingClientCall;
+import io.grpc.ForwardingClientCallListener.SimpleForwardingClientCallListener;
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
+/*
+ * Records every RPC made or served: in-flight count, latency and status on close, and the serialized size of
+ * each message either way. A streaming call that moved at least MIN_TRANSFER_BYTES also records its rate,
+ * which makes for the transfer rates of DOWNLOAD, SWARM and UPLOAD without touching the transfers themselves.
+ */
+public class MetricsInterceptor implements ClientInterceptor, ServerInterceptor {
+  private static final long MIN_TRANSFER_BYTES = 64 * 1024;
+
+  private final Metrics metrics;
+
+  public MetricsInterceptor(final Metrics metrics) {
+    this.metrics = requireNonNull(metrics);
+  }
+
+  @Override
+  public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(final MethodDescriptor<ReqT, RespT> method, final CallOptions callOptions, final Channel next) {
+    final CallRecorder recorder = new CallRecorder("client", method);
+    final ClientCall<ReqT, RespT> call;
+    try {
+      call = next.newCall(method, callOptions);
+    } catch (StatusRuntimeException e) {
+      metrics.increment(Metrics.Family.RPC_CALLS, 1, "side", recorder.side, "method", recorder.method, "code", e.getStatus().getCode().name());
+      throw e;
+    }
+    return new SimpleForwardingClientCall<ReqT, RespT>(call) {
+      @Override
+      public void start(final Listener<RespT> responseListener, final Metadata headers) {
+        recorder.started();
+        super.start(new SimpleForwardingClientCallListener<RespT>(responseListener) {
+          @Override
+          public void onMessage(final RespT message) {
+            recorder.received(message);
+            super.onMessage(message);
+          }
+
+          @Override
+          public void onClose(final Status status, final Metadata trailers) {
+            recorder.closed(status);
+            super.onClose(status, trailers);
+          }
+        }, headers);
+      }
+
+      @Override
+      public void sendMessage(final ReqT message) {
+        recorder.sent(message);
+        super.sendMessage(message);
+      }
+    };
+  }
+
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(final ServerCall<ReqT, RespT> call, final Metadata headers, final ServerCallHandler<ReqT, RespT> next) {
+    final CallRecorder recorder = new CallRecorder("server", call.getMethodDescriptor());
+    recorder.started();
+    final ServerCall<ReqT, RespT> recorded = new SimpleForwardingServerCall<ReqT, RespT>(call) {
+      @Override
+      public void sendMessage(final RespT message) {
+        recorder.sent(message);
+        super.sendMessage(message);
+      }
+
+      @Override
+      public void close(final Status status, final Metadata trailers) {
+        recorder.closed(status);
+        super.close(status, trailers);
+      }
+    };
+    return new SimpleForwardingServerCallListener<ReqT>(next.startCall(recorded, headers)) {
+      @Override
+      public void onMessage(final ReqT message) {
+        recorder.received(message);
+        super.onMessage(message);
+      }
+
+      @Override
+      public void onCancel() {
+        recorder.closed(Status.CANCELLED);
+        super.onCancel();
+      }
+    };
+  }
+
+  private final class CallRecorder {
+    private final String side;
+    private final String method;
+    private final boolean streaming;
+    private final LongAdder bytesIn;
+    private final LongAdder bytesOut;
+    private final AtomicLong moved = new AtomicLong();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private long startedAt;
+
+    private CallRecorder(final String side, final MethodDescriptor<?, ?> methodDescriptor) {
+      this.side = side;
+      final String fullMethodName = methodDescriptor.getFullMethodName();
+      this.method = fullMethodName.substring(fullMethodName.lastIndexOf('/') + 1);
+      this.streaming = methodDescriptor.getType() != MethodDescriptor.MethodType.UNARY;
+      this.bytesIn = metrics.counter(Metrics.Family.RPC_BYTES, "side", side, "method", method, "direction", "in");
+      this.bytesOut = metrics.counter(Metrics.Family.RPC_BYTES, "side", side, "method", method, "direction", "out");
+    }
+
+    private void started() {
+      startedAt = System.nanoTime();
+      metrics.adjust(Metrics.Family.RPC_IN_FLIGHT, 1, "side", side, "method", method);
+    }
+
+    private void sent(final Object message) {
+      final int size = sizeOf(message);
+      bytesOut.add(size);
+      moved.addAndGet(size);
+    }
+
+    private void received(final Object message) {
+      final int size = sizeOf(message);
+      bytesIn.add(size);
+      moved.addAndGet(size);
+    }
+
+    private void closed(final Status status) {
+      if (!closed.compareAndSet(false, true)) {
+        return;
+      }
+      final long latencyNanos = System.nanoTime() - startedAt;
+      metrics.adjust(Metrics.Family.RPC_IN_FLIGHT, -1, "side", side, "method", method);
+      metrics.increment(Metrics.Family.RPC_CALLS, 1, "side", side, "method", method, "code", status.getCode().name());
+      metrics.record(Metrics.Family.RPC_LATENCY, latencyNanos, "side", side, "method", method);
+      if (streaming && moved.get() >= MIN_TRANSFER_BYTES && latencyNanos > 0) {
+        metrics.record(Metrics.Family.TRANSFER_RATE, (long) (moved.get() * 1e9 / latencyNanos), "side", side, "method", method);
+      }
+    }
+
+    private int sizeOf(final Object message) {
+      return (message instanceof MessageLite) ? ((MessageLite) message).getSerializedSize() : 0;
+    }
+  }
+}
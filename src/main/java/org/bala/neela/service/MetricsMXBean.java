@@ -0,0 +1,7 @@
+package org.bala.neela.service;
+
+import java.util.Map;
+
+public interface MetricsMXBean {
+  Map<String, Double> getMetrics();
+}
@@ -0,0 +1,187 @@
+package org.bala.neela.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.grpc.ManagedChannel;
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+/*
+ * The Netty transport shared by the server and the channels to other peers: one boss group accepting
+ * connections, one worker group doing the I/O of both sides and one bounded pool running the handlers,
+ * which may block on disk. The native epoll transport is used on Linux whenever netty-transport-native-epoll
+ * is on the classpath (mvn -Pepoll), NIO otherwise. The HTTP/2 window bounds what a single stream can have
+ * in flight, so it has to cover the bandwidth-delay product of the links large files cross.
+ */
+public class NettyTransport {
+  private static final Logger LOGGER = LoggerFactory.getLogger(NettyTransport.class);
+  private static final String EPOLL = "io.netty.channel.epoll.";
+  // Unanswered probes before a connection is dropped; they are spread evenly over the keepalive timeout
+  private static final int KEEPALIVE_PROBES = 3;
+
+  private final boolean epoll;
+  private final EventLoopGroup bossGroup;
+  private final EventLoopGroup workerGroup;
+  private final ExecutorService executor;
+  private final int flowControlWindow;
+  private final int maxMessageSize;
+  private final int maxConcurrentCallsPerConnection;
+  private final long keepAliveTimeMillis;
+  private final long keepAliveTimeoutMillis;
+
+  public NettyTransport(final boolean preferEpoll,
+                        final int bossThreads,
+                        final int workerThreads,
+                        final int executorThreads,
+                        final int flowControlWindow,
+                        final int maxMessageSize,
+                        final int maxConcurrentCallsPerConnection,
+                        final long keepAliveTimeMillis,
+                        final long keepAliveTimeoutMillis) {
+    checkArgument(bossThreads > 0, "Invalid bossThreads");
+    checkArgument(workerThreads >= 0, "Invalid workerThreads");
+    checkArgument(executorThreads >= 0, "Invalid executorThreads");
+    checkArgument(flowControlWindow > 0, "Invalid flowControlWindow");
+    checkArgument(maxMessageSize > 0, "Invalid maxMessageSize");
+    checkArgument(maxConcurrentCallsPerConnection > 0, "Invalid maxConcurrentCallsPerConnection");
+    checkArgument(keepAliveTimeMillis >= 0 && keepAliveTimeoutMillis >= 0, "Invalid keepalive");
+
+    this.epoll = preferEpoll && isEpollAvailable();
+    this.bossGroup = newEventLoopGroup(bossThreads, "neela-boss");
+    // Zero leaves the worker group at Netty's default of twice the number of cores
+    this.workerGroup = newEventLoopGroup(workerThreads, "neela-worker");
+    // Zero runs handlers on the event loop itself, for when none of them block
+    this.executor = (executorThreads == 0) ? null : Executors.newFixedThreadPool(executorThreads, new DefaultThreadFactory("neela-rpc", true));
+    this.flowControlWindow = flowControlWindow;
+    this.maxMessageSize = maxMessageSize;
+    this.maxConcurrentCallsPerConnection = maxConcurrentCallsPerConnection;
+    this.keepAliveTimeMillis = keepAliveTimeMillis;
+    this.keepAliveTimeoutMillis = keepAliveTimeoutMillis;
+    LOGGER.info("Using the {} transport", epoll ? "epoll" : "NIO");
+    if (keepAliveTimeMillis > 0) {
+      if (!epoll) {
+        LOGGER.warn("NIO cannot set TCP keepalive timings; the operating system's apply instead of {} ms idle and a {} ms timeout",
+                    keepAliveTimeMillis, keepAliveTimeoutMillis);
+      }
+      LOGGER.warn("The server cannot set socket options in grpc-netty 1.1; connections other peers dial to us are kept alive only by them");
+    }
+  }
+
+  public NettyServerBuilder serverBuilder(final int port) {
+    final NettyServerBuilder builder = NettyServerBuilder.forPort(port)
+                                                         .channelType(serverChannelType())
+                                                         .bossEventLoopGroup(bossGroup)
+                                                         .workerEventLoopGroup(workerGroup)
+                                                         .flowControlWindow(flowControlWindow)
+                                                         .maxMessageSize(maxMessageSize)
+                                                         .maxConcurrentCallsPerConnection(maxConcurrentCallsPerConnection);
+    return (executor == null) ? builder.directExecutor() : builder.executor(executor);
+  }
+
+  public ManagedChannel channelTo(final String host, final int port) {
+    final NettyChannelBuilder builder = NettyChannelBuilder.forAddress(host, port)
+                                                           .channelType(channelType())
+                                                           .eventLoopGroup(workerGroup)
+                                                           .flowControlWindow(flowControlWindow)
+                                                           .maxInboundMessageSize(maxMessageSize)
+                                                           .usePlaintext(true);
+    withKeepAlive(builder);
+    return ((executor == null) ? builder.directExecutor() : builder.executor(executor)).build();
+  }
+
+  /*
+   * HTTP/2 keepalive pings fail to start in grpc-netty 1.1 and its server cannot send them at all, so the
+   * connections a peer dials are kept alive by TCP instead. After keepAliveTimeMillis idle, KEEPALIVE_PROBES
+   * probes go out over keepAliveTimeoutMillis, and the connection is dropped if none is answered; a timeout
+   * of 0 leaves the probes to the operating system. Only epoll can set these timings per socket.
+   */
+  private void withKeepAlive(final NettyChannelBuilder builder) {
+    if (keepAliveTimeMillis == 0) {
+      return;
+    }
+    builder.withOption(ChannelOption.SO_KEEPALIVE, true);
+    if (epoll) {
+      builder.withOption(epollOption("TCP_KEEPIDLE"), toSeconds(keepAliveTimeMillis));
+      if (keepAliveTimeoutMillis > 0) {
+        builder.withOption(epollOption("TCP_KEEPINTVL"), toSeconds(keepAliveTimeoutMillis / KEEPALIVE_PROBES));
+        builder.withOption(epollOption("TCP_KEEPCNT"), KEEPALIVE_PROBES);
+      }
+    }
+  }
+
+  private static int toSeconds(final long millis) {
+    return (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(millis));
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    bossGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    workerGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  private static boolean isEpollAvailable() {
+    try {
+      return (Boolean) Class.forName(EPOLL + "Epoll").getMethod("isAvailable").invoke(null);
+    } catch (ReflectiveOperationException|LinkageError e) {
+      return false;
+    }
+  }
+
+  private EventLoopGroup newEventLoopGroup(final int threads, final String name) {
+    final ThreadFactory threadFactory = new DefaultThreadFactory(name, true);
+    if (!epoll) {
+      return new NioEventLoopGroup(threads, threadFactory);
+    }
+    try {
+      return (EventLoopGroup) Class.forName(EPOLL + "EpollEventLoopGroup").getConstructor(int.class, ThreadFactory.class).newInstance(threads, threadFactory);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("epoll is available but its event loop is not", e);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ChannelOption<Integer> epollOption(final String name) {
+    try {
+      return (ChannelOption<Integer>) Class.forName(EPOLL + "EpollChannelOption").getField(name).get(null);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("epoll is available but its " + name + " option is not", e);
+    }
+  }
+
+  private Class<? extends ServerChannel> serverChannelType() {
+    return epoll ? epollClass("EpollServerSocketChannel", ServerChannel.class) : NioServerSocketChannel.class;
+  }
+
+  private Class<? extends Channel> channelType() {
+    return epoll ? epollClass("EpollSocketChannel", Channel.class) : NioSocketChannel.class;
+  }
+
+  private static <T> Class<? extends T> epollClass(final String name, final Class<T> type) {
+    try {
+      return Class.forName(EPOLL + name).asSubclass(type);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException("epoll is available but " + name + " is not", e);
+    }
+  }
+}
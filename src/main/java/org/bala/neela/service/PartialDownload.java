@@ -0,0 +1,185 @@
+package org.bala.neela.service;
+
+import static java.util.stream.Collectors.toList;
+import static org.bala.neela.service.Downloader.getPathToWriteTo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.bala.neela.grpc.FileManifest;
+
+import com.google.common.io.BaseEncoding;
+import com.google.protobuf.ByteString;
+
+public class PartialDownload {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PartialDownload.class);
+
+  private final String sharedLocation;
+  private final String filename;
+  private final FileManifest manifest;
+  private final Path tempPath;
+  private final TransferState transferState;
+  private final FileChannel fileChannel;
+  private final FileLock fileLock;
+  private final BitSet verified;
+  private int uncheckpointedPieces = 0;
+
+  private PartialDownload(final String sharedLocation, final String filename, final FileManifest manifest, final Path tempPath, final TransferState transferState) throws IOException {
+    this.sharedLocation = sharedLocation;
+    this.filename = filename;
+    this.manifest = manifest;
+    this.tempPath = tempPath;
+    this.transferState = transferState;
+    this.fileChannel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.fileLock = tryLock(fileChannel, tempPath);
+    this.verified = new BitSet(ManifestStore.pieceCount(manifest));
+  }
+
+  /*
+   * The partial file is named after the root digest, so an interrupted download of the same content
+   * picks up the pieces verified so far, while a changed file at the source starts afresh.
+   */
+  public static PartialDownload open(final String sharedLocation, final FileManifest manifest) throws IOException {
+    if (!ManifestStore.isConsistent(manifest)) {
+      throw new IOException("Inconsistent manifest received for " + manifest.getFilename());
+    }
+    final String filename = Paths.get(manifest.getFilename()).getFileName().toString();
+    final Path partialDirectory = Files.createDirectories(Paths.get(sharedLocation, UploadRequestObserver.PARTIAL_DIRECTORY));
+    final String partialName = filename + "." + BaseEncoding.base16().lowerCase().encode(manifest.getRootDigest().toByteArray(), 0, 8);
+    final PartialDownload partialDownload = new PartialDownload(sharedLocation, filename, manifest, partialDirectory.resolve(partialName + ".part"),
+                                                                new TransferState(partialDirectory.resolve(partialName + ".state")));
+    partialDownload.resume();
+    return partialDownload;
+  }
+
+  private static FileLock tryLock(final FileChannel fileChannel, final Path path) throws IOException {
+    try {
+      final FileLock fileLock = fileChannel.tryLock();
+      if (fileLock != null) {
+        return fileLock;
+      }
+    } catch (OverlappingFileLockException e) {
+      LOGGER.debug("{} is locked within this process", path);
+    }
+    fileChannel.close();
+    throw new IOException("A transfer into " + path + " is already in progress");
+  }
+
+  private void resume() throws IOException {
+    final Optional<byte[]> state = transferState.load();
+    if (state.isPresent() && fileChannel.size() == manifest.getSize()) {
+      verified.or(BitSet.valueOf(state.get()));
+      verified.clear(ManifestStore.pieceCount(manifest), Math.max(verified.length(), ManifestStore.pieceCount(manifest)));
+      LOGGER.info("Resuming download of {} with {} of {} pieces already verified", filename, verified.cardinality(), ManifestStore.pieceCount(manifest));
+    } else {
+      preallocate();
+    }
+  }
+
+  private void preallocate() throws IOException {
+    fileChannel.truncate(manifest.getSize());
+    if (manifest.getSize() > 0) {
+      fileChannel.write(ByteBuffer.wrap(new byte[1]), manifest.getSize() - 1);
+    }
+  }
+
+  public FileManifest getManifest() {
+    return manifest;
+  }
+
+  public PieceHasher newHasher(final long startOffset, final IntConsumer onCorrupted) {
+    return new PieceHasher(manifest, startOffset, this::markVerified, onCorrupted);
+  }
+
+  public void write(final long offset, final ByteString content, final PieceHasher hasher) throws IOException {
+    writeFully(content.asReadOnlyByteBuffer(), offset);
+    hasher.update(offset, content.asReadOnlyByteBuffer());
+    checkpoint();
+  }
+
+  public synchronized boolean writePiece(final int index, final ByteBuffer piece) throws IOException {
+    if (verified.get(index)) {
+      return false;
+    }
+    writeFully(piece, ManifestStore.pieceOffset(manifest, index));
+    markVerified(index);
+    checkpoint();
+    return true;
+  }
+
+  private void writeFully(final ByteBuffer content, final long offset) throws IOException {
+    long position = offset;
+    while (content.hasRemaining()) {
+      position += fileChannel.write(content, position);
+    }
+  }
+
+  private synchronized void markVerified(final int index) {
+    verified.set(index);
+    uncheckpointedPieces++;
+  }
+
+  // Pieces are forced to disk before they are recorded as verified, so a crash never resumes over unwritten data
+  private synchronized void checkpoint() throws IOException {
+    if (uncheckpointedPieces > 0) {
+      fileChannel.force(false);
+      transferState.save(verified.toByteArray());
+      uncheckpointedPieces = 0;
+    }
+  }
+
+  public synchronized boolean isVerified(final int index) {
+    return verified.get(index);
+  }
+
+  public synchronized List<Integer> missingPieces() {
+    return IntStream.range(0, ManifestStore.pieceCount(manifest))
+                    .filter(index -> !verified.get(index))
+                    .boxed()
+                    .collect(toList());
+  }
+
+  public synchronized boolean isComplete() {
+    return verified.cardinality() == ManifestStore.pieceCount(manifest);
+  }
+
+  public synchronized Path commit() throws IOException {
+    if (!isComplete()) {
+      throw new IOException(missingPieces().size() + " pieces of " + filename + " are missing or corrupt");
+    }
+    fileChannel.force(true);
+    fileLock.release();
+    fileChannel.close();
+    final Path path = Files.move(tempPath, getPathToWriteTo(sharedLocation, filename), StandardCopyOption.ATOMIC_MOVE);
+    transferState.delete();
+    return path;
+  }
+
+  public synchronized void close() {
+    try {
+      if (fileChannel.isOpen()) {
+        checkpoint();
+        fileLock.release();
+        fileChannel.close();
+      }
+    } catch (IOException e) {
+      LOGGER.error("Error closing partial download {}, {}", tempPath, e);
+    }
+  }
+}
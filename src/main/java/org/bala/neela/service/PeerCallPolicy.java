@@ -0,0 +1,110 @@
+package org.bala.neela.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.MethodDescriptor;
+
+public class PeerCallPolicy {
+  private static final int WINDOW_SIZE = 256;
+  private static final int MIN_SAMPLES = 20;
+  private static final int RECOMPUTE_EVERY = 8;
+  private static final long MIN_HEDGE_DELAY_MILLIS = 5;
+
+  private final double deadlineMultiplier;
+  private final long defaultHedgeDelayMillis;
+  private final ConcurrentMap<String, Budget> budgets = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+
+  public PeerCallPolicy(final double deadlineMultiplier, final long defaultHedgeDelayMillis) {
+    checkArgument(deadlineMultiplier >= 1, "Invalid deadlineMultiplier");
+    checkArgument(defaultHedgeDelayMillis > 0, "Invalid defaultHedgeDelayMillis");
+
+    this.deadlineMultiplier = deadlineMultiplier;
+    this.defaultHedgeDelayMillis = defaultHedgeDelayMillis;
+  }
+
+  public PeerCallPolicy bound(final MethodDescriptor<?, ?> method, final long minDeadlineMillis, final long maxDeadlineMillis) {
+    checkArgument(minDeadlineMillis > 0 && minDeadlineMillis <= maxDeadlineMillis, "Invalid deadline bounds");
+    budgets.put(method.getFullMethodName(), new Budget(minDeadlineMillis, maxDeadlineMillis));
+    return this;
+  }
+
+  /*
+   * Methods without a budget, such as the long running transfer streams, get no deadline. The others start
+   * at their maximum and then follow a multiple of the peer's observed p99, within their bounds.
+   */
+  public Optional<Long> deadlineMillis(final String host, final MethodDescriptor<?, ?> method) {
+    final Budget budget = budgets.get(method.getFullMethodName());
+    if (budget == null) {
+      return Optional.empty();
+    }
+    final LatencyWindow window = latencies.get(key(host, method));
+    if (window == null || !window.isWarm()) {
+      return Optional.of(budget.maxDeadlineMillis);
+    }
+    final long adaptive = (long) Math.ceil(toMillis(window.p99Nanos) * deadlineMultiplier);
+    return Optional.of(Math.max(budget.minDeadlineMillis, Math.min(budget.maxDeadlineMillis, adaptive)));
+  }
+
+  // Hedging after the p95 means roughly one call in twenty is duplicated, which is what buys the tail back
+  public long hedgeDelayMillis(final String host, final MethodDescriptor<?, ?> method) {
+    final LatencyWindow window = latencies.get(key(host, method));
+    if (window == null || !window.isWarm()) {
+      return defaultHedgeDelayMillis;
+    }
+    return Math.max(MIN_HEDGE_DELAY_MILLIS, toMillis(window.p95Nanos));
+  }
+
+  public void record(final String host, final MethodDescriptor<?, ?> method, final long latencyNanos) {
+    latencies.computeIfAbsent(key(host, method), k -> new LatencyWindow()).record(latencyNanos);
+  }
+
+  private static String key(final String host, final MethodDescriptor<?, ?> method) {
+    return host + "/" + method.getFullMethodName();
+  }
+
+  private static long toMillis(final long nanos) {
+    return TimeUnit.NANOSECONDS.toMillis(nanos) + 1;
+  }
+
+  private static final class Budget {
+    private final long minDeadlineMillis;
+    private final long maxDeadlineMillis;
+
+    private Budget(final long minDeadlineMillis, final long maxDeadlineMillis) {
+      this.minDeadlineMillis = minDeadlineMillis;
+      this.maxDeadlineMillis = maxDeadlineMillis;
+    }
+  }
+
+  private static final class LatencyWindow {
+    private final long[] samples = new long[WINDOW_SIZE];
+    private int next = 0;
+    private volatile int count = 0;
+    private volatile long p95Nanos;
+    private volatile long p99Nanos;
+
+    private boolean isWarm() {
+      return count >= MIN_SAMPLES;
+    }
+
+    private synchronized void record(final long latencyNanos) {
+      samples[next] = latencyNanos;
+      next = (next + 1) % WINDOW_SIZE;
+      final int sampled = Math.min(count + 1, WINDOW_SIZE);
+      if (sampled == MIN_SAMPLES || next % RECOMPUTE_EVERY == 0) {
+        final long[] sorted = Arrays.copyOf(samples, sampled);
+        Arrays.sort(sorted);
+        p95Nanos = sorted[(int) Math.ceil(0.95 * sampled) - 1];
+        p99Nanos = sorted[(int) Math.ceil(0.99 * sampled) - 1];
+      }
+      count = sampled;
+    }
+  }
+}
@@ -0,0 +1,348 @@
+package org.bala.neela.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+import static java.util.Objects.requireNonNull;
+import static org.bala.neela.service.BootStrapper.isValidPort;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ClientInterceptors;
+import io.grpc.Context;
+import io.grpc.ForwardingClientCall.SimpleForwardingClientCall;
+import io.grpc.ForwardingClientCallListener.SimpleForwardingClientCallListener;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+public class PeerChannelPool {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PeerChannelPool.class);
+
+  private final int port;
+  private final int maxConcurrentCallsPerPeer;
+  private final long idleTimeoutMillis;
+  private final int maxConsecutiveFailures;
+  private final PeerCallPolicy peerCallPolicy;
+  private final PeerHealth peerHealth;
+  private final List<ClientInterceptor> interceptors;
+  private final Function<String, ManagedChannel> channelFactory;
+  private final ConcurrentMap<String, Connection> connections = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+    final Thread thread = new Thread(r, "peer-channel-scheduler");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  public PeerChannelPool(final int port,
+                         final int maxConcurrentCallsPerPeer,
+                         final long idleTimeoutMillis,
+                         final int maxConsecutiveFailures,
+                         final PeerCallPolicy peerCallPolicy,
+                         final PeerHealth peerHealth,
+                         final List<ClientInterceptor> interceptors,
+                         final NettyTransport transport) {
+    this(port, maxConcurrentCallsPerPeer, idleTimeoutMillis, maxConsecutiveFailures, peerCallPolicy, peerHealth, interceptors, channelsOver(transport, port));
+  }
+
+  // channelFactory opens the channel to a peer's host; peers run in one process, as in benchmarks, are reached in-process
+  public PeerChannelPool(final int port,
+                         final int maxConcurrentCallsPerPeer,
+                         final long idleTimeoutMillis,
+                         final int maxConsecutiveFailures,
+                         final PeerCallPolicy peerCallPolicy,
+                         final PeerHealth peerHealth,
+                         final List<ClientInterceptor> interceptors,
+                         final Function<String, ManagedChannel> channelFactory) {
+    checkArgument(isValidPort(port), "Invalid port; out of valid range");
+    checkArgument(maxConcurrentCallsPerPeer > 0, "Invalid maxConcurrentCallsPerPeer");
+    checkArgument(idleTimeoutMillis > 0, "Invalid idleTimeoutMillis");
+    checkArgument(maxConsecutiveFailures > 0, "Invalid maxConsecutiveFailures");
+
+    this.port = port;
+    this.maxConcurrentCallsPerPeer = maxConcurrentCallsPerPeer;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.maxConsecutiveFailures = maxConsecutiveFailures;
+    this.peerCallPolicy = requireNonNull(peerCallPolicy);
+    this.peerHealth = requireNonNull(peerHealth);
+    this.interceptors = requireNonNull(interceptors);
+    this.channelFactory = requireNonNull(channelFactory);
+  }
+
+  private static Function<String, ManagedChannel> channelsOver(final NettyTransport transport, final int port) {
+    requireNonNull(transport);
+    return host -> transport.channelTo(host, port);
+  }
+
+  @PostConstruct
+  private void scheduleIdleEviction() {
+    final long period = Math.max(1, idleTimeoutMillis / 2);
+    scheduler.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    scheduler.shutdownNow();
+    connections.values().forEach(Connection::shutdown);
+    connections.clear();
+  }
+
+  public Channel channelFor(final String host) {
+    checkArgument(isNotBlank(host), "Invalid host");
+    return ClientInterceptors.intercept(new PeerChannel(host.trim()), interceptors);
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  /*
+   * For idempotent calls only: a second, identical call goes out if the first has not completed within
+   * the peer's latency budget for the method. The first success wins and the other call is cancelled.
+   */
+  public <T> ListenableFuture<T> hedge(final String host, final MethodDescriptor<?, T> method, final Function<Channel, ListenableFuture<T>> call) {
+    final Channel channel = channelFor(host);
+    final Context context = Context.current();
+    final SettableFuture<T> result = SettableFuture.create();
+    final List<ListenableFuture<T>> attempts = new CopyOnWriteArrayList<>();
+    final AtomicInteger outstanding = new AtomicInteger();
+    attempt(channel, call, result, attempts, outstanding);
+    final ScheduledFuture<?> hedge = scheduler.schedule(() -> context.run(() -> {
+      if (!result.isDone()) {
+        LOGGER.debug("Hedging {} to peer {}", method.getFullMethodName(), host);
+        attempt(channel, call, result, attempts, outstanding);
+      }
+    }), peerCallPolicy.hedgeDelayMillis(host, method), TimeUnit.MILLISECONDS);
+    result.addListener(() -> {
+      hedge.cancel(false);
+      attempts.forEach(attempt -> attempt.cancel(true));
+    }, MoreExecutors.directExecutor());
+    return result;
+  }
+
+  public <T> T callHedged(final String host, final MethodDescriptor<?, T> method, final Function<Channel, ListenableFuture<T>> call) {
+    try {
+      return hedge(host, method, call).get();
+    } catch (ExecutionException e) {
+      throw Status.fromThrowable(e.getCause()).asRuntimeException();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Status.CANCELLED.withDescription("Interrupted calling peer " + host).withCause(e).asRuntimeException();
+    }
+  }
+
+  private <T> void attempt(final Channel channel,
+                           final Function<Channel, ListenableFuture<T>> call,
+                           final SettableFuture<T> result,
+                           final List<ListenableFuture<T>> attempts,
+                           final AtomicInteger outstanding) {
+    outstanding.incrementAndGet();
+    ListenableFuture<T> attempt;
+    try {
+      attempt = call.apply(channel);
+    } catch (RuntimeException e) {
+      attempt = Futures.immediateFailedFuture(e);
+    }
+    attempts.add(attempt);
+    Futures.addCallback(attempt, new FutureCallback<T>() {
+      @Override
+      public void onSuccess(final T response) {
+        attempts.forEach(other -> other.cancel(true));
+        result.set(response);
+      }
+
+      @Override
+      public void onFailure(final Throwable t) {
+        if (outstanding.decrementAndGet() == 0) {
+          result.setException(t);
+        }
+      }
+    }, MoreExecutors.directExecutor());
+  }
+
+  private Connection checkout(final String host) {
+    return connections.compute(host, (h, existing) -> {
+      final Connection connection = (existing == null || !existing.isHealthy()) ? connect(h, existing) : existing;
+      connection.inFlight.incrementAndGet();
+      return connection;
+    });
+  }
+
+  private Connection connect(final String host, final Connection unhealthy) {
+    if (unhealthy != null) {
+      LOGGER.warn("Reconnecting to unhealthy peer {}", host);
+      unhealthy.shutdown();
+    }
+    return new Connection(channelFactory.apply(host));
+  }
+
+  private void evictIdle() {
+    final long now = System.currentTimeMillis();
+    connections.keySet().forEach(host -> connections.computeIfPresent(host, (h, connection) -> {
+      if (connection.isIdleSince(now - idleTimeoutMillis)) {
+        LOGGER.info("Evicting idle channel to peer {}", h);
+        connection.shutdown();
+        return null;
+      }
+      return connection;
+    }));
+  }
+
+  private final class Connection {
+    private final ManagedChannel channel;
+    private final Semaphore permits = new Semaphore(maxConcurrentCallsPerPeer);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    private Connection(final ManagedChannel channel) {
+      this.channel = channel;
+    }
+
+    private boolean isHealthy() {
+      return !channel.isShutdown() && consecutiveFailures.get() < maxConsecutiveFailures;
+    }
+
+    private boolean isIdleSince(final long threshold) {
+      return inFlight.get() == 0 && lastUsed < threshold;
+    }
+
+    private void release(final Status status) {
+      if (status.getCode() == Status.Code.UNAVAILABLE) {
+        consecutiveFailures.incrementAndGet();
+      } else {
+        consecutiveFailures.set(0);
+      }
+      free();
+    }
+
+    private void free() {
+      lastUsed = System.currentTimeMillis();
+      permits.release();
+      inFlight.decrementAndGet();
+    }
+
+    private void shutdown() {
+      channel.shutdown();
+    }
+  }
+
+  private final class PeerChannel extends Channel {
+    private final String host;
+
+    private PeerChannel(final String host) {
+      this.host = host;
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> newCall(final MethodDescriptor<ReqT, RespT> method, final CallOptions callOptions) {
+      final Connection connection = checkout(host);
+      // Never waits for a permit: calls are made from callbacks and schedulers shared by every peer
+      if (!connection.permits.tryAcquire()) {
+        connection.inFlight.decrementAndGet();
+        throw Status.RESOURCE_EXHAUSTED
+                    .withDescription("Too many concurrent calls to peer " + host)
+                    .asRuntimeException();
+      }
+      return new PooledCall<>(connection.channel.newCall(method, withDeadline(method, callOptions)), connection, host, method);
+    }
+
+    private CallOptions withDeadline(final MethodDescriptor<?, ?> method, final CallOptions callOptions) {
+      if (callOptions.getDeadline() != null) {
+        return callOptions;
+      }
+      final Optional<Long> deadlineMillis = peerCallPolicy.deadlineMillis(host, method);
+      return deadlineMillis.isPresent() ? callOptions.withDeadlineAfter(deadlineMillis.get(), TimeUnit.MILLISECONDS) : callOptions;
+    }
+
+    @Override
+    public String authority() {
+      return host + ":" + port;
+    }
+  }
+
+  private final class PooledCall<ReqT, RespT> extends SimpleForwardingClientCall<ReqT, RespT> {
+    private final Connection connection;
+    private final String host;
+    private final MethodDescriptor<ReqT, RespT> method;
+    private final AtomicBoolean released = new AtomicBoolean();
+    private volatile boolean started;
+    private long startedAt;
+
+    private PooledCall(final ClientCall<ReqT, RespT> delegate, final Connection connection, final String host, final MethodDescriptor<ReqT, RespT> method) {
+      super(delegate);
+      this.connection = connection;
+      this.host = host;
+      this.method = method;
+    }
+
+    @Override
+    public void start(final Listener<RespT> responseListener, final Metadata headers) {
+      startedAt = System.nanoTime();
+      started = true;
+      try {
+        super.start(new SimpleForwardingClientCallListener<RespT>(responseListener) {
+          @Override
+          public void onClose(final Status status, final Metadata trailers) {
+            if (released.compareAndSet(false, true)) {
+              final long latencyNanos = System.nanoTime() - startedAt;
+              connection.release(status);
+              peerHealth.recordCall(host, method, status, latencyNanos);
+              if (status.isOk() && method.getType() == MethodDescriptor.MethodType.UNARY) {
+                peerCallPolicy.record(host, method, latencyNanos);
+              }
+            }
+            super.onClose(status, trailers);
+          }
+        }, headers);
+      } catch (RuntimeException e) {
+        abandon();
+        throw e;
+      }
+    }
+
+    // A call that never started gets no onClose, so cancelling it is the last chance to give its permit back
+    @Override
+    public void cancel(final String message, final Throwable cause) {
+      if (!started) {
+        abandon();
+      }
+      super.cancel(message, cause);
+    }
+
+    private void abandon() {
+      if (released.compareAndSet(false, true)) {
+        connection.free();
+      }
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package org.bala.neela.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.stream.Collectors.toList;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+public class PeerHealth {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PeerHealth.class);
+  private static final double ALPHA = 0.2;
+  private static final double UNKNOWN_RTT_MILLIS = 100;
+  private static final double MIN_SUCCESS_RATE = 0.05;
+
+  private final int deadAfterFailures;
+  private final long deadPeerProbeIntervalMillis;
+  private final ConcurrentMap<String, Stats> peers = new ConcurrentHashMap<>();
+
+  /*
+   * Dead here only means our calls to the peer keep failing, so it is ranked out of searches and transfers
+   * but for an occasional probe. Whether it has left the cluster is for Membership to decide; its stats are
+   * forgotten once Membership drops it.
+   */
+  public PeerHealth(final int deadAfterFailures, final long deadPeerProbeIntervalMillis) {
+    checkArgument(deadAfterFailures > 0, "Invalid deadAfterFailures");
+    checkArgument(deadPeerProbeIntervalMillis >= 0, "Invalid deadPeerProbeIntervalMillis");
+
+    this.deadAfterFailures = deadAfterFailures;
+    this.deadPeerProbeIntervalMillis = deadPeerProbeIntervalMillis;
+  }
+
+  /*
+   * Cancellations are ours (first hit found, hedge lost) and say nothing about the peer. Application level
+   * errors such as NOT_FOUND still mean the peer answered, so only transport and overload failures count.
+   */
+  public void recordCall(final String host, final MethodDescriptor<?, ?> method, final Status status, final long latencyNanos) {
+    if (status.getCode() == Status.Code.CANCELLED) {
+      return;
+    }
+    final Stats stats = statsFor(host);
+    if (isPeerFailure(status.getCode())) {
+      stats.failed(System.currentTimeMillis());
+    } else {
+      final boolean unary = method.getType() == MethodDescriptor.MethodType.UNARY;
+      stats.succeeded(unary ? TimeUnit.NANOSECONDS.toMicros(latencyNanos) / 1000.0 : Double.NaN);
+    }
+  }
+
+  public void recordTransfer(final String host, final long bytes, final long elapsedNanos) {
+    if (bytes > 0 && elapsedNanos > 0) {
+      statsFor(host).transferred(bytes * 1e9 / elapsedNanos);
+    }
+  }
+
+  // Cheapest expected round trip first; dead peers are left out except for an occasional probe
+  public List<String> rankForSearch(final Collection<String> hosts) {
+    return rank(hosts, Comparator.comparingDouble(this::latencyCost));
+  }
+
+  // Fastest measured source first; sources not measured yet go ahead of slow ones so they get a chance
+  public List<String> rankForTransfer(final Collection<String> hosts) {
+    return rank(hosts, Comparator.comparingDouble(this::transferCost).thenComparingDouble(this::latencyCost));
+  }
+
+  public boolean isDead(final String host) {
+    final Stats stats = peers.get(host);
+    return stats != null && stats.isDead();
+  }
+
+  public void forget(final String host) {
+    peers.remove(host);
+  }
+
+  private List<String> rank(final Collection<String> hosts, final Comparator<String> cost) {
+    final long now = System.currentTimeMillis();
+    return hosts.stream()
+                .distinct()
+                .filter(host -> isCandidate(host, now))
+                .sorted(cost)
+                .collect(toList());
+  }
+
+  private boolean isCandidate(final String host, final long now) {
+    final Stats stats = peers.get(host);
+    if (stats == null || !stats.isDead()) {
+      return true;
+    }
+    if (stats.tryProbe(now)) {
+      LOGGER.debug("Probing dead peer {}", host);
+      return true;
+    }
+    return false;
+  }
+
+  private double latencyCost(final String host) {
+    final Stats stats = peers.get(host);
+    if (stats == null) {
+      return UNKNOWN_RTT_MILLIS;
+    }
+    final double rtt = Double.isNaN(stats.rttMillis) ? UNKNOWN_RTT_MILLIS : stats.rttMillis;
+    return rtt / stats.successRate();
+  }
+
+  private double transferCost(final String host) {
+    final Stats stats = peers.get(host);
+    if (stats == null || Double.isNaN(stats.bytesPerSecond)) {
+      return 0;
+    }
+    return 1 / (stats.bytesPerSecond * stats.successRate());
+  }
+
+  private Stats statsFor(final String host) {
+    return peers.computeIfAbsent(host, h -> new Stats());
+  }
+
+  private static boolean isPeerFailure(final Status.Code code) {
+    switch (code) {
+      case UNAVAILABLE:
+      case DEADLINE_EXCEEDED:
+      case RESOURCE_EXHAUSTED:
+      case INTERNAL:
+      case UNKNOWN:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static double ewma(final double average, final double sample) {
+    return Double.isNaN(average) ? sample : average + ALPHA * (sample - average);
+  }
+
+  private final class Stats {
+    private volatile double rttMillis = Double.NaN;
+    private volatile double errorRate = 0;
+    private volatile double bytesPerSecond = Double.NaN;
+    private volatile int consecutiveFailures = 0;
+    private long lastProbe;
+
+    private synchronized void succeeded(final double rttSampleMillis) {
+      if (!Double.isNaN(rttSampleMillis)) {
+        rttMillis = ewma(rttMillis, rttSampleMillis);
+      }
+      errorRate = ewma(errorRate, 0);
+      consecutiveFailures = 0;
+    }
+
+    private synchronized void failed(final long now) {
+      errorRate = ewma(errorRate, 1);
+      if (++consecutiveFailures == deadAfterFailures) {
+        lastProbe = now;
+      }
+    }
+
+    private synchronized void transferred(final double bytesPerSecondSample) {
+      bytesPerSecond = ewma(bytesPerSecond, bytesPerSecondSample);
+    }
+
+    private synchronized boolean tryProbe(final long now) {
+      if (now - lastProbe < deadPeerProbeIntervalMillis) {
+        return false;
+      }
+      lastProbe = now;
+      return true;
+    }
+
+    private boolean isDead() {
+      return consecutiveFailures >= deadAfterFailures;
+    }
+
+    private double successRate() {
+      return Math.max(MIN_SUCCESS_RATE, 1 - errorRate);
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package org.bala.neela.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.function.IntConsumer;
+
+import org.bala.neela.grpc.FileManifest;
+
+import com.google.protobuf.ByteString;
+
+public class PieceHasher {
+  private final FileManifest manifest;
+  private final IntConsumer onVerified;
+  private final IntConsumer onCorrupted;
+  private final MessageDigest digest = ManifestStore.newDigest();
+  private int pieceIndex;
+  private long position;
+  private long pieceEnd;
+
+  public PieceHasher(final FileManifest manifest, final long startOffset, final IntConsumer onVerified, final IntConsumer onCorrupted) {
+    checkArgument(startOffset % manifest.getPieceSize() == 0, "Stream must start at a piece boundary");
+    this.manifest = manifest;
+    this.onVerified = onVerified;
+    this.onCorrupted = onCorrupted;
+    this.pieceIndex = (int) (startOffset / manifest.getPieceSize());
+    this.position = startOffset;
+    this.pieceEnd = pieceEnd(pieceIndex);
+  }
+
+  public void update(final long offset, final ByteBuffer chunk) {
+    if (offset != position) {
+      throw new IllegalStateException("Expected content at offset " + position + " but received offset " + offset);
+    }
+    while (chunk.hasRemaining() && pieceIndex < ManifestStore.pieceCount(manifest)) {
+      final int length = (int) Math.min(chunk.remaining(), pieceEnd - position);
+      final ByteBuffer slice = chunk.duplicate();
+      slice.limit(slice.position() + length);
+      digest.update(slice);
+      chunk.position(chunk.position() + length);
+      position += length;
+      if (position == pieceEnd) {
+        completePiece();
+      }
+    }
+  }
+
+  private void completePiece() {
+    if (ByteString.copyFrom(digest.digest()).equals(manifest.getPieceDigests(pieceIndex))) {
+      onVerified.accept(pieceIndex);
+    } else {
+      onCorrupted.accept(pieceIndex);
+    }
+    pieceIndex++;
+    pieceEnd = pieceEnd(pieceIndex);
+  }
+
+  private long pieceEnd(final int index) {
+    return Math.min(manifest.getSize(), ManifestStore.pieceOffset(manifest, index) + manifest.getPieceSize());
+  }
+}
@@ -0,0 +1,79 @@
+package org.bala.neela.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import static org.bala.neela.service.BootStrapper.isValidPort;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Locale;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Serves the metrics in the Prometheus text format at http://localhost:<port>/metrics. It binds to the
+ * loopback address only; a scraper on another host reaches it through whatever forwarding the host allows.
+ */
+public class PrometheusExporter {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PrometheusExporter.class);
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final Metrics metrics;
+  private final int port;
+  private HttpServer server;
+
+  public PrometheusExporter(final Metrics metrics, final int port) {
+    checkArgument(isValidPort(port), "Invalid port; out of valid range");
+
+    this.metrics = requireNonNull(metrics);
+    this.port = port;
+  }
+
+  @PostConstruct
+  private void start() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext("/metrics", this::serve);
+    server.start();
+    LOGGER.info("Serving metrics at http://localhost:{}/metrics", port);
+  }
+
+  @PreDestroy
+  private void stop() {
+    if (server != null) {
+      server.stop(0);
+    }
+  }
+
+  private void serve(final HttpExchange exchange) throws IOException {
+    final byte[] body = render().getBytes(UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+    exchange.sendResponseHeaders(200, body.length);
+    try (final OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  String render() {
+    final StringBuilder text = new StringBuilder();
+    Metrics.Family family = null;
+    for (final Metrics.Sample sample : metrics.samples()) {
+      if (sample.getFamily() != family) {
+        family = sample.getFamily();
+        text.append("# HELP ").append(family.getName()).append(' ').append(family.getHelp()).append('\n');
+        text.append("# TYPE ").append(family.getName()).append(' ').append(family.getType().name().toLowerCase(Locale.ROOT)).append('\n');
+      }
+      text.append(sample.getKey()).append(' ').append(sample.getValue()).append('\n');
+    }
+    return text.toString();
+  }
+}
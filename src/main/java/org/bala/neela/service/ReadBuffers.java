@@ -0,0 +1,66 @@
+package org.bala.neela.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/*
+ * The buffers every download being served reads its next chunk into, at most maxBuffers of them, allocated
+ * as they are first needed. They are held only from the read until the chunk is copied into its response,
+ * so a few cover many downloads; a download finding none is remembered and run again once one comes back.
+ */
+final class ReadBuffers {
+  private final int bufferSize;
+  private final int maxBuffers;
+  private final Deque<ByteBuffer> free = new ArrayDeque<>();
+  private final Set<Runnable> waiting = new LinkedHashSet<>();
+  private int allocated;
+
+  ReadBuffers(final int bufferSize, final int maxBuffers) {
+    checkArgument(bufferSize > 0, "Invalid bufferSize");
+    checkArgument(maxBuffers > 0, "Invalid maxBuffers");
+    this.bufferSize = bufferSize;
+    this.maxBuffers = maxBuffers;
+  }
+
+  int getBufferSize() {
+    return bufferSize;
+  }
+
+  // A cleared buffer, or null with onFree to be run when one is given back
+  synchronized ByteBuffer take(final Runnable onFree) {
+    if (free.isEmpty() && allocated < maxBuffers) {
+      allocated++;
+      return ByteBuffer.allocate(bufferSize);
+    }
+    final ByteBuffer buffer = free.poll();
+    if (buffer == null) {
+      waiting.add(onFree);
+    }
+    return buffer;
+  }
+
+  // Waiters run on the caller's thread without the lock held; one that no longer wants the buffer leaves it
+  // for the next
+  void give(final ByteBuffer buffer) {
+    buffer.clear();
+    synchronized (this) {
+      free.push(buffer);
+    }
+    while (true) {
+      final Runnable next;
+      synchronized (this) {
+        if (free.isEmpty() || waiting.isEmpty()) {
+          return;
+        }
+        next = waiting.iterator().next();
+        waiting.remove(next);
+      }
+      next.run();
+    }
+  }
+}
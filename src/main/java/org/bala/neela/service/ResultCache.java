@@ -0,0 +1,124 @@
+package org.bala.neela.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.bala.neela.grpc.BrowserOutput;
+import org.bala.neela.grpc.SearchResponse;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/*
+ * Client side cache of remote search and browse results. Entries hold the pending future, so concurrent
+ * requests for the same key share a single network round. Failures are never cached, misses only briefly,
+ * and anything a peer answered is dropped as soon as that peer reports a newer index version.
+ */
+public class ResultCache {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ResultCache.class);
+
+  private final long negativeTtlMillis;
+  private final Cache<String, Entry<List<SearchResponse>>> searches;
+  private final Cache<String, Entry<BrowserOutput>> listings;
+  private final ConcurrentMap<String, Long> indexVersions = new ConcurrentHashMap<>();
+
+  public ResultCache(final int maxEntries, final long searchTtlMillis, final long negativeTtlMillis, final long browseTtlMillis) {
+    checkArgument(maxEntries > 0, "Invalid maxEntries");
+    checkArgument(searchTtlMillis >= negativeTtlMillis && negativeTtlMillis >= 0, "Invalid search TTLs");
+    checkArgument(browseTtlMillis >= 0, "Invalid browseTtlMillis");
+
+    this.negativeTtlMillis = negativeTtlMillis;
+    this.searches = CacheBuilder.newBuilder().maximumSize(maxEntries).expireAfterWrite(searchTtlMillis, TimeUnit.MILLISECONDS).build();
+    this.listings = CacheBuilder.newBuilder().maximumSize(maxEntries).expireAfterWrite(browseTtlMillis, TimeUnit.MILLISECONDS).build();
+  }
+
+  public CompletableFuture<List<SearchResponse>> search(final String key, final Function<String, CompletableFuture<List<SearchResponse>>> loader) {
+    final CompletableFuture<List<SearchResponse>> holders = get(searches, key, loader, List::isEmpty);
+    holders.thenAccept(found -> found.forEach(holder -> observe(holder.getHostAddress(), holder.getIndexVersion())));
+    return holders;
+  }
+
+  public CompletableFuture<BrowserOutput> browse(final String host, final Function<String, CompletableFuture<BrowserOutput>> loader) {
+    final CompletableFuture<BrowserOutput> listing = get(listings, host, loader, output -> false);
+    listing.thenAccept(output -> observe(host, output.getIndexVersion()));
+    return listing;
+  }
+
+  // A newer version from a peer, seen in any response, invalidates what we cached of its older index
+  public void observe(final String host, final long indexVersion) {
+    if (indexVersion <= 0 || !isNewer(host, indexVersion)) {
+      return;
+    }
+    LOGGER.debug("Index of {} is now at version {}", host, indexVersion);
+    invalidate(listings, entry -> entry.key.equals(host) && isDone(entry) && entry.future.join().getIndexVersion() < indexVersion);
+    invalidate(searches, entry -> isDone(entry) && entry.future.join()
+                                                        .stream()
+                                                        .anyMatch(holder -> holder.getHostAddress().equals(host) && holder.getIndexVersion() < indexVersion));
+  }
+
+  private boolean isNewer(final String host, final long indexVersion) {
+    final Long previous = indexVersions.get(host);
+    if (previous != null && previous >= indexVersion) {
+      return false;
+    }
+    return (previous == null) ? indexVersions.putIfAbsent(host, indexVersion) == null : indexVersions.replace(host, previous, indexVersion);
+  }
+
+  private <V> CompletableFuture<V> get(final Cache<String, Entry<V>> cache,
+                                       final String key,
+                                       final Function<String, CompletableFuture<V>> loader,
+                                       final Predicate<V> isNegative) {
+    final Entry<V> cached = cache.getIfPresent(key);
+    if (cached != null && isNegative(cached, isNegative)) {
+      cache.invalidate(key);
+    }
+    try {
+      final Entry<V> entry = cache.get(key, () -> new Entry<>(key, loader.apply(key)));
+      entry.future.whenComplete((value, ex) -> {
+        if (ex != null) {
+          cache.asMap().remove(key, entry);
+        }
+      });
+      return entry.future;
+    } catch (ExecutionException e) {
+      final CompletableFuture<V> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e.getCause());
+      return failed;
+    }
+  }
+
+  private <V> boolean isNegative(final Entry<V> entry, final Predicate<V> isNegative) {
+    return isDone(entry) && isNegative.test(entry.future.join()) && System.currentTimeMillis() - entry.completedAt >= negativeTtlMillis;
+  }
+
+  private static <V> boolean isDone(final Entry<V> entry) {
+    return entry.future.isDone() && !entry.future.isCompletedExceptionally();
+  }
+
+  private static <V> void invalidate(final Cache<String, Entry<V>> cache, final Predicate<Entry<V>> stale) {
+    cache.asMap().values().removeIf(stale);
+  }
+
+  private static final class Entry<V> {
+    private final String key;
+    private final CompletableFuture<V> future;
+    private volatile long completedAt = Long.MAX_VALUE;
+
+    private Entry(final String key, final CompletableFuture<V> future) {
+      this.key = key;
+      this.future = future;
+      future.whenComplete((value, ex) -> completedAt = System.currentTimeMillis());
+    }
+  }
+}
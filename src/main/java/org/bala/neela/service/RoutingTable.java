@@ -0,0 +1,98 @@
+package org.bala.neela.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+import static java.util.stream.Collectors.toList;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Kademlia k-buckets over 160 bit ids, bucket i holding the peers whose XOR distance from us has its top
+ * bit at i. Each bucket is kept least recently seen first, and a full bucket only takes a newcomer in place
+ * of a peer that has stopped answering, since long lived peers are the likeliest to stay.
+ */
+public class RoutingTable {
+  public static final int ID_BITS = 160;
+
+  private final String selfAddress;
+  private final BigInteger selfId;
+  private final int bucketSize;
+  private final PeerHealth peerHealth;
+  private final List<LinkedHashMap<String, BigInteger>> buckets = new ArrayList<>(ID_BITS);
+
+  public RoutingTable(final String selfAddress, final int bucketSize, final PeerHealth peerHealth) {
+    checkArgument(isNotBlank(selfAddress), "Invalid selfAddress");
+    checkArgument(bucketSize > 0, "Invalid bucketSize");
+
+    this.selfAddress = selfAddress.trim();
+    this.selfId = idOf(this.selfAddress);
+    this.bucketSize = bucketSize;
+    this.peerHealth = requireNonNull(peerHealth);
+    for (int i = 0; i < ID_BITS; i++) {
+      buckets.add(new LinkedHashMap<>());
+    }
+  }
+
+  public static BigInteger idOf(final String name) {
+    try {
+      return new BigInteger(1, MessageDigest.getInstance("SHA-1").digest(name.getBytes(UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is not available", e);
+    }
+  }
+
+  public BigInteger distanceTo(final BigInteger id) {
+    return selfId.xor(id);
+  }
+
+  public synchronized boolean add(final String host) {
+    if (!isNotBlank(host) || host.equals(selfAddress)) {
+      return false;
+    }
+    final BigInteger id = idOf(host);
+    final LinkedHashMap<String, BigInteger> bucket = bucketFor(id);
+    if (bucket.remove(host) != null || bucket.size() < bucketSize) {
+      bucket.put(host, id);
+      return true;
+    }
+    final Iterator<String> leastRecentlySeen = bucket.keySet().iterator();
+    final String candidate = leastRecentlySeen.next();
+    if (peerHealth.isDead(candidate)) {
+      leastRecentlySeen.remove();
+      bucket.put(host, id);
+      return true;
+    }
+    return false;
+  }
+
+  public synchronized void remove(final String host) {
+    bucketFor(idOf(host)).remove(host);
+  }
+
+  public synchronized List<String> closest(final BigInteger target, final int count) {
+    return buckets.stream()
+                  .flatMap(bucket -> bucket.entrySet().stream())
+                  .sorted(Comparator.comparing((Map.Entry<String, BigInteger> entry) -> entry.getValue().xor(target)))
+                  .limit(count)
+                  .map(Map.Entry::getKey)
+                  .collect(toList());
+  }
+
+  public synchronized int size() {
+    return buckets.stream().mapToInt(Map::size).sum();
+  }
+
+  private LinkedHashMap<String, BigInteger> bucketFor(final BigInteger id) {
+    return buckets.get(Math.max(0, distanceTo(id).bitLength() - 1));
+  }
+}
@@ -3,162 +3,397 @@ package org.bala.neela.service;
 import static com.google.common.base.Preconditions.checkArgument;
 import static java.util.Objects.requireNonNull;
 import static java.util.stream.Collectors.toList;
-import static org.apache.commons.lang3.StringUtils.isNotBlank;
-import static org.bala.neela.service.BootStrapper.isValidPort;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalDouble;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.regex.PatternSyntaxException;
+
+import javax.annotation.PreDestroy;
 
 import org.bala.neela.ui.UserCommand;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.bala.neela.grpc.FindRequest;
 import org.bala.neela.grpc.NeelaGrpc;
 import org.bala.neela.grpc.PeerInfo;
 import org.bala.neela.grpc.SearchRequest;
 import org.bala.neela.grpc.SearchResponse;
 
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
-import io.grpc.StatusRuntimeException;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
 
 public class SearchEngine {
   private static final Logger LOGGER = LoggerFactory.getLogger(SearchEngine.class);
   
-  private static final String HOST_ADDRESS = getMyHostAddress();
+  private static final String HOST_ADDRESS = BootStrapper.getMyHostAddress();
   private static final SearchResponse ERROR = SearchResponse.newBuilder().setHostAddress(HOST_ADDRESS).setFound(false).build();
+  private static final int MAX_FIND_RESULTS = 100;
 
-  private final int port;
-  private final String sharedLocation;
+  private final SharedIndex sharedIndex;
   private final BootStrapper bootStrapper;
+  private final PeerChannelPool peerChannelPool;
+  private final PeerHealth peerHealth;
+  private final Dht dht;
+  private final ResultCache resultCache;
+  private final Metrics metrics;
+  private final int searchParallelism;
+  private final int floodThreshold;
+  private final ExecutorService executor;
   
-  public SearchEngine(final int port, final String sharedLocation, final BootStrapper bootStrapper) {
-    validateConstructorArgs(port, sharedLocation);
-    this.port = port;
-    this.sharedLocation = sharedLocation;
+  public SearchEngine(final SharedIndex sharedIndex,
+                      final BootStrapper bootStrapper,
+                      final PeerChannelPool peerChannelPool,
+                      final PeerHealth peerHealth,
+                      final Dht dht,
+                      final ResultCache resultCache,
+                      final Metrics metrics,
+                      final int searchParallelism,
+                      final int floodThreshold,
+                      final int callbackThreads) {
+    checkArgument(searchParallelism > 0, "Invalid searchParallelism");
+    checkArgument(floodThreshold >= 0, "Invalid floodThreshold");
+    checkArgument(callbackThreads > 0, "Invalid callbackThreads");
+
+    this.sharedIndex = requireNonNull(sharedIndex);
     this.bootStrapper = requireNonNull(bootStrapper);
+    this.peerChannelPool = requireNonNull(peerChannelPool);
+    this.peerHealth = requireNonNull(peerHealth);
+    this.dht = requireNonNull(dht);
+    this.resultCache = requireNonNull(resultCache);
+    this.metrics = requireNonNull(metrics);
+    this.searchParallelism = searchParallelism;
+    this.floodThreshold = floodThreshold;
+    this.executor = Executors.newFixedThreadPool(callbackThreads, r -> {
+      final Thread thread = new Thread(r, "search-engine");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    executor.shutdownNow();
   }
   
   public void search(final UserCommand userCommand, final Consumer<? super SearchResponse> consumer) {
-    final AtomicInteger completedCount = new AtomicInteger(0);
-    final CompletableFuture<SearchResponse> resultFuture = new CompletableFuture<>();
-    final List<CompletableFuture<SearchResponse>> futures = createFutures(userCommand);
-    futures.forEach(future -> future.whenComplete((response, throwable) -> completeIfSuccessful(response, throwable, resultFuture, completedCount, futures.size(), userCommand)));
-    resultFuture.exceptionally(this::handleException).thenAcceptAsync(consumer);
-  }
-
-  private void completeIfSuccessful(final SearchResponse response, final Throwable throwable, final CompletableFuture<SearchResponse> resultFuture, final AtomicInteger completedCount, final int futuresCount, final UserCommand userCommand) {
-    int completed = completedCount.incrementAndGet();
-    if (successful(response, throwable)) {
-      resultFuture.complete(response);
-    } else if (completed == futuresCount) {
-      completeExceptionally(userCommand, resultFuture);
-    }
+    locate(userCommand.getCommandArg(), true).thenApply(holders -> firstHolder(userCommand, holders))
+                                             .exceptionally(this::handleException)
+                                             .thenAcceptAsync(consumer);
   }
-  
-  private void completeExceptionally(final UserCommand userCommand, final CompletableFuture<SearchResponse> resultFuture) {
-    final String errorMsg = userCommand.getCommandArg() + " not found with any of the known peers";
-    if (resultFuture.completeExceptionally(new RuntimeException(errorMsg))) {
+
+  private SearchResponse firstHolder(final UserCommand userCommand, final List<SearchResponse> holders) {
+    if (holders.isEmpty()) {
+      final String errorMsg = userCommand.getCommandArg() + " not found with any of the known peers";
       System.out.println(errorMsg);
+      throw new RuntimeException(errorMsg);
     }
-  }
-
-  private List<CompletableFuture<SearchResponse>> createFutures(final UserCommand userCommand) {
-    final ExecutorService executor = Executors.newCachedThreadPool();
-    final List<CompletableFuture<SearchResponse>> futures = new ArrayList<>(); 
-    getHostsToSearch().forEach(host -> createFuture(userCommand, host, futures, executor));
-    return futures;
+    return holders.get(0);
   }
   
-  private CompletableFuture<SearchResponse> createFuture(final UserCommand userCommand, final String host, final List<CompletableFuture<SearchResponse>> futures, final ExecutorService executor) {
-    CompletableFuture<SearchResponse> cf = CompletableFuture.supplyAsync(() -> search(userCommand.getCommandArg(), host), executor);
-    futures.add(cf);
-    cf.whenComplete((response, throwable) -> cancelTheRestIfSuccessful(response, throwable, futures, executor));  
-    return cf;
+  public CompletableFuture<List<SearchResponse>> searchAll(final String filename) {
+    return locate(filename, false).thenCompose(this::withSameContent);
   }
-  
-  private void cancelTheRestIfSuccessful(final SearchResponse response, final Throwable throwable, final List<CompletableFuture<SearchResponse>> futures, final ExecutorService executor) {
-    if (successful(response, throwable)) {
-      cancelTheRest(futures, executor);
+
+  // Peers holding the same bytes under another name serve them just as well, asked for them by their own name
+  private CompletableFuture<List<SearchResponse>> withSameContent(final List<SearchResponse> holders) {
+    final Optional<SearchResponse> hashed = holders.stream().filter(holder -> !holder.getRootDigest().isEmpty()).findFirst();
+    if (!hashed.isPresent()) {
+      return CompletableFuture.completedFuture(holders);
     }
+    final SearchResponse reference = hashed.get();
+    return dht.lookupContent(reference.getRootDigest()).thenApply(sameContent -> {
+      final List<SearchResponse> all = new ArrayList<>(holders);
+      sameContent.stream()
+                 .filter(holder -> holder.getRootDigest().equals(reference.getRootDigest()) && holder.getSize() == reference.getSize())
+                 .forEach(all::add);
+      return rankHolders(all);
+    }).exceptionally(ex -> {
+      LOGGER.warn("Error looking up other holders of {}, {}", reference.getFilename(), ex.toString());
+      return holders;
+    });
   }
 
-  private boolean successful(final SearchResponse response, final Throwable throwable) {
-    return throwable==null && response.getFound();
+  // Holders are ranked on the way out of the cache so that a cached answer still follows current peer health
+  private CompletableFuture<List<SearchResponse>> locate(final String filename, final boolean firstHitOnly) {
+    return resultCache.search((firstHitOnly ? "first:" : "all:") + filename, key -> lookup(filename, firstHitOnly)).thenApply(this::rankHolders);
   }
-  
-  private void cancelTheRest(final List<CompletableFuture<SearchResponse>> futures, final ExecutorService executor) {
-    futures.forEach(future -> future.cancel(true));
-    executor.shutdown();
-    try {
-      executor.awaitTermination(5, TimeUnit.SECONDS);
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
-    }
+
+  /*
+   * The DHT answers in O(log N) hops. On a miss a small cluster falls back to asking every peer, which is cheap
+   * there and covers files published moments ago or held by peers that do not publish; a larger one asks a
+   * random floodThreshold of them, so the cost of a miss stays bounded however large the network grows.
+   */
+  private CompletableFuture<List<SearchResponse>> lookup(final String filename, final boolean firstHitOnly) {
+    return dht.lookup(filename).thenCompose(holders -> {
+      if (!holders.isEmpty()) {
+        return CompletableFuture.completedFuture(holders);
+      }
+      List<String> hosts = getHostsToSearch();
+      if (hosts.size() > floodThreshold) {
+        final List<String> sample = new ArrayList<>(hosts);
+        Collections.shuffle(sample, ThreadLocalRandom.current());
+        hosts = peerHealth.rankForSearch(sample.subList(0, floodThreshold));
+      }
+      return new FanOut(filename, hosts, firstHitOnly).start();
+    });
   }
-  
-  private SearchResponse search(final String filename, final String host) {
-    System.out.println("Searching peer " + host + " for " + filename);
-    final SearchRequest searchRequest = SearchRequest.newBuilder().setFilename(filename).build();
-    final ManagedChannel channel = ManagedChannelBuilder.forAddress(host, port).usePlaintext(true).build();
-    final NeelaGrpc.NeelaBlockingStub blockingStub = NeelaGrpc.newBlockingStub(channel);
 
-    try {
-      return blockingStub.search(searchRequest);
-    } catch (StatusRuntimeException e) {
-      LOGGER.error("Error searching host {} for {}, {}", host, searchRequest, e);
-      return ERROR;
-    } finally {
+  private List<SearchResponse> rankHolders(final List<SearchResponse> holders) {
+    final Map<String, SearchResponse> byHost = new LinkedHashMap<>();
+    holders.forEach(holder -> byHost.putIfAbsent(holder.getHostAddress(), holder));
+    return peerHealth.rankForTransfer(byHost.keySet()).stream().map(byHost::get).collect(toList());
+  }
+
+  /*
+   * Queries peers over hedged async calls, keeping at most searchParallelism in flight per search. No thread
+   * blocks on a peer, so the thread count stays flat however many searches run. All RPCs of a search share
+   * one cancellable context, which is cancelled as soon as the search is answered.
+   */
+  private final class FanOut {
+    private final SearchRequest searchRequest;
+    private final boolean firstHitOnly;
+    private final List<String> hosts;
+    private final AtomicInteger launched = new AtomicInteger();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicBoolean hit = new AtomicBoolean();
+    private final long startedAt = System.nanoTime();
+    private final Map<String, SearchResponse> holders = new LinkedHashMap<>();
+    private final Context.CancellableContext context = Context.current().withCancellation();
+    private final CompletableFuture<List<SearchResponse>> result = new CompletableFuture<>();
+
+    private FanOut(final String filename, final List<String> hosts, final boolean firstHitOnly) {
+      this.searchRequest = SearchRequest.newBuilder().setFilename(filename).build();
+      this.hosts = hosts;
+      this.firstHitOnly = firstHitOnly;
+    }
+
+    private CompletableFuture<List<SearchResponse>> start() {
+      metrics.record(Metrics.Family.SEARCH_FANOUT, hosts.size());
+      if (hosts.isEmpty()) {
+        finish();
+      }
+      for (int i = 0; i < searchParallelism; i++) {
+        launchNext();
+      }
+      return result;
+    }
+
+    private void launchNext() {
+      final int index = launched.getAndIncrement();
+      if (index >= hosts.size() || result.isDone()) {
+        return;
+      }
+      final String host = hosts.get(index);
+      System.out.println("Searching peer " + host + " for " + searchRequest.getFilename());
+      final Context previous = context.attach();
       try {
-        channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
+        final ListenableFuture<SearchResponse> future = peerChannelPool.hedge(host, NeelaGrpc.METHOD_SEARCH,
+                                                                              channel -> NeelaGrpc.newFutureStub(channel).search(searchRequest));
+        Futures.addCallback(future, new FutureCallback<SearchResponse>() {
+          @Override
+          public void onSuccess(final SearchResponse response) {
+            completed(response);
+          }
+
+          @Override
+          public void onFailure(final Throwable t) {
+            if (!result.isDone()) {
+              LOGGER.error("Error searching host {} for {}, {}", host, searchRequest, t);
+            }
+            completed(ERROR);
+          }
+        }, executor);
+      } catch (RuntimeException e) {
+        LOGGER.error("Error searching host {} for {}, {}", host, searchRequest, e);
+        completed(ERROR);
+      } finally {
+        context.detach(previous);
+      }
+    }
+
+    private void completed(final SearchResponse response) {
+      if (response.getFound()) {
+        if (hit.compareAndSet(false, true)) {
+          metrics.record(Metrics.Family.SEARCH_FIRST_HIT, System.nanoTime() - startedAt);
+        }
+        synchronized (holders) {
+          holders.putIfAbsent(response.getHostAddress(), response);
+        }
+        if (firstHitOnly) {
+          finish();
+        }
+      }
+      if (completed.incrementAndGet() == hosts.size()) {
+        finish();
+      } else {
+        launchNext();
+      }
+    }
+
+    private void finish() {
+      final List<SearchResponse> found;
+      synchronized (holders) {
+        found = new ArrayList<>(holders.values());
+      }
+      if (result.complete(found)) {
+        context.cancel(null);
       }
     }
   }
   
   public SearchResponse search(final SearchRequest searchRequest) {
+    final long indexVersion = sharedIndex.getVersion();
+    final Optional<SharedIndex.SharedFile> sharedFile = sharedIndex.lookup(searchRequest.getFilename());
     return SearchResponse.newBuilder()
                          .setHostAddress(HOST_ADDRESS)
+                         .setIndexVersion(indexVersion)
                          .setFilename(searchRequest.getFilename())
-                         .setFound(Paths.get(sharedLocation + "/" + searchRequest.getFilename()).toFile().exists())
+                         .setFound(sharedFile.isPresent())
+                         .setSize(sharedFile.map(SharedIndex.SharedFile::getSize).orElse(0L))
+                         .setRootDigest(sharedFile.map(SharedIndex.SharedFile::getRootDigest).orElse(ByteString.EMPTY))
                          .build();
   }
 
-  private static String getMyHostAddress() {
+  public void find(final UserCommand userCommand, final Consumer<? super String> consumer) {
+    final FindRequest findRequest = FilenamePattern.parse(userCommand.getCommandArg()).toBuilder().setMaxResults(MAX_FIND_RESULTS).build();
     try {
-      return InetAddress.getLocalHost().getHostAddress();
-    } catch (UnknownHostException e) {
-      LOGGER.error("Unable to find my address ;(", e);
-      return "unknown";
+      FilenamePattern.compile(findRequest);
+    } catch (PatternSyntaxException e) {
+      consumer.accept("Invalid pattern " + findRequest.getPattern() + ": " + e.getDescription());
+      return;
+    }
+    final List<String> hosts = getHostsToSearch();
+    final ConcurrentMap<String, FindHit> hits = new ConcurrentHashMap<>();
+    final AtomicInteger pending = new AtomicInteger(hosts.size());
+    LOGGER.info("Finding {} across {}", findRequest, hosts);
+    if (hosts.isEmpty()) {
+      consumer.accept("No known peers to search for " + findRequest.getPattern());
     }
+    hosts.forEach(host -> NeelaGrpc.newStub(peerChannelPool.channelFor(host)).find(findRequest, new StreamObserver<SearchResponse>() {
+      @Override
+      public void onNext(final SearchResponse response) {
+        resultCache.observe(host, response.getIndexVersion());
+        final FindHit hit = hits.computeIfAbsent(hitKey(response), key -> new FindHit(response));
+        hit.hosts.add(host);
+        if (hit.announced.compareAndSet(false, true)) {
+          consumer.accept("Found:" + response.getFilename() + " (" + response.getSize() + " bytes) at " + host);
+        }
+      }
+
+      @Override
+      public void onError(final Throwable t) {
+        LOGGER.error("Error finding {} at {}, {}", findRequest.getPattern(), host, t);
+        completeIfLast();
+      }
+
+      @Override
+      public void onCompleted() {
+        completeIfLast();
+      }
+
+      private void completeIfLast() {
+        if (pending.decrementAndGet() == 0) {
+          consumer.accept(summarize(findRequest, hits, hosts.size()));
+        }
+      }
+    }));
   }
-  
+
+  private static String hitKey(final SearchResponse response) {
+    return response.getFilename() + ":" + response.getSize() + ":" + BaseEncoding.base16().encode(response.getRootDigest().toByteArray());
+  }
+
+  private static String summarize(final FindRequest findRequest, final Map<String, FindHit> hits, final int peers) {
+    final StringBuilder summary = new StringBuilder();
+    summary.append(hits.size()).append(" files matched ").append(findRequest.getMatchType()).append(" '").append(findRequest.getPattern())
+           .append("' across ").append(peers).append(" peers");
+    hits.values()
+        .stream()
+        .sorted(Comparator.comparingDouble((FindHit hit) -> hit.response.getScore()).reversed().thenComparing(hit -> hit.response.getFilename()))
+        .forEach(hit -> summary.append("\n  ").append(hit.response.getFilename()).append(" (").append(hit.response.getSize()).append(" bytes) on ").append(hit.hosts));
+    return summary.toString();
+  }
+
+  private static final class FindHit {
+    private final SearchResponse response;
+    private final List<String> hosts = new CopyOnWriteArrayList<>();
+    // Set by whichever holder's answer is printed first, however many arrive together
+    private final AtomicBoolean announced = new AtomicBoolean();
+
+    private FindHit(final SearchResponse response) {
+      this.response = response;
+    }
+  }
+
+  public void find(final FindRequest findRequest, final StreamObserver<SearchResponse> responseObserver) {
+    final FilenamePattern pattern;
+    try {
+      pattern = FilenamePattern.compile(findRequest);
+    } catch (PatternSyntaxException e) {
+      responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+      return;
+    }
+    final int maxResults = (findRequest.getMaxResults() > 0) ? Math.min(findRequest.getMaxResults(), MAX_FIND_RESULTS) : MAX_FIND_RESULTS;
+    final long indexVersion = sharedIndex.getVersion();
+    sharedIndex.candidates(pattern.getLiterals())
+               .map(sharedFile -> scored(sharedFile, pattern.score(sharedFile.getFilename()), indexVersion))
+               .filter(Optional::isPresent)
+               .map(Optional::get)
+               .sorted(Comparator.comparingDouble(SearchResponse::getScore).reversed().thenComparing(SearchResponse::getFilename))
+               .limit(maxResults)
+               .forEach(responseObserver::onNext);
+    responseObserver.onCompleted();
+  }
+
+  private Optional<SearchResponse> scored(final SharedIndex.SharedFile sharedFile, final OptionalDouble score, final long indexVersion) {
+    if (!score.isPresent()) {
+      return Optional.empty();
+    }
+    return Optional.of(SearchResponse.newBuilder()
+                                     .setHostAddress(HOST_ADDRESS)
+                                     .setFilename(sharedFile.getFilename())
+                                     .setFound(true)
+                                     .setSize(sharedFile.getSize())
+                                     .setRootDigest(sharedFile.getRootDigest())
+                                     .setScore(score.getAsDouble())
+                                     .setIndexVersion(indexVersion)
+                                     .build());
+  }
+
   private List<String> getHostsToSearch() {
-    return bootStrapper.getPeerRegister()
-                       .getKnownPeersList()
-                       .stream()
-                       .map(PeerInfo::getHostAddress)
-                       .distinct()
-                       .collect(toList());
+    return peerHealth.rankForSearch(bootStrapper.getPeerRegister()
+                                                .getKnownPeersList()
+                                                .stream()
+                                                .map(PeerInfo::getHostAddress)
+                                                .collect(toList()));
   }
   
   private SearchResponse handleException(final Throwable ex) {
     LOGGER.error("Error searching",ex);
     return SearchResponse.newBuilder().setFound(false).build();
   }  
-
-  private void validateConstructorArgs(final int port, final String sharedLocation) {
-    checkArgument(isValidPort(port), "Invalid port; out of valid range");
-    checkArgument(isNotBlank(sharedLocation), "Invalid sharedLocation");
-  }
 }
\ No newline at end of file
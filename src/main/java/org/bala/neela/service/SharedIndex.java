@@ -0,0 +1,382 @@
+package org.bala.neela.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static java.util.Objects.requireNonNull;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.bala.neela.grpc.ChunkList;
+
+import com.google.protobuf.ByteString;
+
+public class SharedIndex {
+  private static final Logger LOGGER = LoggerFactory.getLogger(SharedIndex.class);
+
+  private final Path sharedDirectory;
+  private final ManifestStore manifestStore;
+  private final ChunkStore chunkStore;
+  private final int journalSize;
+  private final long hashSettleMillis;
+  private final Set<Path> excludedPaths;
+  private final ConcurrentMap<String, SharedFile> files = new ConcurrentHashMap<>();
+  private final FilenameIndex filenameIndex = new FilenameIndex();
+  // Starts from the clock so that a restarted peer never reports a version its clients have already seen
+  private final AtomicLong version = new AtomicLong(System.currentTimeMillis());
+  // The last journalSize changes by version, enough for a peer that browsed recently to catch up with a delta
+  private final NavigableMap<Long, Change> journal = new TreeMap<>();
+  private long journalFloor = version.get();
+  // Files waiting to settle before they are hashed, with the entry they had when they started waiting
+  private final ConcurrentMap<String, SharedFile> settling = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService hasher = Executors.newSingleThreadScheduledExecutor(r -> {
+    final Thread thread = new Thread(r, "shared-index-hasher");
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MIN_PRIORITY);
+    return thread;
+  });
+  private WatchService watchService;
+
+  // excludedFiles are files of the peer's own kept in the shared directory, such as the peer register
+  public SharedIndex(final String sharedLocation,
+                     final ManifestStore manifestStore,
+                     final ChunkStore chunkStore,
+                     final int journalSize,
+                     final long hashSettleMillis,
+                     final Collection<String> excludedFiles) {
+    checkArgument(isNotBlank(sharedLocation), "Invalid sharedLocation");
+    checkArgument(journalSize >= 0, "Invalid journalSize");
+    checkArgument(hashSettleMillis >= 0, "Invalid hashSettleMillis");
+
+    this.sharedDirectory = Paths.get(sharedLocation.trim());
+    this.manifestStore = requireNonNull(manifestStore);
+    this.chunkStore = requireNonNull(chunkStore);
+    this.journalSize = journalSize;
+    this.hashSettleMillis = hashSettleMillis;
+    this.excludedPaths = excludedFiles.stream().map(file -> normalize(Paths.get(file.trim()))).collect(toSet());
+  }
+
+  @PostConstruct
+  private void start() throws IOException {
+    watchService = sharedDirectory.getFileSystem().newWatchService();
+    sharedDirectory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+    rescan();
+    final Thread watcher = new Thread(this::watch, "shared-index-watcher");
+    watcher.setDaemon(true);
+    watcher.start();
+  }
+
+  @PreDestroy
+  private void shutdown() throws IOException {
+    hasher.shutdownNow();
+    if (watchService != null) {
+      watchService.close();
+    }
+  }
+
+  public Optional<SharedFile> lookup(final String filename) {
+    return Optional.ofNullable(files.get(filename));
+  }
+
+  /*
+   * Whether a name a peer asked for is one of ours. The name has to resolve to a file directly in the share,
+   * so ../ and absolute names are turned away before the index is looked at, and it has to be indexed, which
+   * leaves out anything excluded, such as the peer register.
+   */
+  public boolean publishes(final String filename) {
+    try {
+      final Path path = normalize(sharedDirectory.resolve(filename));
+      return normalize(sharedDirectory).equals(path.getParent()) && path.getFileName().toString().equals(filename) && files.containsKey(filename);
+    } catch (InvalidPathException e) {
+      return false;
+    }
+  }
+
+  /*
+   * The chunk list a peer asked for. One already computed for the file as it is now is answered at once; any
+   * other is computed on the hasher thread, behind the hashing already queued, so that no handler thread reads
+   * a whole file.
+   */
+  public CompletableFuture<ChunkList> chunksOf(final String filename) {
+    final CompletableFuture<ChunkList> chunks = new CompletableFuture<>();
+    try {
+      final Optional<ChunkList> indexed = chunkStore.indexedChunksOf(filename);
+      if (indexed.isPresent()) {
+        chunks.complete(indexed.get());
+      } else {
+        hasher.execute(() -> {
+          try {
+            chunks.complete(chunkStore.chunksOf(filename));
+          } catch (IOException|RuntimeException e) {
+            chunks.completeExceptionally(e);
+          }
+        });
+      }
+    } catch (IOException|RejectedExecutionException e) {
+      chunks.completeExceptionally(e);
+    }
+    return chunks;
+  }
+
+  public long getVersion() {
+    return version.get();
+  }
+
+  public List<String> filenames() {
+    return files.keySet().stream().sorted().collect(toList());
+  }
+
+  /*
+   * What changed after sinceVersion, with only the last change of each file. Empty when the journal no longer
+   * reaches back that far, or the version was never ours, in which case the caller has to take a full listing.
+   */
+  public synchronized Optional<Changes> changesSince(final long sinceVersion) {
+    final long current = version.get();
+    if (sinceVersion < journalFloor || sinceVersion > current) {
+      return Optional.empty();
+    }
+    final Map<String, Boolean> latest = new TreeMap<>();
+    journal.tailMap(sinceVersion, false).values().forEach(change -> latest.put(change.filename, change.removed));
+    final List<String> added = new ArrayList<>();
+    final List<String> removed = new ArrayList<>();
+    latest.forEach((filename, isRemoved) -> (isRemoved ? removed : added).add(filename));
+    return Optional.of(new Changes(current, added, removed));
+  }
+
+  public Stream<SharedFile> candidates(final Collection<String> literals) {
+    return filenameIndex.candidates(literals)
+                        .stream()
+                        .map(files::get)
+                        .filter(Objects::nonNull);
+  }
+
+  public void rescan() {
+    try (final Stream<Path> paths = Files.list(sharedDirectory)) {
+      final Set<String> present = paths.map(this::refresh)
+                                       .filter(Optional::isPresent)
+                                       .map(Optional::get)
+                                       .collect(toSet());
+      files.keySet().stream()
+           .filter(filename -> !present.contains(filename))
+           .collect(toList())
+           .forEach(this::remove);
+      LOGGER.info("Indexed {} shared files in {}", files.size(), sharedDirectory);
+    } catch (IOException e) {
+      LOGGER.error("Error scanning {}, {}", sharedDirectory, e);
+    }
+  }
+
+  Optional<String> refresh(final Path path) {
+    final String filename = path.getFileName().toString();
+    if (excludedPaths.contains(normalize(path))) {
+      return Optional.empty();
+    }
+    try {
+      final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      if (!attributes.isRegularFile()) {
+        return Optional.empty();
+      }
+      final SharedFile current = files.get(filename);
+      if (current == null || !current.matches(attributes.size(), attributes.lastModifiedTime().toMillis())) {
+        files.put(filename, new SharedFile(filename, attributes.size(), attributes.lastModifiedTime().toMillis(), ByteString.EMPTY));
+        filenameIndex.add(filename);
+        changed(filename, false);
+        hashWhenSettled(filename);
+      }
+      return Optional.of(filename);
+    } catch (IOException e) {
+      remove(filename);
+      return Optional.empty();
+    }
+  }
+
+  private void remove(final String filename) {
+    if (files.remove(filename) != null) {
+      filenameIndex.remove(filename);
+      chunkStore.forget(filename);
+      changed(filename, true);
+    }
+  }
+
+  // Bumped only after the files map has changed, so a listing taken after reading the version is never older than it
+  private synchronized void changed(final String filename, final boolean removed) {
+    journal.put(version.incrementAndGet(), new Change(filename, removed));
+    while (journal.size() > journalSize) {
+      journalFloor = journal.pollFirstEntry().getKey();
+    }
+  }
+
+  /*
+   * A file being written into the share changes with every write. It is hashed only once it has gone
+   * hashSettleMillis without changing size or modification time, rather than once per change.
+   */
+  private void hashWhenSettled(final String filename) {
+    final SharedFile indexed = files.get(filename);
+    if (indexed != null && settling.putIfAbsent(filename, indexed) == null) {
+      hasher.schedule(() -> settled(filename), hashSettleMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void settled(final String filename) {
+    final SharedFile waited = settling.remove(filename);
+    final SharedFile indexed = files.get(filename);
+    if (indexed == null) {
+      return;
+    }
+    if (indexed != waited) {
+      hashWhenSettled(filename);
+      return;
+    }
+    hash(filename);
+  }
+
+  private static Path normalize(final Path path) {
+    return path.toAbsolutePath().normalize();
+  }
+
+  // Warms the manifest cache and chunk index as well, so the first Manifest or Chunks request does not have to read the file
+  private void hash(final String filename) {
+    final SharedFile indexed = files.get(filename);
+    if (indexed == null || !indexed.rootDigest.isEmpty()) {
+      return;
+    }
+    try {
+      final ByteString rootDigest = manifestStore.getManifest(filename).getRootDigest();
+      files.replace(filename, indexed, new SharedFile(filename, indexed.size, indexed.lastModified, rootDigest));
+      chunkStore.chunksOf(filename);
+    } catch (IOException e) {
+      LOGGER.warn("Unable to hash shared file {}, {}", filename, e);
+    }
+  }
+
+  private void watch() {
+    try {
+      while (true) {
+        final WatchKey key = watchService.take();
+        for (final WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == OVERFLOW) {
+            rescan();
+          } else if (event.kind() == ENTRY_DELETE) {
+            remove(event.context().toString());
+          } else {
+            refresh(sharedDirectory.resolve((Path) event.context()));
+          }
+        }
+        if (!key.reset()) {
+          LOGGER.error("{} is no longer accessible; the shared index will not be updated", sharedDirectory);
+          return;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ClosedWatchServiceException e) {
+      LOGGER.info("Stopped watching {}", sharedDirectory);
+    }
+  }
+
+  private static final class Change {
+    private final String filename;
+    private final boolean removed;
+
+    private Change(final String filename, final boolean removed) {
+      this.filename = filename;
+      this.removed = removed;
+    }
+  }
+
+  public static final class Changes {
+    private final long version;
+    private final List<String> added;
+    private final List<String> removed;
+
+    private Changes(final long version, final List<String> added, final List<String> removed) {
+      this.version = version;
+      this.added = added;
+      this.removed = removed;
+    }
+
+    public long getVersion() {
+      return version;
+    }
+
+    public List<String> getAdded() {
+      return added;
+    }
+
+    public List<String> getRemoved() {
+      return removed;
+    }
+  }
+
+  public static final class SharedFile {
+    private final String filename;
+    private final long size;
+    private final long lastModified;
+    private final ByteString rootDigest;
+
+    private SharedFile(final String filename, final long size, final long lastModified, final ByteString rootDigest) {
+      this.filename = filename;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.rootDigest = rootDigest;
+    }
+
+    private boolean matches(final long size, final long lastModified) {
+      return this.size == size && this.lastModified == lastModified;
+    }
+
+    public String getFilename() {
+      return filename;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    public ByteString getRootDigest() {
+      return rootDigest;
+    }
+  }
+}
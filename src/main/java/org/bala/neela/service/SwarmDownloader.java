@@ -0,0 +1,451 @@
+package org.bala.neela.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+import static java.util.function.Function.identity;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.bala.neela.grpc.Chunk;
+import org.bala.neela.grpc.DownloadRequest;
+import org.bala.neela.grpc.DownloadResponse;
+import org.bala.neela.grpc.FileManifest;
+import org.bala.neela.grpc.ManifestRequest;
+import org.bala.neela.grpc.NeelaGrpc;
+import org.bala.neela.grpc.SearchResponse;
+import org.bala.neela.ui.UserCommand;
+
+import com.google.protobuf.ByteString;
+
+import io.grpc.Context;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+
+public class SwarmDownloader {
+  private static final Logger LOGGER = LoggerFactory.getLogger(SwarmDownloader.class);
+
+  private final String sharedLocation;
+  private final int maxSources;
+  private final long stealAfterMillis;
+  private final int maxFailuresPerSource;
+  private final SearchEngine searchEngine;
+  private final PeerChannelPool peerChannelPool;
+  private final PeerHealth peerHealth;
+  private final ChunkStore chunkStore;
+  private final ScheduledExecutorService executor;
+
+  public SwarmDownloader(final String sharedLocation,
+                         final int maxSources,
+                         final long stealAfterMillis,
+                         final int maxFailuresPerSource,
+                         final SearchEngine searchEngine,
+                         final PeerChannelPool peerChannelPool,
+                         final PeerHealth peerHealth,
+                         final ChunkStore chunkStore) {
+    checkArgument(isNotBlank(sharedLocation), "Invalid sharedLocation");
+    checkArgument(maxSources > 0, "Invalid maxSources");
+    checkArgument(stealAfterMillis >= 0, "Invalid stealAfterMillis");
+    checkArgument(maxFailuresPerSource > 0, "Invalid maxFailuresPerSource");
+
+    this.sharedLocation = sharedLocation.trim();
+    this.maxSources = maxSources;
+    this.stealAfterMillis = stealAfterMillis;
+    this.maxFailuresPerSource = maxFailuresPerSource;
+    this.searchEngine = requireNonNull(searchEngine);
+    this.peerChannelPool = requireNonNull(peerChannelPool);
+    this.peerHealth = requireNonNull(peerHealth);
+    this.chunkStore = requireNonNull(chunkStore);
+    this.executor = Executors.newScheduledThreadPool(maxSources, r -> {
+      final Thread thread = new Thread(r, "swarm-downloader");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    executor.shutdownNow();
+  }
+
+  public void download(final UserCommand userCommand, final Consumer<? super String> consumer) {
+    final String filename = userCommand.getCommandArg();
+    Tracing.trace(() -> searchEngine.searchAll(filename)
+                                    .thenCompose(holders -> download(filename, holders))
+                                    .exceptionally(ex -> "Error swarm downloading " + filename + ", " + ex.toString())
+                                    .thenAcceptAsync(consumer));
+  }
+
+  private CompletableFuture<String> download(final String filename, final List<SearchResponse> holders) {
+    if (holders.isEmpty()) {
+      return CompletableFuture.completedFuture(filename + " not found with any of the known peers");
+    }
+    final Map<String, SearchResponse> byHost = holders.stream().collect(toMap(SearchResponse::getHostAddress, identity(), (first, second) -> first));
+    final List<SearchResponse> ranked = peerHealth.rankForTransfer(byHost.keySet()).stream().map(byHost::get).collect(toList());
+    if (ranked.isEmpty()) {
+      return CompletableFuture.completedFuture("None of the peers holding " + filename + " are currently reachable");
+    }
+    final long size = ranked.get(0).getSize();
+    final List<SearchResponse> sources = ranked.stream()
+                                               .filter(holder -> holder.getSize() == size)
+                                               .limit(maxSources)
+                                               .collect(toList());
+    LOGGER.info("Swarm downloading {} ({} bytes) from {}", filename, size, sources);
+    try {
+      // The first source may hold the content under another name; it is saved under the name asked for
+      final ManifestRequest manifestRequest = ManifestRequest.newBuilder().setFilename(sources.get(0).getFilename()).build();
+      final FileManifest manifest = peerChannelPool.callHedged(sources.get(0).getHostAddress(), NeelaGrpc.METHOD_MANIFEST,
+                                                               channel -> NeelaGrpc.newFutureStub(channel).manifest(manifestRequest))
+                                                 .toBuilder()
+                                                 .setFilename(filename)
+                                                 .build();
+      final List<Chunk> chunks = remoteChunks(sources.get(0).getHostAddress(), sources.get(0).getFilename());
+      if (chunkStore.holds(filename, chunks)) {
+        return CompletableFuture.completedFuture(filename + " is already shared with the same content; nothing to download");
+      }
+      final PartialDownload partialDownload = PartialDownload.open(sharedLocation, manifest);
+      try {
+        // Pieces we can rebuild entirely from local chunks never go to the swarm
+        chunkStore.reuse(partialDownload, chunks, range -> Optional.empty());
+      } catch (IOException e) {
+        partialDownload.close();
+        throw e;
+      }
+      return new Swarm(partialDownload, sources).start();
+    } catch (IOException|StatusRuntimeException e) {
+      LOGGER.error("Error preparing swarm download of {}, {}", filename, e);
+      final CompletableFuture<String> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+  }
+
+  private List<Chunk> remoteChunks(final String host, final String filename) {
+    try {
+      final ManifestRequest manifestRequest = ManifestRequest.newBuilder().setFilename(filename).build();
+      return peerChannelPool.callHedged(host, NeelaGrpc.METHOD_CHUNKS, channel -> NeelaGrpc.newFutureStub(channel).chunks(manifestRequest)).getChunksList();
+    } catch (StatusRuntimeException e) {
+      LOGGER.warn("No chunk list of {} from {}; fetching all of it, {}", filename, host, e);
+      return Collections.emptyList();
+    }
+  }
+
+  private static final class Piece {
+    private final int index;
+    private final long offset;
+    private final int length;
+    private final AtomicBoolean done = new AtomicBoolean();
+    private volatile long startedAt = Long.MAX_VALUE;
+
+    private Piece(final int index, final long offset, final int length) {
+      this.index = index;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /*
+   * Pieces are fetched over async calls, one at a time per source, each source taking its next piece from
+   * the completion callback of the last. No thread waits on a peer, so the executor only writes verified
+   * pieces and needs no more threads than there are sources. A source finding nothing to fetch is parked
+   * until a piece is handed back, or until the oldest piece in flight has run long enough to be stolen.
+   */
+  private final class Swarm {
+    private final PartialDownload partialDownload;
+    private final String filename;
+    private final List<Source> sources;
+    private final List<Piece> pieces = new ArrayList<>();
+    private final ConcurrentLinkedQueue<Piece> pending = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Source> parked = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger remaining;
+    private final AtomicInteger activeSources;
+    private final CompletableFuture<String> completed = new CompletableFuture<>();
+
+    private Swarm(final PartialDownload partialDownload, final List<SearchResponse> holders) {
+      this.partialDownload = partialDownload;
+      this.filename = partialDownload.getManifest().getFilename();
+      this.sources = holders.stream().map(Source::new).collect(toList());
+      final FileManifest manifest = partialDownload.getManifest();
+      for (int index = 0; index < ManifestStore.pieceCount(manifest); index++) {
+        if (!partialDownload.isVerified(index)) {
+          pieces.add(new Piece(index, ManifestStore.pieceOffset(manifest, index), ManifestStore.pieceLength(manifest, index)));
+        }
+      }
+      pending.addAll(pieces);
+      remaining = new AtomicInteger(pieces.size());
+      activeSources = new AtomicInteger(sources.size());
+    }
+
+    private CompletableFuture<String> start() {
+      if (pieces.isEmpty()) {
+        finish();
+      } else {
+        sources.forEach(source -> executor.execute(source::next));
+      }
+      return completed;
+    }
+
+    private Piece pollPending() {
+      for (Piece piece = pending.poll(); piece != null; piece = pending.poll()) {
+        if (!piece.done.get()) {
+          piece.startedAt = System.currentTimeMillis();
+          return piece;
+        }
+      }
+      return null;
+    }
+
+    private Optional<Piece> stealSlowest() {
+      final long threshold = System.currentTimeMillis() - stealAfterMillis;
+      return pieces.stream()
+                   .filter(piece -> !piece.done.get() && piece.startedAt < threshold)
+                   .min(Comparator.comparingLong(piece -> piece.startedAt))
+                   .map(piece -> {
+                     piece.startedAt = System.currentTimeMillis();
+                     return piece;
+                   });
+    }
+
+    // Until the oldest piece in flight may be stolen; pieces handed back wake a parked source before then
+    private long millisUntilStealable() {
+      final long oldest = pieces.stream().filter(piece -> !piece.done.get()).mapToLong(piece -> piece.startedAt).min().orElse(Long.MAX_VALUE);
+      return (oldest == Long.MAX_VALUE) ? stealAfterMillis : Math.max(1, oldest + stealAfterMillis - System.currentTimeMillis());
+    }
+
+    private void handBack(final Piece piece) {
+      if (!piece.done.get()) {
+        pending.add(piece);
+        for (Source source = parked.poll(); source != null && !source.unpark(); source = parked.poll()) {
+          // Woken by its timer meanwhile; the next one takes the piece
+        }
+      }
+    }
+
+    private void finish() {
+      try {
+        final Path path = chunkStore.deduplicate(partialDownload.commit());
+        final String msg = "Swarm downloading of " + filename + " from " + sources.size() + " peers complete; verified and saved as " + path;
+        LOGGER.info(msg);
+        completed.complete(msg);
+      } catch (IOException e) {
+        fail(e);
+      }
+      parked.forEach(Source::unpark);
+      sources.forEach(source -> source.abandon(null));
+    }
+
+    private void fail(final Throwable cause) {
+      if (completed.completeExceptionally(cause)) {
+        LOGGER.error("Swarm downloading of {} failed; verified pieces are kept for resuming, {}", filename, cause);
+        partialDownload.close();
+        parked.forEach(Source::unpark);
+        sources.forEach(source -> source.abandon(null));
+      }
+    }
+
+    private final class Source {
+      private final SearchResponse holder;
+      private final String host;
+      private final ByteBuffer pieceBuffer = ByteBuffer.allocate(partialDownload.getManifest().getPieceSize());
+      private final AtomicBoolean isParked = new AtomicBoolean();
+      private volatile ScheduledFuture<?> wakeUp;
+      private volatile Piece fetching;
+      private volatile Context.CancellableContext call;
+      private int failures = 0;
+
+      private Source(final SearchResponse holder) {
+        this.holder = holder;
+        this.host = holder.getHostAddress();
+      }
+
+      private void next() {
+        if (completed.isDone()) {
+          return;
+        }
+        if (failures >= maxFailuresPerSource) {
+          retire();
+          return;
+        }
+        final Piece pendingPiece = pollPending();
+        final Optional<Piece> piece = (pendingPiece != null) ? Optional.of(pendingPiece) : stealSlowest();
+        if (piece.isPresent()) {
+          fetch(piece.get());
+        } else if (remaining.get() > 0) {
+          park();
+        }
+      }
+
+      // A piece handed back between the poll and parking is not missed, as the queue is looked at again
+      private void park() {
+        isParked.set(true);
+        parked.add(this);
+        wakeUp = executor.schedule(this::unpark, millisUntilStealable(), TimeUnit.MILLISECONDS);
+        if (!pending.isEmpty() || completed.isDone()) {
+          unpark();
+        }
+      }
+
+      private boolean unpark() {
+        if (!isParked.compareAndSet(true, false)) {
+          return false;
+        }
+        parked.remove(this);
+        final ScheduledFuture<?> scheduled = wakeUp;
+        if (scheduled != null) {
+          scheduled.cancel(false);
+        }
+        executor.execute(this::next);
+        return true;
+      }
+
+      private void retire() {
+        if (activeSources.decrementAndGet() == 0 && !completed.isDone()) {
+          fail(new IOException(remaining.get() + " pieces of " + filename + " could not be fetched from any source"));
+        }
+      }
+
+      private void fetch(final Piece piece) {
+        final DownloadRequest downloadRequest = DownloadRequest.newBuilder()
+                                                               .setFilename(holder.getFilename())
+                                                               .setOffset(piece.offset)
+                                                               .setLength(piece.length)
+                                                               .addAllAcceptedCompression(TransferCompression.ACCEPTED)
+                                                               .build();
+        final AtomicBoolean verified = new AtomicBoolean();
+        final PieceHasher hasher = new PieceHasher(partialDownload.getManifest(), piece.offset,
+                                                   index -> verified.set(true),
+                                                   index -> LOGGER.warn("Piece {} of {} from {} is corrupt", index, filename, host));
+        pieceBuffer.clear();
+        final long startedAt = System.nanoTime();
+        final Context.CancellableContext context = Context.current().withCancellation();
+        fetching = piece;
+        call = context;
+        final Context previous = context.attach();
+        try {
+          NeelaGrpc.newStub(peerChannelPool.channelFor(host)).download(downloadRequest, new StreamObserver<DownloadResponse>() {
+            private boolean ended = false;
+
+            // Stops taking content once another source has delivered the piece or the content does not fit
+            @Override
+            public void onNext(final DownloadResponse response) {
+              if (ended) {
+                return;
+              }
+              try {
+                if (piece.done.get() || completed.isDone()) {
+                  ended = true;
+                  context.cancel(null);
+                  executor.execute(() -> fetched(piece, null));
+                  return;
+                }
+                final ByteString content = TransferCompression.contentOf(response);
+                hasher.update(response.getOffset(), content.asReadOnlyByteBuffer());
+                pieceBuffer.put(content.asReadOnlyByteBuffer());
+              } catch (IOException|IllegalStateException|BufferOverflowException e) {
+                ended = true;
+                context.cancel(e);
+                executor.execute(() -> fetched(piece, e));
+              }
+            }
+
+            @Override
+            public void onError(final Throwable t) {
+              if (!ended) {
+                ended = true;
+                executor.execute(() -> fetched(piece, t));
+              }
+            }
+
+            @Override
+            public void onCompleted() {
+              if (!ended) {
+                ended = true;
+                context.cancel(null);
+                executor.execute(() -> delivered(piece, verified.get(), System.nanoTime() - startedAt));
+              }
+            }
+          });
+        } catch (StatusRuntimeException e) {
+          context.cancel(e);
+          executor.execute(() -> fetched(piece, e));
+        } finally {
+          context.detach(previous);
+        }
+      }
+
+      // The loser of a stolen piece, or any source once the swarm is over, ends its call rather than waiting it out
+      private void abandon(final Piece piece) {
+        final Context.CancellableContext context = call;
+        if (context != null && (piece == null || fetching == piece)) {
+          context.cancel(null);
+        }
+      }
+
+      private void delivered(final Piece piece, final boolean verified, final long elapsedNanos) {
+        if (!verified) {
+          fetched(piece, new IOException("Piece " + piece.index + " did not verify"));
+          return;
+        }
+        try {
+          peerHealth.recordTransfer(host, pieceBuffer.position(), elapsedNanos);
+          pieceBuffer.flip();
+          if (partialDownload.writePiece(piece.index, pieceBuffer) && piece.done.compareAndSet(false, true)) {
+            sources.stream().filter(source -> source != this).forEach(source -> source.abandon(piece));
+            if (remaining.decrementAndGet() == 0) {
+              finish();
+            }
+          }
+          fetched(piece, null);
+        } catch (IOException e) {
+          fetched(piece, e);
+        }
+      }
+
+      // A piece delivered by either source counts as success; a busy source is not asked again before it said
+      private void fetched(final Piece piece, final Throwable failure) {
+        if (completed.isDone()) {
+          return;
+        }
+        if (piece.done.get()) {
+          failures = 0;
+          next();
+          return;
+        }
+        LOGGER.warn("Error fetching piece {} of {} from {}, {}", piece.index, filename, host, failure);
+        failures++;
+        handBack(piece);
+        final Optional<Long> retryAfterMillis = (failure == null) ? Optional.empty() : AdmissionControl.retryAfterMillis(failure);
+        if (retryAfterMillis.isPresent()) {
+          executor.schedule(this::next, Math.min(retryAfterMillis.get(), stealAfterMillis), TimeUnit.MILLISECONDS);
+        } else {
+          next();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package org.bala.neela.service;
+
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+
+import org.slf4j.MDC;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.ForwardingClientCall.SimpleForwardingClientCall;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+
+/*
+ * Trace ids tie together the RPCs made on behalf of one transfer, on every peer they reach. The id travels in
+ * the neela-trace-id header and is current in the gRPC Context while a call is handled, so that calls made
+ * from there carry it on. It is also put in the logging MDC as traceId, for grepping one transfer's lines.
+ */
+public class Tracing implements ClientInterceptor, ServerInterceptor {
+  public static final Metadata.Key<String> TRACE_ID_HEADER = Metadata.Key.of("neela-trace-id", Metadata.ASCII_STRING_MARSHALLER);
+  public static final String MDC_KEY = "traceId";
+  private static final Context.Key<String> TRACE_ID = Context.key("neela-trace-id");
+  private static final Pattern VALID_TRACE_ID = Pattern.compile("[0-9a-f]{1,32}");
+
+  // Runs the task in a new trace, unless it already is part of one
+  public static void trace(final Runnable task) {
+    final String traceId = currentOrNew();
+    Context.current().withValue(TRACE_ID, traceId).run(() -> withMdc(traceId, task));
+  }
+
+  public static Optional<String> currentTraceId() {
+    return Optional.ofNullable(TRACE_ID.get());
+  }
+
+  private static String currentOrNew() {
+    return currentTraceId().orElseGet(() -> String.format("%016x", ThreadLocalRandom.current().nextLong()));
+  }
+
+  private static void withMdc(final String traceId, final Runnable task) {
+    final String previous = MDC.get(MDC_KEY);
+    MDC.put(MDC_KEY, traceId);
+    try {
+      task.run();
+    } finally {
+      if (previous == null) {
+        MDC.remove(MDC_KEY);
+      } else {
+        MDC.put(MDC_KEY, previous);
+      }
+    }
+  }
+
+  @Override
+  public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(final MethodDescriptor<ReqT, RespT> method, final CallOptions callOptions, final Channel next) {
+    final String traceId = currentOrNew();
+    return new SimpleForwardingClientCall<ReqT, RespT>(next.newCall(method, callOptions)) {
+      @Override
+      public void start(final Listener<RespT> responseListener, final Metadata headers) {
+        headers.put(TRACE_ID_HEADER, traceId);
+        super.start(responseListener, headers);
+      }
+    };
+  }
+
+  // A header that is not one of our ids is replaced rather than let into the logs
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(final ServerCall<ReqT, RespT> call, final Metadata headers, final ServerCallHandler<ReqT, RespT> next) {
+    final String traceId = Optional.ofNullable(headers.get(TRACE_ID_HEADER)).filter(id -> VALID_TRACE_ID.matcher(id).matches()).orElseGet(Tracing::currentOrNew);
+    final Context context = Context.current().withValue(TRACE_ID, traceId);
+    return new SimpleForwardingServerCallListener<ReqT>(Contexts.interceptCall(context, call, headers, next)) {
+      @Override
+      public void onMessage(final ReqT message) {
+        withMdc(traceId, () -> super.onMessage(message));
+      }
+
+      @Override
+      public void onHalfClose() {
+        withMdc(traceId, () -> super.onHalfClose());
+      }
+
+      @Override
+      public void onCancel() {
+        withMdc(traceId, () -> super.onCancel());
+      }
+
+      @Override
+      public void onComplete() {
+        withMdc(traceId, () -> super.onComplete());
+      }
+
+      @Override
+      public void onReady() {
+        withMdc(traceId, () -> super.onReady());
+      }
+    };
+  }
+}
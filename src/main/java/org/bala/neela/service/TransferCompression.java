@@ -0,0 +1,158 @@
+package org.bala.neela.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import org.bala.neela.grpc.Compression;
+import org.bala.neela.grpc.DownloadResponse;
+import org.bala.neela.grpc.UploadRequest;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+/*
+ * Per chunk deflate of transfer content. The receiver lists the codecs it can inflate and the sender picks a
+ * level from the file extension: none for formats that are compressed already, a higher one for text, and a
+ * fast one for everything else. The first chunk doubles as a sample; if it does not shrink enough the rest of
+ * the file goes out raw.
+ */
+public class TransferCompression {
+  public static final List<Compression> ACCEPTED = Collections.singletonList(Compression.DEFLATE);
+
+  private static final Set<String> COMPRESSED_EXTENSIONS = ImmutableSet.of("7z", "avi", "bz2", "docx", "flac", "gif", "gz", "jar", "jpeg", "jpg",
+                                                                          "lz4", "m4a", "mkv", "mov", "mp3", "mp4", "ogg", "pdf", "png", "pptx",
+                                                                          "rar", "tgz", "webm", "webp", "xlsx", "xz", "zip", "zst");
+  private static final Set<String> TEXT_EXTENSIONS = ImmutableSet.of("c", "csv", "h", "htm", "html", "java", "js", "json", "log", "md",
+                                                                    "properties", "py", "sql", "tsv", "txt", "xml", "yaml", "yml");
+
+  private final int textLevel;
+  private final int defaultLevel;
+  private final double maxRatio;
+
+  public TransferCompression(final int textLevel, final int defaultLevel, final double maxRatio) {
+    checkArgument(textLevel >= Deflater.NO_COMPRESSION && textLevel <= Deflater.BEST_COMPRESSION, "Invalid textLevel");
+    checkArgument(defaultLevel >= Deflater.NO_COMPRESSION && defaultLevel <= Deflater.BEST_COMPRESSION, "Invalid defaultLevel");
+    checkArgument(maxRatio > 0 && maxRatio < 1, "Invalid maxRatio");
+
+    this.textLevel = textLevel;
+    this.defaultLevel = defaultLevel;
+    this.maxRatio = maxRatio;
+  }
+
+  public Encoder encoder(final String filename, final List<Compression> accepted) {
+    return new Encoder(accepted.contains(Compression.DEFLATE) ? levelFor(filename) : Deflater.NO_COMPRESSION, maxRatio);
+  }
+
+  int levelFor(final String filename) {
+    final String extension = filename.substring(filename.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+    if (COMPRESSED_EXTENSIONS.contains(extension)) {
+      return Deflater.NO_COMPRESSION;
+    }
+    return TEXT_EXTENSIONS.contains(extension) ? textLevel : defaultLevel;
+  }
+
+  public static ByteString contentOf(final DownloadResponse response) throws ZipException {
+    return (response.getCompression() == Compression.DEFLATE) ? inflate(response.getContent(), response.getLength()) : response.getContent();
+  }
+
+  public static ByteString contentOf(final UploadRequest request) throws ZipException {
+    return (request.getCompression() == Compression.DEFLATE) ? inflate(request.getContent(), request.getLength()) : request.getContent();
+  }
+
+  private static ByteString inflate(final ByteString content, final int length) throws ZipException {
+    if (length <= 0 || length > Downloader.MAX_CHUNK_SIZE) {
+      throw new ZipException("Invalid length " + length + " of compressed content");
+    }
+    final Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(content.toByteArray());
+      final byte[] raw = new byte[length];
+      int inflated = 0;
+      while (inflated < length && !inflater.finished()) {
+        final int read = inflater.inflate(raw, inflated, length - inflated);
+        if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        inflated += read;
+      }
+      if (inflated != length || !inflater.finished()) {
+        throw new ZipException("Compressed content inflated to " + inflated + " bytes instead of " + length);
+      }
+      return UnsafeByteOperations.unsafeWrap(raw);
+    } catch (DataFormatException e) {
+      throw new ZipException("Corrupt compressed content: " + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+
+  // Not thread safe; one per transfer, closed when the transfer ends to release the native deflater
+  public static final class Encoder implements AutoCloseable {
+    private final double maxRatio;
+    private Deflater deflater;
+    private byte[] input = new byte[0];
+    private byte[] output = new byte[0];
+    private long rawBytes;
+    private long sentBytes;
+
+    private Encoder(final int level, final double maxRatio) {
+      this.maxRatio = maxRatio;
+      this.deflater = (level == Deflater.NO_COMPRESSION) ? null : new Deflater(level);
+    }
+
+    // The deflated chunk when it came out at most maxRatio of the original, otherwise empty and the chunk goes raw
+    public Optional<ByteString> deflate(final ByteString chunk) {
+      final boolean sample = (rawBytes == 0);
+      rawBytes += chunk.size();
+      final Optional<ByteString> deflated = (deflater == null || chunk.isEmpty()) ? Optional.empty() : tryDeflate(chunk);
+      sentBytes += deflated.map(ByteString::size).orElse(chunk.size());
+      if (sample && !deflated.isPresent()) {
+        close();
+      }
+      return deflated;
+    }
+
+    private Optional<ByteString> tryDeflate(final ByteString chunk) {
+      if (input.length < chunk.size()) {
+        input = new byte[chunk.size()];
+        output = new byte[(int) (chunk.size() * maxRatio)];
+      }
+      chunk.copyTo(input, 0);
+      deflater.reset();
+      deflater.setInput(input, 0, chunk.size());
+      deflater.finish();
+      final int limit = (int) (chunk.size() * maxRatio);
+      int deflated = 0;
+      while (!deflater.finished() && deflated < limit) {
+        deflated += deflater.deflate(output, deflated, limit - deflated);
+      }
+      return deflater.finished() ? Optional.of(ByteString.copyFrom(output, 0, deflated)) : Optional.empty();
+    }
+
+    public long getRawBytes() {
+      return rawBytes;
+    }
+
+    public long getSentBytes() {
+      return sentBytes;
+    }
+
+    @Override
+    public void close() {
+      if (deflater != null) {
+        deflater.end();
+        deflater = null;
+      }
+    }
+  }
+}
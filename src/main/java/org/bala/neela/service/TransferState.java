@@ -0,0 +1,41 @@
+package org.bala.neela.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class TransferState {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TransferState.class);
+
+  private final Path statePath;
+  private final Path stagingPath;
+
+  public TransferState(final Path statePath) {
+    this.statePath = statePath;
+    this.stagingPath = statePath.resolveSibling(statePath.getFileName() + ".tmp");
+  }
+
+  public Optional<byte[]> load() {
+    try {
+      return Files.exists(statePath) ? Optional.of(Files.readAllBytes(statePath)) : Optional.empty();
+    } catch (IOException e) {
+      LOGGER.warn("Unable to read transfer state {}; starting afresh, {}", statePath, e);
+      return Optional.empty();
+    }
+  }
+
+  public void save(final byte[] state) throws IOException {
+    Files.write(stagingPath, state);
+    Files.move(stagingPath, statePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  public void delete() throws IOException {
+    Files.deleteIfExists(statePath);
+    Files.deleteIfExists(stagingPath);
+  }
+}
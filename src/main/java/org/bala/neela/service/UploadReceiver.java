@@ -0,0 +1,42 @@
+package org.bala.neela.service;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import org.bala.neela.grpc.UploadRequest;
+import org.bala.neela.grpc.UploadResponse;
+
+import io.grpc.stub.StreamObserver;
+
+public class UploadReceiver {
+  private final String sharedLocation;
+  private final int bufferSize;
+  private final FsyncPolicy fsyncPolicy;
+  private final int inFlightWindow;
+  private final ChunkStore chunkStore;
+
+  public UploadReceiver(final String sharedLocation, final int bufferSize, final FsyncPolicy fsyncPolicy, final int inFlightWindow, final ChunkStore chunkStore) {
+    checkArgument(isNotBlank(sharedLocation), "Invalid sharedLocation");
+    checkArgument(bufferSize > 0, "Invalid bufferSize");
+    checkArgument(inFlightWindow > 0, "Invalid inFlightWindow");
+
+    this.sharedLocation = sharedLocation.trim();
+    this.bufferSize = bufferSize;
+    this.fsyncPolicy = requireNonNull(fsyncPolicy);
+    this.inFlightWindow = inFlightWindow;
+    this.chunkStore = requireNonNull(chunkStore);
+  }
+
+  public StreamObserver<UploadRequest> receive(final StreamObserver<UploadResponse> responseObserver) {
+    return new UploadRequestObserver(responseObserver, sharedLocation, bufferSize, fsyncPolicy, inFlightWindow, chunkStore);
+  }
+
+  public UploadResponse resumeOffset(final UploadRequest uploadRequest) {
+    return UploadResponse.newBuilder()
+                         .setFilename(uploadRequest.getFilename())
+                         .setOffset(UploadRequestObserver.resumeOffset(sharedLocation, uploadRequest.getFilename(), uploadRequest.getSize()))
+                         .addAllAcceptedCompression(TransferCompression.ACCEPTED)
+                         .build();
+  }
+}
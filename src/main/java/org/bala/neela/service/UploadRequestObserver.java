@@ -2,11 +2,18 @@ package org.bala.neela.service;
 
 import static org.bala.neela.service.Downloader.getPathToWriteTo;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Optional;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,46 +21,283 @@ import org.slf4j.LoggerFactory;
 import org.bala.neela.grpc.UploadRequest;
 import org.bala.neela.grpc.UploadResponse;
 
+import com.google.protobuf.ByteString;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
 public class UploadRequestObserver implements StreamObserver<UploadRequest> {
   private static final Logger LOGGER = LoggerFactory.getLogger(UploadRequestObserver.class);
+  public static final String PARTIAL_DIRECTORY = ".partial";
+  private static final long CHECKPOINT_BYTES = 64L * 1024 * 1024;
 
   private final StreamObserver<UploadResponse> responseObserver;
   private final String sharedLocation;
-  private Path path=null;
+  private final ByteBuffer buffer;
+  private final FsyncPolicy fsyncPolicy;
+  private final ChunkStore chunkStore;
+  private final MessageDigest digest = ManifestStore.newDigest();
+  private ByteString expectedDigest = ByteString.EMPTY;
+  private String filename=null;
+  private Path tempPath=null;
+  private FileChannel fileChannel=null;
+  private FileLock fileLock=null;
+  private TransferState transferState=null;
+  private long bytesReceived=0;
+  private long bytesCheckpointed=0;
+  private boolean failed=false;
   
   public UploadRequestObserver(final StreamObserver<UploadResponse> responseObserver,
-                               final String sharedLocation) {
+                               final String sharedLocation,
+                               final int bufferSize,
+                               final FsyncPolicy fsyncPolicy,
+                               final int inFlightWindow,
+                               final ChunkStore chunkStore) {
     this.responseObserver = responseObserver;
     this.sharedLocation = sharedLocation;
+    this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    this.fsyncPolicy = fsyncPolicy;
+    this.chunkStore = chunkStore;
+    enableManualFlowControl(inFlightWindow);
+  }
+
+  private void enableManualFlowControl(final int inFlightWindow) {
+    if (responseObserver instanceof ServerCallStreamObserver) {
+      final ServerCallStreamObserver<UploadResponse> serverCallStreamObserver = (ServerCallStreamObserver<UploadResponse>) responseObserver;
+      serverCallStreamObserver.disableAutoInboundFlowControl();
+      serverCallStreamObserver.request(inFlightWindow);
+    }
+  }
+
+  private void requestNext() {
+    if (responseObserver instanceof ServerCallStreamObserver) {
+      ((ServerCallStreamObserver<UploadResponse>) responseObserver).request(1);
+    }
   }
 
   @Override
   public void onNext(UploadRequest value) {
-    persistContent(value);
+    if (failed) {
+      return;
+    }
+    try {
+      persistContent(value);
+      requestNext();
+    } catch (IOException e) {
+      LOGGER.error("Error persisting content to {}, {}", tempPath, e);
+      fail(Status.INTERNAL, e);
+    }
   }
 
   @Override
   public void onError(Throwable t) {
     LOGGER.error("ReceivingPeer:Error receiving/processing uploaded content", t);
+    suspend();
   }
 
   @Override
   public void onCompleted() {
-    final String statusMsg = "ReceivingPeer:Uploaded content received and saved as " + path.toString();
-    LOGGER.info(statusMsg);
-    responseObserver.onNext(constructUploadResponse(statusMsg,true));
-    responseObserver.onCompleted();
+    if (failed) {
+      return;
+    }
+    if (!ByteString.copyFrom(digest.digest()).equals(expectedDigest)) {
+      LOGGER.error("Digest of uploaded content {} does not match the digest sent by the uploading peer", filename);
+      fail(Status.DATA_LOSS, new IOException("Digest mismatch for " + filename));
+      return;
+    }
+    try {
+      final Path path = chunkStore.deduplicate(commit());
+      final String statusMsg = "ReceivingPeer:Uploaded content received and saved as " + path.toString();
+      LOGGER.info(statusMsg);
+      responseObserver.onNext(constructUploadResponse(statusMsg,true));
+      responseObserver.onCompleted();
+    } catch (IOException e) {
+      LOGGER.error("Error saving uploaded content {}, {}", filename, e);
+      fail(Status.INTERNAL, e);
+    }
+  }
+
+  private void persistContent(final UploadRequest value) throws IOException {
+    if (fileChannel == null) {
+      open(value.getFilename(), value.getSize(), value.getOffset());
+    }
+    if (value.getOffset() != bytesReceived) {
+      throw new IOException("Expected content at offset " + bytesReceived + " but received offset " + value.getOffset());
+    }
+    final Optional<ByteString> content = value.hasReference() ? chunkStore.read(value.getReference()) : Optional.of(TransferCompression.contentOf(value));
+    if (!content.isPresent()) {
+      LOGGER.warn("Chunk referenced at offset {} of {} is no longer held", value.getOffset(), filename);
+      fail(Status.FAILED_PRECONDITION, new IOException("Referenced chunk of " + filename + " is no longer held"));
+      return;
+    }
+    digest.update(content.get().asReadOnlyByteBuffer());
+    append(content.get().asReadOnlyByteBuffer());
+    bytesReceived += content.get().size();
+    if (!value.getDigest().isEmpty()) {
+      expectedDigest = value.getDigest();
+    }
+    if (bytesReceived - bytesCheckpointed >= CHECKPOINT_BYTES) {
+      checkpoint();
+    }
+  }
+
+  public static long resumeOffset(final String sharedLocation, final String filename, final long size) {
+    final Path tempPath = partialPath(sharedLocation, filename, size);
+    return stateOf(tempPath).load()
+                            .filter(state -> tempPath.toFile().exists())
+                            .map(UploadRequestObserver::toOffset)
+                            .orElse(0L);
+  }
+
+  private static Path partialPath(final String sharedLocation, final String filename, final long size) {
+    return Paths.get(sharedLocation, PARTIAL_DIRECTORY, Paths.get(filename).getFileName() + "." + size + ".upload");
+  }
+
+  private static TransferState stateOf(final Path tempPath) {
+    return new TransferState(tempPath.resolveSibling(tempPath.getFileName() + ".state"));
+  }
+
+  private static long toOffset(final byte[] state) {
+    return (state.length == Long.BYTES) ? ByteBuffer.wrap(state).getLong() : 0L;
+  }
+
+  /*
+   * Uploads land in a partial file keyed by name and size. A sender that reconnects after a dropped link
+   * asks for the checkpointed offset and continues from there; anything else restarts from zero.
+   */
+  private void open(final String filename, final long size, final long offset) throws IOException {
+    Files.createDirectories(Paths.get(sharedLocation, PARTIAL_DIRECTORY));
+    this.filename = Paths.get(filename).getFileName().toString();
+    tempPath = partialPath(sharedLocation, filename, size);
+    transferState = stateOf(tempPath);
+    fileChannel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    lock();
+    final long checkpointed = transferState.load().map(UploadRequestObserver::toOffset).orElse(0L);
+    if (offset != 0 && offset != checkpointed) {
+      throw new IOException("Cannot resume " + filename + " at offset " + offset + "; " + checkpointed + " bytes are checkpointed");
+    }
+    if (offset == 0) {
+      transferState.delete();
+    }
+    fileChannel.truncate(offset);
+    fileChannel.position(offset);
+    rehash(offset);
+    bytesReceived = offset;
+    bytesCheckpointed = offset;
+    if (offset > 0) {
+      LOGGER.info("ReceivingPeer:Resuming upload of {} at offset {}", filename, offset);
+    }
+  }
+
+  private void lock() throws IOException {
+    try {
+      fileLock = fileChannel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      fileLock = null;
+    }
+    if (fileLock == null) {
+      fileChannel.close();
+      fileChannel = null;
+      tempPath = null;
+      throw new IOException("An upload of " + filename + " is already in progress");
+    }
+  }
+
+  private void rehash(final long length) throws IOException {
+    long position = 0;
+    while (position < length) {
+      buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+      final int read = fileChannel.read(buffer, position);
+      if (read < 0) {
+        throw new IOException("Partial upload " + tempPath + " is shorter than its checkpoint");
+      }
+      buffer.flip();
+      digest.update(buffer);
+      position += read;
+    }
+    buffer.clear();
+  }
+
+  private void append(final ByteBuffer content) throws IOException {
+    if (content.remaining() > buffer.remaining()) {
+      flush();
+    }
+    if (content.remaining() > buffer.capacity()) {
+      writeFully(content);
+    } else {
+      buffer.put(content);
+    }
+  }
+
+  private void flush() throws IOException {
+    buffer.flip();
+    writeFully(buffer);
+    buffer.clear();
+    if (fsyncPolicy.syncOnFlush()) {
+      fileChannel.force(false);
+    }
+  }
+
+  private void writeFully(final ByteBuffer source) throws IOException {
+    while (source.hasRemaining()) {
+      fileChannel.write(source);
+    }
+  }
+
+  private Path commit() throws IOException {
+    if (fileChannel == null) {
+      throw new IOException("No content received");
+    }
+    flush();
+    if (fsyncPolicy.syncOnComplete()) {
+      fileChannel.force(true);
+    }
+    fileLock.release();
+    fileChannel.close();
+    final Path path = Files.move(tempPath, getPathToWriteTo(sharedLocation, filename), StandardCopyOption.ATOMIC_MOVE);
+    transferState.delete();
+    return path;
+  }
+
+  private void checkpoint() throws IOException {
+    flush();
+    fileChannel.force(false);
+    transferState.save(ByteBuffer.allocate(Long.BYTES).putLong(bytesReceived).array());
+    bytesCheckpointed = bytesReceived;
+  }
+
+  private void suspend() {
+    try {
+      if (fileChannel != null && fileChannel.isOpen()) {
+        checkpoint();
+        fileLock.release();
+        fileChannel.close();
+        LOGGER.info("ReceivingPeer:Upload of {} suspended at offset {}", filename, bytesCheckpointed);
+      }
+    } catch (IOException e) {
+      LOGGER.error("Error suspending partial upload {}, {}", tempPath, e);
+      discard();
+    }
+  }
+
+  private void fail(final Status status, final Throwable cause) {
+    failed = true;
+    discard();
+    responseObserver.onError(status.withDescription("Error saving uploaded content").withCause(cause).asRuntimeException());
   }
 
-  private void persistContent(final UploadRequest value) {
-    path = (path==null) ? getPathToWriteTo(sharedLocation, value.getFilename()) : path;
-    try (BufferedWriter writer = Files.newBufferedWriter(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
-      writer.write(value.getContent() + "\n");
+  private void discard() {
+    try {
+      if (fileChannel != null) {
+        fileChannel.close();
+      }
+      if (tempPath != null) {
+        Files.deleteIfExists(tempPath);
+        transferState.delete();
+      }
     } catch (IOException e) {
-      LOGGER.error("Error persisting content to {}, {}", path, e);
-      throw new RuntimeException(e);
+      LOGGER.error("Error discarding partial upload {}, {}", tempPath, e);
     }
   }
 
@@ -63,4 +307,4 @@ public class UploadRequestObserver implements StreamObserver<UploadRequest> {
                          .setReceivedOk(receivedOk)
                          .build();
   }
-}
\ No newline at end of file
+}
@@ -1,21 +1,139 @@
 package org.bala.neela.service;
 
-import java.util.concurrent.CountDownLatch;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.bala.neela.grpc.Chunk;
+import org.bala.neela.grpc.Compression;
+import org.bala.neela.grpc.UploadRequest;
 import org.bala.neela.grpc.UploadResponse;
 
-import io.grpc.stub.StreamObserver;
+import com.google.protobuf.ByteString;
 
-public class UploadResponseObserver implements StreamObserver<UploadResponse> {
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+
+public class UploadResponseObserver implements ClientResponseObserver<UploadRequest, UploadResponse> {
   private static final Logger LOGGER = LoggerFactory.getLogger(UploadResponseObserver.class);
 
-  private final CountDownLatch uploadCompletedLatch;
+  private final Path path;
+  private final long size;
+  private final ByteBuffer buffer;
+  private final TransferCompression.Encoder encoder;
+  private final NavigableMap<Long, Chunk> held;
+  private final CompletableFuture<String> uploadCompleted;
+  private final MessageDigest digest = ManifestStore.newDigest();
+  private ClientCallStreamObserver<UploadRequest> requestStream;
+  private FileChannel fileChannel;
+  private long offset;
+  private long referencedBytes = 0;
+  private boolean halfClosed = false;
   
-  public UploadResponseObserver(final CountDownLatch uploadCompletedLatch) {
-    this.uploadCompletedLatch = uploadCompletedLatch;
+  public UploadResponseObserver(final Path path,
+                                final long size,
+                                final long startOffset,
+                                final int chunkSize,
+                                final TransferCompression.Encoder encoder,
+                                final NavigableMap<Long, Chunk> held,
+                                final CompletableFuture<String> uploadCompleted) {
+    this.path = path;
+    this.size = size;
+    this.offset = startOffset;
+    this.buffer = ByteBuffer.allocate(chunkSize);
+    this.encoder = encoder;
+    this.held = held;
+    this.uploadCompleted = uploadCompleted;
+  }
+
+  @Override
+  public void beforeStart(final ClientCallStreamObserver<UploadRequest> requestStream) {
+    this.requestStream = requestStream;
+    requestStream.setOnReadyHandler(this::pump);
+  }
+
+  private synchronized void pump() {
+    try {
+      while (!halfClosed && requestStream.isReady()) {
+        sendNextChunk();
+      }
+    } catch (IOException|RuntimeException e) {
+      LOGGER.error("UploadingPeer:Error reading {}, {}", path, e);
+      halfClosed = true;
+      closeFile();
+      requestStream.onError(Status.ABORTED.withDescription("Error reading " + path.getFileName()).withCause(e).asRuntimeException());
+    }
+  }
+
+  private void sendNextChunk() throws IOException {
+    if (fileChannel == null) {
+      fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+      hashUpTo(offset);
+    }
+    final Chunk reference = held.get(offset);
+    if (reference != null) {
+      sendReference(reference);
+      return;
+    }
+    final Long nextReference = held.higherKey(offset);
+    buffer.clear().limit((int) Math.min(buffer.capacity(), (nextReference == null) ? Long.MAX_VALUE : nextReference - offset));
+    while (buffer.hasRemaining()) {
+      if (fileChannel.read(buffer) < 0) {
+        break;
+      }
+    }
+    buffer.flip();
+    if (!buffer.hasRemaining()) {
+      halfClosed = true;
+      closeFile();
+      requestStream.onNext(constructRequest(ByteString.EMPTY).setDigest(ByteString.copyFrom(digest.digest())).build());
+      requestStream.onCompleted();
+      return;
+    }
+    digest.update(buffer.duplicate());
+    final ByteString content = ByteString.copyFrom(buffer);
+    final Optional<ByteString> deflated = encoder.deflate(content);
+    requestStream.onNext(constructRequest(deflated.orElse(content)).setLength(content.size())
+                                                                    .setCompression(deflated.isPresent() ? Compression.DEFLATE : Compression.NONE)
+                                                                    .build());
+    offset += buffer.limit();
+  }
+
+  private void sendReference(final Chunk reference) throws IOException {
+    requestStream.onNext(constructRequest(ByteString.EMPTY).setReference(reference).setLength(reference.getLength()).build());
+    offset += reference.getLength();
+    referencedBytes += reference.getLength();
+    hashUpTo(offset);
+  }
+
+  // The receiver verifies the whole file, so whatever it already holds is hashed without being resent
+  private void hashUpTo(final long end) throws IOException {
+    while (fileChannel.position() < end) {
+      buffer.clear().limit((int) Math.min(buffer.capacity(), end - fileChannel.position()));
+      if (fileChannel.read(buffer) < 0) {
+        throw new IOException(path + " is shorter than offset " + end);
+      }
+      buffer.flip();
+      digest.update(buffer);
+    }
+  }
+
+  private UploadRequest.Builder constructRequest(final ByteString content) {
+    return UploadRequest.newBuilder()
+                        .setFilename(path.getFileName().toString())
+                        .setOffset(offset)
+                        .setSize(size)
+                        .setContent(content);
   }
 
   @Override
@@ -27,12 +145,25 @@ public class UploadResponseObserver implements StreamObserver<UploadResponse> {
   @Override
   public void onError(Throwable t) {
     LOGGER.error("UploadingPeer:Error receiving/processing uploaded file content", t);
-    uploadCompletedLatch.countDown();
+    closeFile();
+    uploadCompleted.completeExceptionally(t);
   }
 
   @Override
   public void onCompleted() {
-    LOGGER.info("UploadingPeer:Processed uploadResponse ok");
-    uploadCompletedLatch.countDown();
+    LOGGER.info("UploadingPeer:Processed uploadResponse ok; sent {} bytes of {} as {} bytes and {} bytes by reference",
+                encoder.getRawBytes(), path.getFileName(), encoder.getSentBytes(), referencedBytes);
+    uploadCompleted.complete("streamed contents of " + path.toString() + " OK");
+  }
+
+  private synchronized void closeFile() {
+    encoder.close();
+    try {
+      if (fileChannel != null) {
+        fileChannel.close();
+      }
+    } catch (IOException e) {
+      LOGGER.error("UploadingPeer:Error closing {}, {}", path, e);
+    }
   }
-}
\ No newline at end of file
+}
@@ -1,101 +1,134 @@
 package org.bala.neela.service;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+import static java.util.stream.Collectors.toSet;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
-import static org.bala.neela.service.BootStrapper.isValidPort;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.AbstractMap.SimpleEntry;
+import java.util.Collections;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
-import java.util.stream.Stream;
+import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.bala.neela.grpc.Chunk;
+import org.bala.neela.grpc.ManifestRequest;
 import org.bala.neela.grpc.NeelaGrpc;
 import org.bala.neela.grpc.UploadRequest;
 import org.bala.neela.grpc.UploadResponse;
 import org.bala.neela.ui.UserCommand;
 
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
-import io.grpc.stub.StreamObserver;
+import com.google.protobuf.ByteString;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 
 public class Uploader {
   private static final Logger LOGGER = LoggerFactory.getLogger(Uploader.class);
   
-  private final int port;
   private final String sharedLocation;
+  private final int chunkSize;
+  private final PeerChannelPool peerChannelPool;
+  private final TransferCompression transferCompression;
+  private final ChunkStore chunkStore;
   
-  public Uploader(final int port, final String sharedLocation) {
-    validateConstructorArgs(port, sharedLocation);
-    this.port = port;
+  public Uploader(final String sharedLocation,
+                  final int chunkSize,
+                  final PeerChannelPool peerChannelPool,
+                  final TransferCompression transferCompression,
+                  final ChunkStore chunkStore) {
+    validateConstructorArgs(sharedLocation, chunkSize);
     this.sharedLocation = sharedLocation.trim();
+    this.chunkSize = chunkSize;
+    this.peerChannelPool = requireNonNull(peerChannelPool);
+    this.transferCompression = requireNonNull(transferCompression);
+    this.chunkStore = requireNonNull(chunkStore);
   }
 
   public void upload(final UserCommand userCommand, final Consumer<? super String> consumer) {
     final Entry<Path, String> pathAndHostPair = validateAndParse(userCommand);
-    CompletableFuture.supplyAsync(() -> upload(pathAndHostPair.getKey(), pathAndHostPair.getValue()))
-                     .exceptionally(this::handleException)
-                     .thenAcceptAsync(consumer);
+    Tracing.trace(() -> upload(pathAndHostPair.getKey(), pathAndHostPair.getValue())
+                          .exceptionally(this::handleException)
+                          .thenAcceptAsync(consumer));
   }
 
-  private String upload(final Path path, final String host) {
-    final CountDownLatch uploadCompletedLatch = new CountDownLatch(1);
-    final ManagedChannel channel = ManagedChannelBuilder.forAddress(host, port).usePlaintext(true).build();
-    final NeelaGrpc.NeelaStub asyncStub = NeelaGrpc.newStub(channel);
-    final StreamObserver<UploadResponse> responseObserver = new UploadResponseObserver(uploadCompletedLatch); 
-    final StreamObserver<UploadRequest> requestObserver = asyncStub.upload(responseObserver);
+  // A receiver that can no longer find a chunk it was sent a reference to rejects the upload; send it in full then
+  private CompletableFuture<String> upload(final Path path, final String host) {
+    return upload(path, host, true).handle((status, ex) -> {
+      if (ex != null && Status.fromThrowable(ex).getCode() == Status.Code.FAILED_PRECONDITION) {
+        LOGGER.warn("{} no longer holds chunks of {}; uploading all of it", host, path.getFileName());
+        return upload(path, host, false);
+      }
+      final CompletableFuture<String> settled = new CompletableFuture<>();
+      if (ex != null) {
+        settled.completeExceptionally(ex);
+      } else {
+        settled.complete(status);
+      }
+      return settled;
+    }).thenCompose(Function.identity());
+  }
 
+  private CompletableFuture<String> upload(final Path path, final String host, final boolean delta) {
+    final CompletableFuture<String> uploadCompleted = new CompletableFuture<>();
     try {
-      return streamContent(path, requestObserver);
-    } finally {
-      try {
-        if (!uploadCompletedLatch.await(5, TimeUnit.SECONDS)) {
-          LOGGER.warn("upload can not finish within 5 seconds");
-        }
-        channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
+      final long size = Files.size(path);
+      final UploadResponse resumeAt = NeelaGrpc.newBlockingStub(peerChannelPool.channelFor(host))
+                                               .uploadOffset(UploadRequest.newBuilder().setFilename(path.getFileName().toString()).setSize(size).build());
+      final long startOffset = resumeAt.getOffset();
+      if (startOffset > 0) {
+        System.out.println("Resuming upload of " + path.getFileName() + " at offset " + startOffset);
       }
-    }
-  }
-  
-  public String streamContent(final Path path, final StreamObserver<UploadRequest> requestObserver) {
-    try (final Stream<String> stream = Files.lines(path)) {
-      stream.map(line -> constructRequest(path, line))
-            .forEach(requestObserver::onNext);
-      requestObserver.onCompleted();
-      return "streamed contents of " + path.toString() + " OK";
+      final String filename = path.getFileName().toString();
+      final NavigableMap<Long, Chunk> held = delta ? heldBy(host, filename) : Collections.emptyNavigableMap();
+      final NeelaGrpc.NeelaStub asyncStub = NeelaGrpc.newStub(peerChannelPool.channelFor(host));
+      final TransferCompression.Encoder encoder = transferCompression.encoder(filename, resumeAt.getAcceptedCompressionList());
+      asyncStub.upload(new UploadResponseObserver(path, size, startOffset, chunkSize, encoder, held, uploadCompleted));
     } catch (IOException|RuntimeException e) {
-      requestObserver.onError(e);
-      final String errorMsg = "Error uploading file " + path.toString() + ", " + e.toString();
-      LOGGER.error(errorMsg);
-      return errorMsg;
+      LOGGER.error("Error uploading file {} to {}, {}", path, host, e);
+      uploadCompleted.completeExceptionally(e);
     }
+    return uploadCompleted;
   }
   
-  private UploadRequest constructRequest(Path path, final String line) {
-    return UploadRequest.newBuilder()
-                        .setFilename(path.getFileName().toString())
-                        .setContent(line)
-                        .build();    
+  /*
+   * Chunks of our copy that the receiver's older copy of the same name also has, keyed by their offset in ours.
+   * These are sent as references for the receiver to copy locally, and everything in between as literal bytes.
+   */
+  private NavigableMap<Long, Chunk> heldBy(final String host, final String filename) {
+    final NavigableMap<Long, Chunk> held = new TreeMap<>();
+    try {
+      final ManifestRequest manifestRequest = ManifestRequest.newBuilder().setFilename(filename).build();
+      final Set<ByteString> theirs = peerChannelPool.callHedged(host, NeelaGrpc.METHOD_CHUNKS, channel -> NeelaGrpc.newFutureStub(channel).chunks(manifestRequest))
+                                                    .getChunksList()
+                                                    .stream()
+                                                    .map(Chunk::getDigest)
+                                                    .collect(toSet());
+      chunkStore.chunksOf(filename).getChunksList().stream().filter(chunk -> theirs.contains(chunk.getDigest())).forEach(chunk -> held.put(chunk.getOffset(), chunk));
+    } catch (IOException|StatusRuntimeException e) {
+      LOGGER.debug("No chunks of {} held by {}; uploading all of it, {}", filename, host, e);
+    }
+    return held;
   }
-  
+
   private String handleException(final Throwable ex) {
     return "Error uploading " + ex.toString();
   }
   
-  private void validateConstructorArgs(final int port, final String sharedLocation) {
-    checkArgument(isValidPort(port), "Invalid port; out of valid range");
+  private void validateConstructorArgs(final String sharedLocation, final int chunkSize) {
     checkArgument(isNotBlank(sharedLocation), "Invalid sharedLocation");
+    checkArgument(chunkSize > 0 && chunkSize <= Downloader.MAX_CHUNK_SIZE, "Invalid chunkSize; out of valid range");
   }
 
   private Entry<Path, String> validateAndParse(final UserCommand userCommand) {
@@ -15,7 +15,9 @@ public class UserCommand {
     LISTPEERS(false),
     BROWSE(true),
     SEARCH(true),
+    FIND(true),
     DOWNLOAD(true),
+    SWARM(true),
     UPLOAD(true),
     QUIT(false);
     
@@ -35,7 +37,7 @@ public class UserCommand {
   
   public UserCommand(final String userInput) {
     checkArgument(isNoneBlank(userInput), "Invalid userInput, blank/null");
-    final String[] argv = userInput.split("\\s+");
+    final String[] argv = userInput.trim().split("\\s+", 2);
     this.command = Command.valueOf(argv[0].trim().toUpperCase());
     if (command.requiresArg()) {
       this.commandArg = requireNonNull(argv[1].trim());
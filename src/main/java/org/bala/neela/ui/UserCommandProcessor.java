@@ -8,6 +8,7 @@ import org.bala.neela.service.BootStrapper;
 import org.bala.neela.service.Browser;
 import org.bala.neela.service.Downloader;
 import org.bala.neela.service.SearchEngine;
+import org.bala.neela.service.SwarmDownloader;
 import org.bala.neela.service.Uploader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,17 +23,20 @@ public class UserCommandProcessor {
   private final Browser browser;
   private final SearchEngine searchEngine;
   private final Downloader downloader;
+  private final SwarmDownloader swarmDownloader;
   private final Uploader uploader;
   
   public UserCommandProcessor(final BootStrapper bootStrapper,
                               final Browser browser,
                               final SearchEngine searchEngine,
                               final Downloader downloader,
+                              final SwarmDownloader swarmDownloader,
                               final Uploader uploader) {
     this.bootStrapper = requireNonNull(bootStrapper);
     this.browser = requireNonNull(browser);
     this.searchEngine = requireNonNull(searchEngine);
     this.downloader = requireNonNull(downloader);
+    this.swarmDownloader = requireNonNull(swarmDownloader);
     this.uploader = requireNonNull(uploader);
   }
   
@@ -81,9 +85,15 @@ public class UserCommandProcessor {
       case SEARCH:
         searchEngine.search(userCommand, this::display);
         break;
+      case FIND:
+        searchEngine.find(userCommand, this::display);
+        break;
       case DOWNLOAD:
         downloader.download(userCommand);
         break;
+      case SWARM:
+        swarmDownloader.download(userCommand, this::display);
+        break;
       case UPLOAD:
         uploader.upload(userCommand, this::display);
         break;
@@ -1,69 +1,299 @@
 package org.bala.neela.wiring;
 
 import java.util.Arrays;
+import java.util.Collections;
 
 import org.bala.neela.fs.P2PServer;
 import org.bala.neela.fs.P2PServices;
 import org.bala.neela.fs.Peer;
+import org.bala.neela.grpc.NeelaGrpc;
+import org.bala.neela.service.AdmissionControl;
 import org.bala.neela.service.BootStrapper;
 import org.bala.neela.service.Browser;
+import org.bala.neela.service.ChunkStore;
+import org.bala.neela.service.Dht;
 import org.bala.neela.service.Downloader;
+import org.bala.neela.service.FsyncPolicy;
+import org.bala.neela.service.Gossiper;
+import org.bala.neela.service.JmxExporter;
+import org.bala.neela.service.ManifestStore;
+import org.bala.neela.service.MappedRegions;
+import org.bala.neela.service.Membership;
+import org.bala.neela.service.Metrics;
+import org.bala.neela.service.MetricsInterceptor;
+import org.bala.neela.service.NettyTransport;
+import org.bala.neela.service.PeerCallPolicy;
+import org.bala.neela.service.PeerChannelPool;
+import org.bala.neela.service.PeerHealth;
+import org.bala.neela.service.PrometheusExporter;
+import org.bala.neela.service.ResultCache;
 import org.bala.neela.service.SearchEngine;
+import org.bala.neela.service.SharedIndex;
+import org.bala.neela.service.SwarmDownloader;
+import org.bala.neela.service.Tracing;
+import org.bala.neela.service.TransferCompression;
+import org.bala.neela.service.UploadReceiver;
 import org.bala.neela.service.Uploader;
 import org.bala.neela.ui.UserCommandProcessor;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
 
 import io.grpc.BindableService;
 
+/*
+ * Settings a deployment is likely to change are read from ./neela.properties (or the file named by the
+ * neela.config system property) and from -Dneela.* system properties; the defaults are the ones below.
+ */
 @Configuration
+@PropertySource(value = "file:${neela.config:./neela.properties}", ignoreResourceNotFound = true)
 public class ServiceConfig {
-  private final String host = "localhost"; // host where a peer is guaranteed to be running for others to bootstrap
-  private final int port = 51162;
-  private final String sharedLocation = "./share";
-  private final String peerRegister = "./share/PeerRegister.txt";
+  @Value("${neela.host:localhost}") private String host; // host where a peer is guaranteed to be running for others to bootstrap
+  @Value("${neela.port:51162}") private int port;
+  @Value("${neela.sharedLocation:./share}") private String sharedLocation;
+  @Value("${neela.peerRegister:./share/PeerRegister.txt}") private String peerRegister;
+  @Value("${neela.metricsPort:51163}") private int metricsPort;
+  @Value("${neela.transport.epoll:true}") private boolean preferEpoll;
+  @Value("${neela.transport.bossThreads:1}") private int bossThreads;
+  @Value("${neela.transport.workerThreads:0}") private int workerThreads;
+  @Value("${neela.transport.executorThreads:16}") private int executorThreads;
+  @Value("${neela.transport.flowControlWindow:8388608}") private int flowControlWindow;
+  @Value("${neela.transport.maxMessageSize:8388608}") private int maxMessageSize;
+  @Value("${neela.transport.maxConcurrentCallsPerConnection:128}") private int maxConcurrentCallsPerConnection;
+  @Value("${neela.transport.keepAliveTimeMillis:30000}") private long keepAliveTimeMillis;
+  @Value("${neela.transport.keepAliveTimeoutMillis:10000}") private long keepAliveTimeoutMillis;
+  @Value("${neela.admission.peerBytesPerSecond:0}") private long peerEgressBytesPerSecond;
+  @Value("${neela.admission.egressBytesPerSecond:0}") private long egressBytesPerSecond;
+  private final int downloadChunkSize = 1024 * 1024;
+  private final int downloadReaderThreads = 4;
+  private final int maxDownloadReadBuffers = 32; // chunks being read for all downloads served, at most this many MiB
+  private final long minMappedFileSize = 8 * 1024 * 1024;
+  private final int maxMappedRegionSize = 64 * 1024 * 1024;
+  private final int maxMappedRegions = 16;
+  private final int pieceSize = 4 * 1024 * 1024;
+  private final int maxSwarmSources = 8;
+  private final long swarmStealAfterMillis = 10000;
+  private final int maxSwarmFailuresPerSource = 3;
+  private final int uploadBufferSize = 256 * 1024;
+  private final FsyncPolicy uploadFsyncPolicy = FsyncPolicy.ON_COMPLETE;
+  private final int uploadChunkSize = 1024 * 1024;
+  private final int uploadInFlightWindow = 4;
+  private final int maxConcurrentCallsPerPeer = 64;
+  private final long channelIdleTimeoutMillis = 300000;
+  private final int maxConsecutiveChannelFailures = 3;
+  private final int searchParallelism = 16;
+  private final int searchCallbackThreads = 4;
+  private final long minPeerCallDeadlineMillis = 250;
+  private final long bootstrapDeadlineMillis = 5000;
+  private final long browseDeadlineMillis = 5000;
+  private final long searchDeadlineMillis = 3000;
+  private final long findDeadlineMillis = 5000;
+  private final long manifestDeadlineMillis = 120000;
+  private final long uploadOffsetDeadlineMillis = 5000;
+  private final double peerCallDeadlineMultiplier = 3.0;
+  private final long defaultHedgeDelayMillis = 500;
+  private final int peerDeadAfterFailures = 3;
+  private final long deadPeerProbeIntervalMillis = 30000;
+  private final long gossipIntervalMillis = 1000;
+  private final long gossipProbeDeadlineMillis = 500;
+  private final int gossipIndirectProbes = 3;
+  private final int gossipMaxUpdatesPerMessage = 8;
+  private final int gossipRetransmitMultiplier = 3;
+  private final long suspicionTimeoutMillis = 5000;
+  private final long deadMemberRetentionMillis = 60000;
+  private final int dhtReplication = 20;
+  private final int dhtAlpha = 3;
+  private final int dhtPublishParallelism = 8;
+  private final long dhtRecordTtlMillis = 60 * 60 * 1000;
+  private final long dhtPublishIntervalMillis = 30000;
+  private final long dhtRepublishIntervalMillis = 30 * 60 * 1000;
+  private final long dhtDeadlineMillis = 2000;
+  private final int searchFloodThreshold = 64;
+  private final int resultCacheMaxEntries = 10000;
+  private final long searchCacheTtlMillis = 60000;
+  private final long negativeSearchCacheTtlMillis = 5000;
+  private final long browseCacheTtlMillis = 30000;
+  private final int browsePageSize = 1000;
+  private final int maxBrowseListings = 256;
+  private final int sharedIndexJournalSize = 10000;
+  private final long sharedFileSettleMillis = 2000;
+  private final boolean dropDuplicateCopies = true;
+  private final int textCompressionLevel = 6;
+  private final int defaultCompressionLevel = 1;
+  private final double maxCompressionRatio = 0.9;
+  private final int maxConcurrentServedCalls = 128;
+  private final int reservedControlCalls = 32;
+  private final int maxConcurrentDownloadsServed = 64; // served without holding a handler thread, so not bound by them
+  private final int maxConcurrentUploadsServed = 4;
+  private final long controlRetryAfterMillis = 100;
+  private final long bulkRetryAfterMillis = 2000;
   
   @Autowired BootStrapper bootStrapper;
 	
+	@Bean
+	public static PropertySourcesPlaceholderConfigurer propertySourcesPlaceholderConfigurer() {
+	  return new PropertySourcesPlaceholderConfigurer();
+	}
+	
 	@Bean
 	public BindableService p2pServices() {
-	  return new P2PServices(bootStrapper, browser(), searchEngine(), downloader(), sharedLocation);
+	  return new P2PServices(bootStrapper, browser(), searchEngine(), downloader(), uploadReceiver(), sharedIndex(), manifestStore(), gossiper(), dht());
+	}
+	
+	@Bean
+	public ManifestStore manifestStore() {
+	  return new ManifestStore(sharedLocation, pieceSize);
+	}
+	
+	@Bean
+	public ChunkStore chunkStore() {
+	  return new ChunkStore(sharedLocation, dropDuplicateCopies);
+	}
+	
+	@Bean
+	public SharedIndex sharedIndex() {
+	  return new SharedIndex(sharedLocation, manifestStore(), chunkStore(), sharedIndexJournalSize, sharedFileSettleMillis, Collections.singletonList(peerRegister));
+	}
+	
+	@Bean
+	public UploadReceiver uploadReceiver() {
+	  return new UploadReceiver(sharedLocation, uploadBufferSize, uploadFsyncPolicy, uploadInFlightWindow, chunkStore());
 	}
 	
 	@Bean
 	public P2PServer p2pServer() {
-	  return new P2PServer(port, Arrays.asList(p2pServices()));
+	  return new P2PServer(port, Arrays.asList(p2pServices()), Arrays.asList(admissionControl(), metricsInterceptor(), tracing()), nettyTransport());
+	}
+	
+	@Bean
+	public PeerChannelPool peerChannelPool() {
+	  return new PeerChannelPool(port, maxConcurrentCallsPerPeer, channelIdleTimeoutMillis, maxConsecutiveChannelFailures, peerCallPolicy(), peerHealth(), Arrays.asList(metricsInterceptor(), tracing()), nettyTransport());
+	}
+	
+	@Bean
+	public NettyTransport nettyTransport() {
+	  return new NettyTransport(preferEpoll, bossThreads, workerThreads, executorThreads, flowControlWindow, maxMessageSize, maxConcurrentCallsPerConnection, keepAliveTimeMillis, keepAliveTimeoutMillis);
+	}
+	
+	@Bean
+	public AdmissionControl admissionControl() {
+	  return new AdmissionControl(maxConcurrentServedCalls, reservedControlCalls, controlRetryAfterMillis, bulkRetryAfterMillis, peerEgressBytesPerSecond, egressBytesPerSecond)
+	      .limit(NeelaGrpc.METHOD_DOWNLOAD, AdmissionControl.Priority.BULK, maxConcurrentDownloadsServed)
+	      .limit(NeelaGrpc.METHOD_UPLOAD, AdmissionControl.Priority.BULK, maxConcurrentUploadsServed);
+	}
+	
+	@Bean
+	public Metrics metrics() {
+	  return new Metrics();
+	}
+	
+	@Bean
+	public MetricsInterceptor metricsInterceptor() {
+	  return new MetricsInterceptor(metrics());
+	}
+	
+	@Bean
+	public Tracing tracing() {
+	  return new Tracing();
+	}
+	
+	@Bean
+	public JmxExporter jmxExporter() {
+	  return new JmxExporter(metrics());
+	}
+	
+	@Bean
+	public PrometheusExporter prometheusExporter() {
+	  return new PrometheusExporter(metrics(), metricsPort);
+	}
+	
+	@Bean
+	public PeerCallPolicy peerCallPolicy() {
+	  return new PeerCallPolicy(peerCallDeadlineMultiplier, defaultHedgeDelayMillis)
+	      .bound(NeelaGrpc.METHOD_BOOTSTRAP, minPeerCallDeadlineMillis, bootstrapDeadlineMillis)
+	      .bound(NeelaGrpc.METHOD_BROWSE, minPeerCallDeadlineMillis, browseDeadlineMillis)
+	      .bound(NeelaGrpc.METHOD_SEARCH, minPeerCallDeadlineMillis, searchDeadlineMillis)
+	      .bound(NeelaGrpc.METHOD_FIND, minPeerCallDeadlineMillis, findDeadlineMillis)
+	      .bound(NeelaGrpc.METHOD_MANIFEST, manifestDeadlineMillis, manifestDeadlineMillis)
+	      .bound(NeelaGrpc.METHOD_CHUNKS, manifestDeadlineMillis, manifestDeadlineMillis)
+	      .bound(NeelaGrpc.METHOD_UPLOAD_OFFSET, minPeerCallDeadlineMillis, uploadOffsetDeadlineMillis)
+	      .bound(NeelaGrpc.METHOD_GOSSIP, minPeerCallDeadlineMillis, gossipProbeDeadlineMillis)
+	      .bound(NeelaGrpc.METHOD_FIND_NODE, minPeerCallDeadlineMillis, dhtDeadlineMillis)
+	      .bound(NeelaGrpc.METHOD_FIND_VALUE, minPeerCallDeadlineMillis, dhtDeadlineMillis)
+	      .bound(NeelaGrpc.METHOD_STORE, minPeerCallDeadlineMillis, dhtDeadlineMillis);
+	}
+	
+	@Bean
+	public PeerHealth peerHealth() {
+	  return new PeerHealth(peerDeadAfterFailures, deadPeerProbeIntervalMillis);
 	}
 	
 	@Bean
 	public BootStrapper bootStrapper() {
-	  return new BootStrapper(host, port, peerRegister);
+	  return new BootStrapper(host, peerRegister, peerChannelPool(), membership());
+	}
+	
+	@Bean
+	public Membership membership() {
+	  return new Membership(BootStrapper.getMyHostAddress(), gossipRetransmitMultiplier, suspicionTimeoutMillis, deadMemberRetentionMillis);
+	}
+	
+	@Bean
+	public Gossiper gossiper() {
+	  return new Gossiper(membership(), peerChannelPool(), peerHealth(), gossipIntervalMillis, gossipIndirectProbes, gossipMaxUpdatesPerMessage);
+	}
+	
+	@Bean
+	public Dht dht() {
+	  return new Dht(membership(), sharedIndex(), peerChannelPool(), peerHealth(), dhtReplication, dhtAlpha, dhtPublishParallelism, dhtRecordTtlMillis, dhtPublishIntervalMillis, dhtRepublishIntervalMillis);
+	}
+	
+	@Bean
+	public ResultCache resultCache() {
+	  return new ResultCache(resultCacheMaxEntries, searchCacheTtlMillis, negativeSearchCacheTtlMillis, browseCacheTtlMillis);
 	}
 	
 	@Bean
 	public Browser browser() {
-	  return new Browser(port, sharedLocation, bootStrapper);
+	  return new Browser(sharedIndex(), peerChannelPool(), resultCache(), browsePageSize, maxBrowseListings);
 	}
 	
 	@Bean
 	public SearchEngine searchEngine() {
-	  return new SearchEngine(port, sharedLocation, bootStrapper);
+	  return new SearchEngine(sharedIndex(), bootStrapper, peerChannelPool(), peerHealth(), dht(), resultCache(), metrics(), searchParallelism, searchFloodThreshold, searchCallbackThreads);
+	}
+	
+	@Bean
+	public TransferCompression transferCompression() {
+	  return new TransferCompression(textCompressionLevel, defaultCompressionLevel, maxCompressionRatio);
+	}
+	
+	@Bean
+	public MappedRegions mappedRegions() {
+	  return new MappedRegions(minMappedFileSize, maxMappedRegionSize, maxMappedRegions, false);
 	}
 	
 	@Bean
 	public Downloader downloader() {
-	  return new Downloader(port, sharedLocation, searchEngine());
+	  return new Downloader(sharedLocation, downloadChunkSize, downloadReaderThreads, maxDownloadReadBuffers, mappedRegions(), searchEngine(), peerChannelPool(), peerHealth(), transferCompression(), chunkStore());
+	}
+
+	@Bean
+	public SwarmDownloader swarmDownloader() {
+	  return new SwarmDownloader(sharedLocation, maxSwarmSources, swarmStealAfterMillis, maxSwarmFailuresPerSource, searchEngine(), peerChannelPool(), peerHealth(), chunkStore());
 	}
 
 	@Bean
 	public Uploader uploader() {
-	  return new Uploader(port, sharedLocation);
+	  return new Uploader(sharedLocation, uploadChunkSize, peerChannelPool(), transferCompression(), chunkStore());
 	}
 	
 	@Bean
 	public UserCommandProcessor userCommandProcessor() {
-	  return new UserCommandProcessor(bootStrapper, browser(), searchEngine(), downloader(), uploader());
+	  return new UserCommandProcessor(bootStrapper, browser(), searchEngine(), downloader(), swarmDownloader(), uploader());
 	}
 	
 	@Bean
@@ -0,0 +1,180 @@
+package org.bala.neela.service;
+
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bala.neela.grpc.DownloadResponse;
+import org.bala.neela.grpc.NeelaGrpc;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.google.protobuf.ByteString;
+
+import io.grpc.Attributes;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AdmissionControlTest {
+  /* System under test */
+  private AdmissionControl admissionControl;
+
+  @Mock private ServerCallHandler<Object, Object> mockHandler;
+  @Mock private ServerCall.Listener<Object> mockListener;
+  @Captor private ArgumentCaptor<ServerCall<Object, Object>> shaped;
+
+  @Rule public ExpectedException exception = ExpectedException.none();
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() {
+    admissionControl = new AdmissionControl(3, 1, 100, 2000, 0, 0).limit(NeelaGrpc.METHOD_DOWNLOAD, AdmissionControl.Priority.BULK, 1);
+    when(mockHandler.startCall(any(ServerCall.class), any(Metadata.class))).thenReturn(mockListener);
+  }
+
+  @Test
+  public void whenReserveLeavesNoCallsForBulkConstructorToThrow() {
+    exception.expect(IllegalArgumentException.class);
+    admissionControl = new AdmissionControl(3, 3, 100, 2000, 0, 0);
+  }
+
+  @Test
+  public void whenMethodLimitIsReachedCallIsRefusedWithARetryHintUntilOneCompletes() {
+    // given
+    final ServerCall.Listener<Object> first = admissionControl.interceptCall(call(NeelaGrpc.METHOD_DOWNLOAD), new Metadata(), mockHandler);
+
+    // when
+    final ServerCall<Object, Object> refused = call(NeelaGrpc.METHOD_DOWNLOAD);
+    admissionControl.interceptCall(refused, new Metadata(), mockHandler);
+    first.onComplete();
+    final ServerCall<Object, Object> admitted = call(NeelaGrpc.METHOD_DOWNLOAD);
+    admissionControl.interceptCall(admitted, new Metadata(), mockHandler);
+
+    // then
+    final ArgumentCaptor<Status> status = ArgumentCaptor.forClass(Status.class);
+    final ArgumentCaptor<Metadata> trailers = ArgumentCaptor.forClass(Metadata.class);
+    verify(refused).close(status.capture(), trailers.capture());
+    assertThat(status.getValue().getCode(), is(Status.Code.RESOURCE_EXHAUSTED));
+    assertThat(Long.valueOf(trailers.getValue().get(AdmissionControl.RETRY_AFTER_HEADER)), allOf(greaterThanOrEqualTo(2000L), lessThanOrEqualTo(3000L)));
+    verify(admitted, never()).close(any(Status.class), any(Metadata.class));
+  }
+
+  @Test
+  public void whenOnlyTheControlReserveIsLeftBulkIsRefusedAndControlAdmitted() {
+    // given
+    admissionControl.limit(NeelaGrpc.METHOD_UPLOAD, AdmissionControl.Priority.BULK, 3);
+    admissionControl.interceptCall(call(NeelaGrpc.METHOD_DOWNLOAD), new Metadata(), mockHandler);
+    admissionControl.interceptCall(call(NeelaGrpc.METHOD_UPLOAD), new Metadata(), mockHandler);
+
+    // when
+    final ServerCall<Object, Object> upload = call(NeelaGrpc.METHOD_UPLOAD);
+    admissionControl.interceptCall(upload, new Metadata(), mockHandler);
+    final ServerCall<Object, Object> search = call(NeelaGrpc.METHOD_SEARCH);
+    admissionControl.interceptCall(search, new Metadata(), mockHandler);
+
+    // then
+    verify(upload).close(any(Status.class), any(Metadata.class));
+    verify(search, never()).close(any(Status.class), any(Metadata.class));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void whenPeerIsOverItsRateBulkCallIsNotReadyUntilItsBytesArePaidFor() {
+    // given
+    admissionControl = new AdmissionControl(3, 1, 100, 2000, 10000, 0).limit(NeelaGrpc.METHOD_DOWNLOAD, AdmissionControl.Priority.BULK, 1);
+    final ServerCall<Object, Object> call = call(NeelaGrpc.METHOD_DOWNLOAD);
+    when(call.isReady()).thenReturn(true);
+    admissionControl.interceptCall(call, new Metadata(), mockHandler);
+    verify(mockHandler).startCall(shaped.capture(), any(Metadata.class));
+
+    // when
+    final long startedAt = System.nanoTime();
+    shaped.getValue().sendMessage(DownloadResponse.newBuilder().setContent(ByteString.copyFrom(new byte[2000])).build());
+    final boolean readyAfterSending = shaped.getValue().isReady();
+    final long sendingMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+
+    // then
+    assertThat(readyAfterSending, is(false));
+    assertThat(sendingMillis, lessThan(100L));
+    verify(call).sendMessage(any());
+    verify(mockListener, timeout(2000)).onReady();
+    assertThat(shaped.getValue().isReady(), is(true));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void whenDebtIsPaidWhileListenerIsBusyOnReadyWaitsForItsCallbackToReturn() throws Exception {
+    // given
+    admissionControl = new AdmissionControl(3, 1, 100, 2000, 10000, 0).limit(NeelaGrpc.METHOD_DOWNLOAD, AdmissionControl.Priority.BULK, 1);
+    final ServerCall<Object, Object> call = call(NeelaGrpc.METHOD_DOWNLOAD);
+    when(call.isReady()).thenReturn(true);
+    final AtomicBoolean inCallback = new AtomicBoolean();
+    final AtomicBoolean overlapped = new AtomicBoolean();
+    doAnswer(invocation -> {
+      inCallback.set(true);
+      Thread.sleep(500);
+      inCallback.set(false);
+      return null;
+    }).when(mockListener).onMessage(any());
+    doAnswer(invocation -> {
+      overlapped.compareAndSet(false, inCallback.get());
+      return null;
+    }).when(mockListener).onReady();
+    final ServerCall.Listener<Object> listener = admissionControl.interceptCall(call, new Metadata(), mockHandler);
+    verify(mockHandler).startCall(shaped.capture(), any(Metadata.class));
+    shaped.getValue().sendMessage(DownloadResponse.newBuilder().setContent(ByteString.copyFrom(new byte[1000])).build());
+    assertThat(shaped.getValue().isReady(), is(false));
+
+    // when
+    listener.onMessage("request");
+
+    // then
+    verify(mockListener, timeout(2000)).onReady();
+    assertThat(overlapped.get(), is(false));
+  }
+
+  @Test
+  public void whenPeerRefusesCallItsRetryHintIsRead() {
+    // given
+    final Metadata trailers = new Metadata();
+    trailers.put(AdmissionControl.RETRY_AFTER_HEADER, "1500");
+
+    // then
+    assertThat(AdmissionControl.retryAfterMillis(new StatusRuntimeException(Status.RESOURCE_EXHAUSTED, trailers)), is(Optional.of(1500L)));
+    assertThat(AdmissionControl.retryAfterMillis(new StatusRuntimeException(Status.UNAVAILABLE, trailers)), is(Optional.empty()));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ServerCall<Object, Object> call(final MethodDescriptor<?, ?> method) {
+    final ServerCall<Object, Object> call = mock(ServerCall.class);
+    when(call.getMethodDescriptor()).thenReturn((MethodDescriptor<Object, Object>) method);
+    when(call.getAttributes()).thenReturn(Attributes.EMPTY);
+    return call;
+  }
+}
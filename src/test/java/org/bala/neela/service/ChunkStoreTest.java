@@ -0,0 +1,109 @@
+package org.bala.neela.service;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.bala.neela.grpc.Chunk;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.protobuf.ByteString;
+
+public class ChunkStoreTest {
+  /* System under test */
+  private ChunkStore chunkStore;
+
+  @Rule public ExpectedException exception = ExpectedException.none();
+  @Rule public TemporaryFolder sharedFolder = new TemporaryFolder();
+
+  private File sharedLocation;
+  private final byte[] content = new byte[1024 * 1024];
+
+  @Before
+  public void setUp() {
+    sharedLocation = sharedFolder.getRoot();
+    chunkStore = new ChunkStore(sharedLocation.getPath(), true);
+    new Random(1).nextBytes(content);
+  }
+
+  @Test
+  public void whenSharedLocationIsBlankConstructorToThrow() {
+    exception.expect(IllegalArgumentException.class);
+    chunkStore = new ChunkStore(" ", true);
+  }
+
+  @Test
+  public void whenBytesAreInsertedOnlyTheChunksAroundThemChange() throws IOException {
+    // given
+    final byte[] edited = new byte[content.length + 100];
+    System.arraycopy(content, 0, edited, 0, 500 * 1024);
+    System.arraycopy(content, 500 * 1024, edited, 500 * 1024 + 100, content.length - 500 * 1024);
+
+    // when
+    final List<ByteString> original = digests(write("v1.bin", content));
+    final List<ByteString> insertedInto = digests(write("v2.bin", edited));
+
+    // then
+    assertThat(original.size(), greaterThan(4));
+    assertThat(insertedInto.stream().filter(original::contains).count(), greaterThan(original.size() - 3L));
+  }
+
+  @Test
+  public void whenPieceIsFilledHeldChunksAreCopiedAndTheRestReturnedAsRanges() throws IOException {
+    // given
+    final List<Chunk> chunks = chunkStore.chunksOf(write("v1.bin", content).getFileName().toString()).getChunksList();
+    final Chunk unknown = chunks.get(1).toBuilder().setDigest(ByteString.copyFromUtf8("unknown")).build();
+    final List<Chunk> remote = Arrays.asList(chunks.get(0), unknown, chunks.get(2));
+    final int length = (int) (chunks.get(2).getOffset() + chunks.get(2).getLength());
+    final ByteBuffer piece = ByteBuffer.allocate(length);
+
+    // when
+    final List<Chunk> missing = chunkStore.fill(remote, 0, piece);
+
+    // then
+    assertThat(missing, contains(Chunk.newBuilder().setOffset(unknown.getOffset()).setLength(unknown.getLength()).build()));
+    assertThat(ByteString.copyFrom(piece.array(), 0, chunks.get(0).getLength()), is(ByteString.copyFrom(content, 0, chunks.get(0).getLength())));
+    assertThat(ByteString.copyFrom(piece.array(), (int) chunks.get(2).getOffset(), chunks.get(2).getLength()),
+               is(ByteString.copyFrom(content, (int) chunks.get(2).getOffset(), chunks.get(2).getLength())));
+  }
+
+  @Test
+  public void whenTransferLandsATimestampedCopyItIsDroppedButOtherDuplicatesAreKeptApart() throws IOException {
+    // given
+    final Path original = write("data.bin", content);
+    chunkStore.chunksOf("data.bin");
+
+    // when
+    final Path renamed = chunkStore.deduplicate(write("renamed.bin", content));
+    final Path refetched = chunkStore.deduplicate(write("data.bin.1480550400000", content));
+
+    // then
+    assertThat(Files.isSameFile(renamed, original), is(false));
+    assertThat(Files.readAllBytes(renamed), is(content));
+    assertThat(refetched, is(original));
+    assertThat(new File(sharedLocation, "data.bin.1480550400000").exists(), is(false));
+  }
+
+  private Path write(final String filename, final byte[] bytes) throws IOException {
+    return Files.write(new File(sharedLocation, filename).toPath(), bytes);
+  }
+
+  private static List<ByteString> digests(final Path path) throws IOException {
+    return ChunkStore.chunk(path).stream().map(Chunk::getDigest).collect(toList());
+  }
+}
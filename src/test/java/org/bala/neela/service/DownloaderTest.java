@@ -0,0 +1,260 @@
+package org.bala.neela.service;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.bala.neela.grpc.DownloadRequest;
+import org.bala.neela.grpc.DownloadResponse;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DownloaderTest {
+  private static final int CHUNK_SIZE = 1024;
+
+  /* System under test */
+  private Downloader downloader;
+
+  @Mock private SearchEngine mockSearchEngine;
+  @Mock private PeerChannelPool mockPeerChannelPool;
+  @Mock private PeerHealth mockPeerHealth;
+
+  @Rule public ExpectedException exception = ExpectedException.none();
+  @Rule public TemporaryFolder sharedFolder = new TemporaryFolder();
+
+  private File sharedLocation;
+
+  @Before
+  public void setUp() {
+    sharedLocation = sharedFolder.getRoot();
+  }
+
+  @Test
+  public void whenChunkSizeIsTooLargeConstructorToThrow() {
+    exception.expect(IllegalArgumentException.class);
+    downloader = new Downloader(sharedLocation.getPath(), Downloader.MAX_CHUNK_SIZE + 1, 1, 1, new MappedRegions(Long.MAX_VALUE, CHUNK_SIZE, 1, false), mockSearchEngine, mockPeerChannelPool, mockPeerHealth, new TransferCompression(6, 1, 0.9), new ChunkStore(sharedLocation.getPath(), true));
+  }
+
+  @Test
+  public void whenSearchEngineIsNullConstructorToThrow() {
+    exception.expect(NullPointerException.class);
+    downloader = new Downloader(sharedLocation.getPath(), CHUNK_SIZE, 1, 1, new MappedRegions(Long.MAX_VALUE, CHUNK_SIZE, 1, false), null, mockPeerChannelPool, mockPeerHealth, new TransferCompression(6, 1, 0.9), new ChunkStore(sharedLocation.getPath(), true));
+  }
+
+  @Test
+  public void whenFileSpansManyChunksItIsStreamedWhole() throws Exception {
+    // given
+    downloader = new Downloader(sharedLocation.getPath(), CHUNK_SIZE, 2, 4, new MappedRegions(Long.MAX_VALUE, CHUNK_SIZE, 1, false), mockSearchEngine, mockPeerChannelPool, mockPeerHealth, new TransferCompression(6, 1, 0.9), new ChunkStore(sharedLocation.getPath(), true));
+    final byte[] content = createSharedFile("large.bin", 10 * CHUNK_SIZE + 7);
+
+    // when
+    final ReceivingObserver observer = streamResponse("large.bin", true);
+
+    // then
+    assertThat(observer.awaitCompletion(), is(content));
+  }
+
+  @Test
+  public void whenClientCannotTakeMoreNothingIsReadUntilItCan() throws Exception {
+    // given
+    downloader = new Downloader(sharedLocation.getPath(), CHUNK_SIZE, 1, 1, new MappedRegions(Long.MAX_VALUE, CHUNK_SIZE, 1, false), mockSearchEngine, mockPeerChannelPool, mockPeerHealth, new TransferCompression(6, 1, 0.9), new ChunkStore(sharedLocation.getPath(), true));
+    final byte[] content = createSharedFile("slow.bin", 3 * CHUNK_SIZE);
+    final ReceivingObserver observer = streamResponse("slow.bin", false);
+
+    // when
+    Thread.sleep(100);
+    final int receivedWhileNotReady = observer.received.size();
+    observer.becomeReady();
+
+    // then
+    assertThat(receivedWhileNotReady, is(0));
+    assertThat(observer.awaitCompletion(), is(content));
+  }
+
+  @Test
+  public void whenDownloadsOutnumberReadBuffersAllOfThemComplete() throws Exception {
+    // given
+    downloader = new Downloader(sharedLocation.getPath(), CHUNK_SIZE, 2, 1, new MappedRegions(Long.MAX_VALUE, CHUNK_SIZE, 1, false), mockSearchEngine, mockPeerChannelPool, mockPeerHealth, new TransferCompression(6, 1, 0.9), new ChunkStore(sharedLocation.getPath(), true));
+    final List<byte[]> contents = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      contents.add(createSharedFile("file" + i + ".bin", 5 * CHUNK_SIZE + i));
+    }
+
+    // when
+    final List<ReceivingObserver> observers = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      observers.add(streamResponse("file" + i + ".bin", true));
+    }
+
+    // then
+    for (int i = 0; i < 8; i++) {
+      assertThat(observers.get(i).awaitCompletion(), is(contents.get(i)));
+    }
+  }
+
+  @Test
+  public void whenRangeIsLargeItIsStreamedFromMappedRegions() throws Exception {
+    // given
+    final MappedRegions mappedRegions = new MappedRegions(0, 3 * CHUNK_SIZE, 1, false);
+    downloader = new Downloader(sharedLocation.getPath(), CHUNK_SIZE, 1, 1, mappedRegions, mockSearchEngine, mockPeerChannelPool, mockPeerHealth, new TransferCompression(6, 1, 0.9), new ChunkStore(sharedLocation.getPath(), true));
+    final byte[] content = createSharedFile("large.bin", 10 * CHUNK_SIZE + 7);
+    final ReceivingObserver observer = streamResponse("large.bin", false);
+
+    // when
+    observer.becomeReady();
+
+    // then
+    assertThat(observer.awaitCompletion(), is(content));
+    assertThat(mappedRegions.getMappedRegions(), is(0));
+    try (final FileChannel fileChannel = FileChannel.open(new File(sharedLocation, "large.bin").toPath(), StandardOpenOption.READ)) {
+      assertThat(mappedRegions.tryLease(fileChannel, 0, CHUNK_SIZE).isPresent(), is(true));
+    }
+  }
+
+  @Test
+  public void whenNoMappedRegionIsFreeDownloadReadsThroughBuffersInstead() throws Exception {
+    // given
+    final MappedRegions mappedRegions = new MappedRegions(0, 2 * CHUNK_SIZE, 1, false);
+    downloader = new Downloader(sharedLocation.getPath(), CHUNK_SIZE, 1, 1, mappedRegions, mockSearchEngine, mockPeerChannelPool, mockPeerHealth, new TransferCompression(6, 1, 0.9), new ChunkStore(sharedLocation.getPath(), true));
+    final byte[] content = createSharedFile("large.bin", 7 * CHUNK_SIZE + 3);
+
+    try (final FileChannel fileChannel = FileChannel.open(new File(sharedLocation, "large.bin").toPath(), StandardOpenOption.READ)) {
+      final MappedRegions.Lease held = mappedRegions.tryLease(fileChannel, 0, CHUNK_SIZE).get();
+
+      // when
+      final ReceivingObserver observer = streamResponse("large.bin", true);
+
+      // then
+      assertThat(observer.awaitCompletion(), is(content));
+      assertThat(mappedRegions.tryLease(fileChannel, 0, CHUNK_SIZE).isPresent(), is(false));
+      held.close();
+      assertThat(mappedRegions.getMappedRegions(), is(0));
+    }
+  }
+
+  @Test
+  public void whenFileIsMissingDownloadFailsWithNotFound() throws Exception {
+    // given
+    downloader = new Downloader(sharedLocation.getPath(), CHUNK_SIZE, 1, 1, new MappedRegions(Long.MAX_VALUE, CHUNK_SIZE, 1, false), mockSearchEngine, mockPeerChannelPool, mockPeerHealth, new TransferCompression(6, 1, 0.9), new ChunkStore(sharedLocation.getPath(), true));
+
+    // when
+    final ReceivingObserver observer = streamResponse("missing.bin", true);
+
+    // then
+    assertThat(observer.done.await(5, TimeUnit.SECONDS), is(true));
+    assertThat(Status.fromThrowable(observer.error).getCode(), is(Status.Code.NOT_FOUND));
+  }
+
+  private byte[] createSharedFile(final String filename, final int size) throws IOException {
+    final byte[] content = new byte[size];
+    new Random(size).nextBytes(content);
+    Files.write(new File(sharedLocation, filename).toPath(), content);
+    return content;
+  }
+
+  private ReceivingObserver streamResponse(final String filename, final boolean ready) {
+    final ReceivingObserver observer = new ReceivingObserver(ready);
+    downloader.streamResponse(DownloadRequest.newBuilder().setFilename(filename).build(), observer);
+    return observer;
+  }
+
+  // Stands in for the call of a client that can take messages only while ready
+  private static final class ReceivingObserver extends ServerCallStreamObserver<DownloadResponse> {
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile boolean ready;
+    private volatile Runnable onReadyHandler;
+    private volatile Throwable error;
+
+    private ReceivingObserver(final boolean ready) {
+      this.ready = ready;
+    }
+
+    private void becomeReady() {
+      ready = true;
+      onReadyHandler.run();
+    }
+
+    private byte[] awaitCompletion() throws InterruptedException {
+      assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+      assertThat(error, is(nullValue()));
+      return received.toByteArray();
+    }
+
+    @Override
+    public synchronized void onNext(final DownloadResponse response) {
+      assertThat((long) received.size(), is(response.getOffset()));
+      assertThat(response.getLength(), is(response.getContent().size()));
+      final byte[] chunk = response.getContent().toByteArray();
+      received.write(chunk, 0, chunk.length);
+    }
+
+    @Override
+    public void onError(final Throwable t) {
+      error = t;
+      done.countDown();
+    }
+
+    @Override
+    public void onCompleted() {
+      done.countDown();
+    }
+
+    @Override
+    public boolean isReady() {
+      return ready;
+    }
+
+    @Override
+    public void setOnReadyHandler(final Runnable onReadyHandler) {
+      this.onReadyHandler = onReadyHandler;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public void setOnCancelHandler(final Runnable onCancelHandler) {
+    }
+
+    @Override
+    public void setCompression(final String compression) {
+    }
+
+    @Override
+    public void disableAutoInboundFlowControl() {
+    }
+
+    @Override
+    public void request(final int count) {
+    }
+
+    @Override
+    public void setMessageCompression(final boolean enable) {
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package org.bala.neela.service;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.regex.PatternSyntaxException;
+
+import org.bala.neela.grpc.FindRequest;
+import org.bala.neela.grpc.MatchType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class FilenamePatternTest {
+  @Rule public ExpectedException exception = ExpectedException.none();
+
+  @Test
+  public void whenUserPatternIsParsedMatchTypeIsInferred() {
+    assertThat(FilenamePattern.parse("holiday").getMatchType(), is(MatchType.SUBSTRING));
+    assertThat(FilenamePattern.parse("*.mp4").getMatchType(), is(MatchType.GLOB));
+    assertThat(FilenamePattern.parse("holiday 2016").getMatchType(), is(MatchType.KEYWORDS));
+    assertThat(FilenamePattern.parse("prefix:hol").getPattern(), is("hol"));
+    assertThat(FilenamePattern.parse("re:^a.+z$").getMatchType(), is(MatchType.REGEX));
+  }
+
+  @Test
+  public void whenPatternIsMatchedCaseIsIgnored() {
+    // given
+    final FilenamePattern glob = compile(MatchType.GLOB, "holiday*.MP4");
+    final FilenamePattern keywords = compile(MatchType.KEYWORDS, "2016 holiday");
+
+    // then
+    assertThat(glob.score("Holiday-2016.mp4").isPresent(), is(true));
+    assertThat(glob.score("Holiday-2016.mp4.part").isPresent(), is(false));
+    assertThat(keywords.score("Holiday-2016.mp4").isPresent(), is(true));
+    assertThat(keywords.score("Holiday-2017.mp4").isPresent(), is(false));
+  }
+
+  @Test
+  public void whenSeveralFilenamesMatchExactAndPrefixMatchesRankHigher() {
+    // given
+    final FilenamePattern substring = compile(MatchType.SUBSTRING, "notes.txt");
+
+    // then
+    assertThat(substring.score("notes.txt").getAsDouble(), is(greaterThan(substring.score("notes.txt.bak").getAsDouble())));
+    assertThat(substring.score("notes.txt.bak").getAsDouble(), is(greaterThan(substring.score("old-notes.txt").getAsDouble())));
+  }
+
+  @Test
+  public void whenRegexIsInvalidCompileToThrow() {
+    exception.expect(PatternSyntaxException.class);
+    compile(MatchType.REGEX, "(unclosed");
+  }
+
+  private FilenamePattern compile(final MatchType matchType, final String pattern) {
+    return FilenamePattern.compile(FindRequest.newBuilder().setMatchType(matchType).setPattern(pattern).build());
+  }
+}
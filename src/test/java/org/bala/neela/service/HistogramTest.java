@@ -0,0 +1,62 @@
+package org.bala.neela.service;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class HistogramTest {
+  /* System under test */
+  private Histogram histogram;
+
+  @Before
+  public void setUp() {
+    histogram = new Histogram();
+  }
+
+  @Test
+  public void whenNothingIsRecordedQuantilesAreZero() {
+    assertThat(histogram.valueAt(0.99), is(0L));
+    assertThat(histogram.getCount(), is(0L));
+  }
+
+  @Test
+  public void whenValuesAreSmallTheyAreCountedExactly() {
+    // given
+    for (long value = 1; value <= 100; value++) {
+      histogram.record(value);
+    }
+
+    // then
+    assertThat(histogram.valueAt(0.5), is(50L));
+    assertThat(histogram.valueAt(0.99), is(99L));
+    assertThat(histogram.valueAt(1.0), is(100L));
+    assertThat(histogram.getSum(), is(5050L));
+  }
+
+  @Test
+  public void whenValuesSpanManyMagnitudesQuantilesStayWithinTheirPrecision() {
+    // given: latencies of 1 microsecond to 10 seconds in nanoseconds
+    for (long value = 1000; value <= 10_000_000_000L; value *= 10) {
+      for (int i = 0; i < 10; i++) {
+        histogram.record(value + i * value / 10);
+      }
+    }
+
+    // then
+    assertThat((double) histogram.valueAt(0.5), closeTo(1_900_000, 1_900_000 / 64.0));
+    assertThat((double) histogram.valueAt(0.9), closeTo(11_000_000_000L, 11_000_000_000L / 64.0));
+    assertThat(histogram.valueAt(1.0), is(histogram.getMax()));
+    assertThat(histogram.getMax(), is(19_000_000_000L));
+  }
+
+  @Test
+  public void whenIndexIsTakenBackItCoversTheValue() {
+    for (long value = 0; value < 1 << 20; value += 97) {
+      final long highest = Histogram.highestEquivalent(Histogram.indexOf(value));
+      assertThat(value <= highest && highest - value <= Math.max(0, value / 64), is(true));
+    }
+  }
+}
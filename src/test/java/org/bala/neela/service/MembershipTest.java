@@ -0,0 +1,119 @@
+package org.bala.neela.service;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.bala.neela.grpc.PeerInfo;
+import org.bala.neela.grpc.PeerState;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class MembershipTest {
+  /* System under test */
+  private Membership membership;
+
+  @Rule public ExpectedException exception = ExpectedException.none();
+
+  @Before
+  public void setUp() {
+    membership = new Membership("10.0.0.1", 1, 0, 0);
+  }
+
+  @Test
+  public void whenSelfAddressIsBlankConstructorToThrow() {
+    exception.expect(IllegalArgumentException.class);
+    membership = new Membership(" ", 1, 0, 0);
+  }
+
+  @Test
+  public void whenUpdatesArriveOnlyNewerIncarnationsOrWorseStatesOverride() {
+    // given
+    membership.apply(peer("10.0.0.2", 5, PeerState.ALIVE));
+
+    // then
+    assertThat(membership.apply(peer("10.0.0.2", 4, PeerState.DEAD)), is(false));
+    assertThat(membership.apply(peer("10.0.0.2", 5, PeerState.SUSPECT)), is(true));
+    assertThat(membership.apply(peer("10.0.0.2", 5, PeerState.ALIVE)), is(false));
+    assertThat(membership.apply(peer("10.0.0.2", 6, PeerState.ALIVE)), is(true));
+    assertThat(hosts(), contains("10.0.0.1", "10.0.0.2"));
+  }
+
+  @Test
+  public void whenSelfIsSuspectedItRefutesWithAHigherIncarnation() {
+    // given
+    final long incarnation = membership.self().getIncarnation();
+
+    // when
+    membership.apply(peer("10.0.0.1", incarnation, PeerState.SUSPECT));
+
+    // then
+    assertThat(membership.self().getIncarnation(), greaterThan(incarnation));
+    assertThat(membership.nextUpdates(8), contains(membership.self()));
+  }
+
+  @Test
+  public void whenSuspicionTimesOutPeerIsDeclaredDeadAndThenRemoved() {
+    // given
+    membership.apply(peer("10.0.0.2", 1, PeerState.ALIVE));
+    membership.suspect("10.0.0.2");
+
+    // when
+    final List<String> removedFirst = membership.expire();
+    final List<String> removedNext = membership.expire();
+
+    // then
+    assertThat(removedFirst, is(empty()));
+    assertThat(removedNext, contains("10.0.0.2"));
+    assertThat(hosts(), contains("10.0.0.1"));
+    assertThat(membership.probeTargets(), is(empty()));
+  }
+
+  @Test
+  public void whenUpdatesAreGossipedTheyAreBoundedAndEventuallyDropped() {
+    // given
+    for (int i = 2; i < 12; i++) {
+      membership.apply(peer("10.0.0." + i, 1, PeerState.ALIVE));
+    }
+
+    // when
+    final List<PeerInfo> first = membership.nextUpdates(4);
+    final List<PeerInfo> second = membership.nextUpdates(4);
+    for (int i = 0; i < 10; i++) {
+      membership.nextUpdates(4);
+    }
+
+    // then
+    assertThat(first, hasSize(4));
+    assertThat(second.stream().filter(first::contains).collect(toList()), is(empty()));
+    assertThat(membership.nextUpdates(4), is(empty()));
+  }
+
+  @Test
+  public void whenPeersAreSeededTheyAreProbedButNotGossiped() {
+    // when
+    membership.seed(Arrays.asList("10.0.0.2", "10.0.0.1", "10.0.0.3"));
+
+    // then
+    assertThat(membership.probeTargets(), containsInAnyOrder("10.0.0.2", "10.0.0.3"));
+    assertThat(membership.nextUpdates(8), is(empty()));
+  }
+
+  private List<String> hosts() {
+    return membership.getPeerRegister().getKnownPeersList().stream().map(PeerInfo::getHostAddress).sorted().collect(toList());
+  }
+
+  private static PeerInfo peer(final String host, final long incarnation, final PeerState state) {
+    return PeerInfo.newBuilder().setHostAddress(host).setIncarnation(incarnation).setState(state).build();
+  }
+}
@@ -0,0 +1,74 @@
+package org.bala.neela.service;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class MetricsTest {
+  /* System under test */
+  private Metrics metrics;
+
+  @Rule public ExpectedException exception = ExpectedException.none();
+
+  @Before
+  public void setUp() {
+    metrics = new Metrics();
+  }
+
+  @Test
+  public void whenFamilyIsNotACounterIncrementToThrow() {
+    exception.expect(IllegalArgumentException.class);
+    metrics.increment(Metrics.Family.RPC_IN_FLIGHT, 1, "side", "server");
+  }
+
+  @Test
+  public void whenLabelsAreUnpairedIncrementToThrow() {
+    exception.expect(IllegalArgumentException.class);
+    metrics.increment(Metrics.Family.RPC_CALLS, 1, "side");
+  }
+
+  @Test
+  public void whenSeriesAreRecordedSnapshotIsKeyedInExpositionFormat() {
+    // given
+    metrics.increment(Metrics.Family.RPC_CALLS, 1, "side", "server", "method", "Search", "code", "OK");
+    metrics.increment(Metrics.Family.RPC_CALLS, 2, "side", "server", "method", "Search", "code", "OK");
+    metrics.adjust(Metrics.Family.RPC_IN_FLIGHT, 1, "side", "client", "method", "Download");
+    metrics.record(Metrics.Family.SEARCH_FIRST_HIT, 2_000_000);
+
+    // when
+    final Map<String, Double> snapshot = metrics.snapshot();
+
+    // then
+    assertThat(snapshot.get("neela_rpc_calls_total{side=\"server\",method=\"Search\",code=\"OK\"}"), is(3.0));
+    assertThat(snapshot.get("neela_rpc_in_flight{side=\"client\",method=\"Download\"}"), is(1.0));
+    assertThat(snapshot.get("neela_search_first_hit_seconds_count"), is(1.0));
+    assertThat(snapshot.get("neela_search_first_hit_seconds_sum"), is(0.002));
+  }
+
+  @Test
+  public void whenSummaryIsRenderedItHasQuantilesSumAndCount() {
+    // given
+    metrics.record(Metrics.Family.SEARCH_FANOUT, 3);
+
+    // when
+    final String text = new PrometheusExporter(metrics, 51163).render();
+
+    // then
+    assertThat(text.split("\n"), is(new String[] {
+      "# HELP neela_search_fanout_peers Peers asked by a search that fell back to asking every peer",
+      "# TYPE neela_search_fanout_peers summary",
+      "neela_search_fanout_peers{quantile=\"0.5\"} 3.0",
+      "neela_search_fanout_peers{quantile=\"0.9\"} 3.0",
+      "neela_search_fanout_peers{quantile=\"0.99\"} 3.0",
+      "neela_search_fanout_peers{quantile=\"0.999\"} 3.0",
+      "neela_search_fanout_peers_sum 3.0",
+      "neela_search_fanout_peers_count 1.0"
+    }));
+  }
+}
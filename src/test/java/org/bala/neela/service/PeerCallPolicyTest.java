@@ -0,0 +1,64 @@
+package org.bala.neela.service;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.bala.neela.grpc.NeelaGrpc;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class PeerCallPolicyTest {
+  /* System under test */
+  private PeerCallPolicy peerCallPolicy;
+
+  @Rule public ExpectedException exception = ExpectedException.none();
+
+  @Before
+  public void setUp() {
+    peerCallPolicy = new PeerCallPolicy(3, 500).bound(NeelaGrpc.METHOD_SEARCH, 100, 3000);
+  }
+
+  @Test
+  public void whenDeadlineBoundsAreInvertedBoundToThrow() {
+    exception.expect(IllegalArgumentException.class);
+    peerCallPolicy.bound(NeelaGrpc.METHOD_BROWSE, 3000, 100);
+  }
+
+  @Test
+  public void whenMethodHasNoBudgetNoDeadlineIsApplied() {
+    assertThat(peerCallPolicy.deadlineMillis("peer", NeelaGrpc.METHOD_DOWNLOAD), is(Optional.empty()));
+  }
+
+  @Test
+  public void whenPeerHasTooFewSamplesDefaultsApply() {
+    // given
+    record("peer", 40, 10);
+
+    // then
+    assertThat(peerCallPolicy.deadlineMillis("peer", NeelaGrpc.METHOD_SEARCH), is(Optional.of(3000L)));
+    assertThat(peerCallPolicy.hedgeDelayMillis("peer", NeelaGrpc.METHOD_SEARCH), is(500L));
+  }
+
+  @Test
+  public void whenPeerIsWarmDeadlineAndHedgeDelayFollowItsLatency() {
+    // given
+    record("fast", 40, 100);
+    record("slow", 2000, 100);
+
+    // then
+    assertThat(peerCallPolicy.deadlineMillis("fast", NeelaGrpc.METHOD_SEARCH), is(Optional.of(123L)));
+    assertThat(peerCallPolicy.hedgeDelayMillis("fast", NeelaGrpc.METHOD_SEARCH), is(41L));
+    assertThat(peerCallPolicy.deadlineMillis("slow", NeelaGrpc.METHOD_SEARCH), is(Optional.of(3000L)));
+  }
+
+  private void record(final String host, final long latencyMillis, final int count) {
+    for (int i = 0; i < count; i++) {
+      peerCallPolicy.record(host, NeelaGrpc.METHOD_SEARCH, TimeUnit.MILLISECONDS.toNanos(latencyMillis));
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package org.bala.neela.service;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.bala.neela.grpc.NeelaGrpc;
+import org.bala.neela.grpc.SearchResponse;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
+public class PeerChannelPoolTest {
+  /* System under test */
+  private PeerChannelPool peerChannelPool;
+
+  private PeerCallPolicy peerCallPolicy = new PeerCallPolicy(3, 500);
+  private PeerHealth peerHealth = new PeerHealth(3, 30000);
+  private NettyTransport transport = new NettyTransport(false, 1, 1, 0, 1 << 20, 4 << 20, 100, 0, 0);
+
+  @Rule public ExpectedException exception = ExpectedException.none();
+
+  @Test
+  public void whenPortIsInvalidConstructorToThrow() {
+    exception.expect(IllegalArgumentException.class);
+    peerChannelPool = new PeerChannelPool(80, 1, 1000, 1, peerCallPolicy, peerHealth, Collections.emptyList(), transport);
+  }
+
+  @Test
+  public void whenMaxConcurrentCallsIsNotPositiveConstructorToThrow() {
+    exception.expect(IllegalArgumentException.class);
+    peerChannelPool = new PeerChannelPool(51162, 0, 1000, 1, peerCallPolicy, peerHealth, Collections.emptyList(), transport);
+  }
+
+  @Test
+  public void whenHostIsBlankChannelForToThrow() {
+    peerChannelPool = new PeerChannelPool(51162, 1, 1000, 1, peerCallPolicy, peerHealth, Collections.emptyList(), transport);
+    exception.expect(IllegalArgumentException.class);
+    peerChannelPool.channelFor(" ");
+  }
+
+  @Test
+  public void whenPerPeerCapIsReachedNewCallIsRejected() {
+    // given
+    peerChannelPool = new PeerChannelPool(51162, 1, 1000, 1, peerCallPolicy, peerHealth, Collections.emptyList(), transport);
+    final Channel channel = peerChannelPool.channelFor("localhost");
+    channel.newCall(NeelaGrpc.METHOD_SEARCH, CallOptions.DEFAULT);
+
+    // when
+    try {
+      channel.newCall(NeelaGrpc.METHOD_SEARCH, CallOptions.DEFAULT);
+    } catch (StatusRuntimeException e) {
+      // then
+      assertThat(e.getStatus().getCode(), is(Status.Code.RESOURCE_EXHAUSTED));
+      return;
+    }
+    throw new AssertionError("Expected the second call to be rejected");
+  }
+
+  @Test
+  public void whenCallIsCancelledBeforeStartingItsPermitIsReleased() {
+    // given
+    peerChannelPool = new PeerChannelPool(51162, 1, 1000, 1, peerCallPolicy, peerHealth, Collections.emptyList(), transport);
+    final Channel channel = peerChannelPool.channelFor("localhost");
+    final ClientCall<?, ?> abandoned = channel.newCall(NeelaGrpc.METHOD_SEARCH, CallOptions.DEFAULT);
+
+    // when
+    abandoned.cancel("not needed", null);
+    final ClientCall<?, ?> next = channel.newCall(NeelaGrpc.METHOD_SEARCH, CallOptions.DEFAULT);
+
+    // then
+    assertThat(next, is(notNullValue()));
+  }
+
+  @Test
+  public void whenFirstAttemptExceedsHedgeDelayHedgedAttemptWins() throws InterruptedException, ExecutionException, TimeoutException {
+    // given
+    peerCallPolicy = new PeerCallPolicy(3, 10);
+    peerChannelPool = new PeerChannelPool(51162, 2, 1000, 1, peerCallPolicy, peerHealth, Collections.emptyList(), transport);
+    final SettableFuture<SearchResponse> slow = SettableFuture.create();
+    final SearchResponse found = SearchResponse.newBuilder().setFound(true).build();
+    final Iterator<ListenableFuture<SearchResponse>> attempts = Arrays.<ListenableFuture<SearchResponse>>asList(slow, Futures.immediateFuture(found)).iterator();
+
+    // when
+    final SearchResponse response = peerChannelPool.hedge("localhost", NeelaGrpc.METHOD_SEARCH, channel -> attempts.next()).get(5, TimeUnit.SECONDS);
+
+    // then
+    assertThat(response, is(found));
+    assertThat(slow.isCancelled(), is(true));
+  }
+}
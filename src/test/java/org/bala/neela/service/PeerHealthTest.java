@@ -0,0 +1,76 @@
+package org.bala.neela.service;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.bala.neela.grpc.NeelaGrpc;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import io.grpc.Status;
+
+public class PeerHealthTest {
+  /* System under test */
+  private PeerHealth peerHealth;
+
+  @Rule public ExpectedException exception = ExpectedException.none();
+
+  @Before
+  public void setUp() {
+    peerHealth = new PeerHealth(3, 60000);
+  }
+
+  @Test
+  public void whenDeadAfterFailuresIsNotPositiveConstructorToThrow() {
+    exception.expect(IllegalArgumentException.class);
+    peerHealth = new PeerHealth(0, 60000);
+  }
+
+  @Test
+  public void whenPeersAreRankedForSearchFasterAndHealthierPeersComeFirst() {
+    // given
+    search("slow", Status.OK, 400, 10);
+    search("fast", Status.OK, 20, 10);
+    search("flaky", Status.OK, 20, 5);
+    search("flaky", Status.DEADLINE_EXCEEDED, 20, 2);
+    search("fast", Status.CANCELLED, 20, 10);
+
+    // then
+    assertThat(peerHealth.rankForSearch(Arrays.asList("slow", "unknown", "flaky", "fast")), contains("fast", "flaky", "unknown", "slow"));
+  }
+
+  @Test
+  public void whenPeerKeepsFailingItIsDeadAndPruned() {
+    // given
+    search("dead", Status.OK, 20, 1);
+    search("dead", Status.UNAVAILABLE, 20, 3);
+    search("alive", Status.NOT_FOUND, 20, 3);
+
+    // then
+    assertThat(peerHealth.isDead("dead"), is(true));
+    assertThat(peerHealth.isDead("alive"), is(false));
+    assertThat(peerHealth.rankForSearch(Arrays.asList("dead", "alive")), contains("alive"));
+  }
+
+  @Test
+  public void whenPeersAreRankedForTransferHigherThroughputComesFirst() {
+    // given
+    peerHealth.recordTransfer("slow", 1024 * 1024, TimeUnit.SECONDS.toNanos(2));
+    peerHealth.recordTransfer("fast", 1024 * 1024, TimeUnit.MILLISECONDS.toNanos(100));
+
+    // then
+    assertThat(peerHealth.rankForTransfer(Arrays.asList("slow", "fast", "unmeasured")), contains("unmeasured", "fast", "slow"));
+  }
+
+  private void search(final String host, final Status status, final long latencyMillis, final int count) {
+    for (int i = 0; i < count; i++) {
+      peerHealth.recordCall(host, NeelaGrpc.METHOD_SEARCH, status, TimeUnit.MILLISECONDS.toNanos(latencyMillis));
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package org.bala.neela.service;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bala.neela.grpc.BrowserOutput;
+import org.bala.neela.grpc.SearchResponse;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class ResultCacheTest {
+  /* System under test */
+  private ResultCache resultCache;
+
+  private final AtomicInteger loads = new AtomicInteger();
+
+  @Rule public ExpectedException exception = ExpectedException.none();
+
+  @Before
+  public void setUp() {
+    resultCache = new ResultCache(100, 60000, 0, 60000);
+  }
+
+  @Test
+  public void whenNegativeTtlExceedsSearchTtlConstructorToThrow() {
+    exception.expect(IllegalArgumentException.class);
+    resultCache = new ResultCache(100, 1000, 2000, 1000);
+  }
+
+  @Test
+  public void whenTheSameSearchIsPendingCallersShareOneLookup() {
+    // given
+    final CompletableFuture<List<SearchResponse>> pending = new CompletableFuture<>();
+
+    // when
+    final CompletableFuture<List<SearchResponse>> first = resultCache.search("movie.mp4", key -> load(pending));
+    final CompletableFuture<List<SearchResponse>> second = resultCache.search("movie.mp4", key -> load(pending));
+    pending.complete(Collections.singletonList(holder("10.0.0.2", 1)));
+
+    // then
+    assertThat(loads.get(), is(1));
+    assertThat(first.join(), contains(holder("10.0.0.2", 1)));
+    assertThat(second.join(), contains(holder("10.0.0.2", 1)));
+  }
+
+  @Test
+  public void whenSearchFailsOrFindsNothingItIsNotServedFromCache() {
+    // given
+    final CompletableFuture<List<SearchResponse>> failed = new CompletableFuture<>();
+    failed.completeExceptionally(new RuntimeException("unavailable"));
+
+    // when
+    resultCache.search("movie.mp4", key -> load(failed));
+    resultCache.search("movie.mp4", key -> load(CompletableFuture.completedFuture(Collections.emptyList())));
+    final List<SearchResponse> holders = resultCache.search("movie.mp4", key -> load(CompletableFuture.completedFuture(Collections.singletonList(holder("10.0.0.2", 1)))))
+                                                    .join();
+
+    // then
+    assertThat(loads.get(), is(3));
+    assertThat(holders, contains(holder("10.0.0.2", 1)));
+  }
+
+  @Test
+  public void whenPeerReportsNewerIndexVersionItsCachedResultsAreDropped() {
+    // given
+    final BrowserOutput listing = BrowserOutput.newBuilder().addFilenames("movie.mp4").setIndexVersion(1).build();
+    resultCache.browse("10.0.0.2", host -> load(CompletableFuture.completedFuture(listing)));
+    resultCache.search("movie.mp4", key -> load(CompletableFuture.completedFuture(Collections.singletonList(holder("10.0.0.2", 1)))));
+
+    // when
+    final BrowserOutput cached = resultCache.browse("10.0.0.2", host -> load(CompletableFuture.completedFuture(BrowserOutput.getDefaultInstance()))).join();
+    resultCache.observe("10.0.0.2", 2);
+    resultCache.browse("10.0.0.2", host -> load(CompletableFuture.completedFuture(listing)));
+    resultCache.search("movie.mp4", key -> load(CompletableFuture.completedFuture(Collections.emptyList())));
+
+    // then
+    assertThat(cached, is(sameInstance(listing)));
+    assertThat(loads.get(), is(4));
+  }
+
+  private <V> CompletableFuture<V> load(final CompletableFuture<V> result) {
+    loads.incrementAndGet();
+    return result;
+  }
+
+  private static SearchResponse holder(final String host, final long indexVersion) {
+    return SearchResponse.newBuilder().setHostAddress(host).setFilename("movie.mp4").setFound(true).setIndexVersion(indexVersion).build();
+  }
+}
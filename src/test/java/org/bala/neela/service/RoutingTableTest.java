@@ -0,0 +1,65 @@
+package org.bala.neela.service;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RoutingTableTest {
+  /* System under test */
+  private RoutingTable routingTable;
+
+  @Mock private PeerHealth mockPeerHealth;
+
+  @Rule public ExpectedException exception = ExpectedException.none();
+
+  @Before
+  public void setUp() {
+    routingTable = new RoutingTable("10.0.0.1", 2, mockPeerHealth);
+  }
+
+  @Test
+  public void whenBucketSizeIsNotPositiveConstructorToThrow() {
+    exception.expect(IllegalArgumentException.class);
+    routingTable = new RoutingTable("10.0.0.1", 0, mockPeerHealth);
+  }
+
+  @Test
+  public void whenClosestIsAskedPeersAreOrderedByXorDistanceToTheKey() {
+    // given
+    routingTable.add("10.0.0.1");
+    routingTable.add("10.0.0.2");
+    routingTable.add("10.0.0.3");
+    routingTable.add("10.0.0.4");
+
+    // then
+    assertThat(routingTable.size(), is(3));
+    assertThat(routingTable.closest(RoutingTable.idOf("movie.mp4"), 2), contains("10.0.0.4", "10.0.0.2"));
+  }
+
+  @Test
+  public void whenBucketIsFullNewcomerOnlyReplacesADeadPeer() {
+    // given: 10.0.0.2, 10.0.0.4 and 10.0.0.5 all share the farthest bucket from 10.0.0.1
+    routingTable.add("10.0.0.2");
+    routingTable.add("10.0.0.4");
+
+    // when
+    final boolean addedWhileAlive = routingTable.add("10.0.0.5");
+    when(mockPeerHealth.isDead("10.0.0.2")).thenReturn(true);
+    final boolean addedOnceDead = routingTable.add("10.0.0.5");
+
+    // then
+    assertThat(addedWhileAlive, is(false));
+    assertThat(addedOnceDead, is(true));
+    assertThat(routingTable.closest(RoutingTable.idOf("movie.mp4"), 3), contains("10.0.0.4", "10.0.0.5"));
+  }
+}
@@ -0,0 +1,174 @@
+package org.bala.neela.service;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+import org.bala.neela.grpc.NeelaGrpc;
+import org.bala.neela.grpc.PeerInfo;
+import org.bala.neela.grpc.PeerRegister;
+import org.bala.neela.grpc.SearchRequest;
+import org.bala.neela.grpc.SearchResponse;
+import org.bala.neela.ui.UserCommand;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SearchEngineTest {
+  private static final String FILENAME = "movie.mkv";
+
+  /* System under test */
+  private SearchEngine searchEngine;
+
+  @Mock private SharedIndex mockSharedIndex;
+  @Mock private BootStrapper mockBootStrapper;
+  @Mock private Dht mockDht;
+
+  private final PeerHealth peerHealth = new PeerHealth(3, 30000);
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  private final List<Server> peers = new ArrayList<>();
+  private final List<String> hosts = new ArrayList<>();
+  private final AtomicInteger calls = new AtomicInteger();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+
+  @Before
+  public void setUp() {
+    when(mockDht.lookup(anyString())).thenReturn(CompletableFuture.completedFuture(Collections.emptyList()));
+    when(mockBootStrapper.getPeerRegister()).thenAnswer(invocation -> PeerRegister.newBuilder()
+                                                                                  .addAllKnownPeers(hosts.stream()
+                                                                                                         .map(host -> PeerInfo.newBuilder().setHostAddress(host).build())
+                                                                                                         .collect(Collectors.toList()))
+                                                                                  .build());
+  }
+
+  @After
+  public void tearDown() {
+    peers.forEach(Server::shutdownNow);
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void whenPeersOutnumberSearchParallelismOnlyThatManyAreAskedAtOnce() throws Exception {
+    // given
+    searchEngine = newSearchEngine(new PeerCallPolicy(3, 10000), 2, 64);
+    for (int i = 0; i < 6; i++) {
+      startPeer("peer-" + i, answerAfter(50, false));
+    }
+
+    // when
+    final List<SearchResponse> holders = searchEngine.searchAll(FILENAME).get(5, TimeUnit.SECONDS);
+
+    // then
+    assertThat(holders, is(empty()));
+    assertThat(calls.get(), is(6));
+    assertThat(maxInFlight.get(), is(2));
+  }
+
+  @Test
+  public void whenFirstHitArrivesCallsStillOutstandingAreCancelled() throws Exception {
+    // given
+    searchEngine = newSearchEngine(new PeerCallPolicy(3, 10000), 3, 64);
+    final CountDownLatch cancelled = new CountDownLatch(2);
+    startPeer("peer-0", answerAfter(50, true));
+    startPeer("peer-1", neverAnswer(cancelled));
+    startPeer("peer-2", neverAnswer(cancelled));
+    final CompletableFuture<SearchResponse> found = new CompletableFuture<>();
+
+    // when
+    searchEngine.search(new UserCommand("SEARCH " + FILENAME), found::complete);
+
+    // then
+    assertThat(found.get(5, TimeUnit.SECONDS).getHostAddress(), is("peer-0"));
+    assertThat(cancelled.await(5, TimeUnit.SECONDS), is(true));
+  }
+
+  @Test
+  public void whenPeerDoesNotAnswerItsDeadlineLetsTheSearchComplete() throws Exception {
+    // given
+    searchEngine = newSearchEngine(new PeerCallPolicy(3, 10000).bound(NeelaGrpc.METHOD_SEARCH, 100, 300), 2, 64);
+    final CountDownLatch cancelled = new CountDownLatch(1);
+    startPeer("peer-0", neverAnswer(cancelled));
+    startPeer("peer-1", answerAfter(0, true));
+
+    // when
+    final List<SearchResponse> holders = searchEngine.searchAll(FILENAME).get(5, TimeUnit.SECONDS);
+
+    // then
+    assertThat(holders.stream().map(SearchResponse::getHostAddress).collect(Collectors.toList()), contains("peer-1"));
+    assertThat(cancelled.await(5, TimeUnit.SECONDS), is(true));
+  }
+
+  @Test
+  public void whenPeersOutnumberFloodThresholdOnlyThatManyAreAskedOnADhtMiss() throws Exception {
+    // given
+    searchEngine = newSearchEngine(new PeerCallPolicy(3, 10000), 6, 3);
+    for (int i = 0; i < 6; i++) {
+      startPeer("peer-" + i, answerAfter(0, false));
+    }
+
+    // when
+    final List<SearchResponse> holders = searchEngine.searchAll(FILENAME).get(5, TimeUnit.SECONDS);
+
+    // then
+    assertThat(holders, is(empty()));
+    assertThat(calls.get(), is(3));
+  }
+
+  private SearchEngine newSearchEngine(final PeerCallPolicy peerCallPolicy, final int searchParallelism, final int floodThreshold) {
+    final PeerChannelPool peerChannelPool = new PeerChannelPool(51162, 64, 300000, 3, peerCallPolicy, peerHealth, Collections.emptyList(), host -> InProcessChannelBuilder.forName(host).directExecutor().build());
+    return new SearchEngine(mockSharedIndex, mockBootStrapper, peerChannelPool, peerHealth, mockDht, new ResultCache(100, 60000, 0, 30000), new Metrics(), searchParallelism, floodThreshold, 2);
+  }
+
+  private void startPeer(final String host, final BiConsumer<String, ServerCallStreamObserver<SearchResponse>> behaviour) throws IOException {
+    hosts.add(host);
+    peers.add(InProcessServerBuilder.forName(host).directExecutor().addService(new NeelaGrpc.NeelaImplBase() {
+      @Override
+      public void search(final SearchRequest searchRequest, final StreamObserver<SearchResponse> responseObserver) {
+        calls.incrementAndGet();
+        behaviour.accept(host, (ServerCallStreamObserver<SearchResponse>) responseObserver);
+      }
+    }).build().start());
+  }
+
+  private BiConsumer<String, ServerCallStreamObserver<SearchResponse>> answerAfter(final long millis, final boolean found) {
+    return (host, responseObserver) -> {
+      maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+      scheduler.schedule(() -> {
+        inFlight.decrementAndGet();
+        responseObserver.onNext(SearchResponse.newBuilder().setHostAddress(host).setFilename(FILENAME).setFound(found).build());
+        responseObserver.onCompleted();
+      }, millis, TimeUnit.MILLISECONDS);
+    };
+  }
+
+  private static BiConsumer<String, ServerCallStreamObserver<SearchResponse>> neverAnswer(final CountDownLatch cancelled) {
+    return (host, responseObserver) -> responseObserver.setOnCancelHandler(cancelled::countDown);
+  }
+}
@@ -0,0 +1,206 @@
+package org.bala.neela.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bala.neela.grpc.ChunkList;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Strings;
+
+public class SharedIndexTest {
+  /* System under test */
+  private SharedIndex sharedIndex;
+
+  @Rule public ExpectedException exception = ExpectedException.none();
+  @Rule public TemporaryFolder sharedFolder = new TemporaryFolder();
+
+  private File sharedLocation;
+
+  @Before
+  public void setUp() {
+    sharedLocation = sharedFolder.getRoot();
+    sharedIndex = new SharedIndex(sharedLocation.getPath(), new ManifestStore(sharedLocation.getPath(), 1024), new ChunkStore(sharedLocation.getPath(), true), 2, 0, Collections.emptyList());
+  }
+
+  @Test
+  public void whenSharedLocationIsBlankConstructorToThrow() {
+    exception.expect(IllegalArgumentException.class);
+    sharedIndex = new SharedIndex(" ", new ManifestStore(sharedLocation.getPath(), 1024), new ChunkStore(sharedLocation.getPath(), true), 2, 0, Collections.emptyList());
+  }
+
+  @Test
+  public void whenSharedLocationIsScannedOnlyRegularFilesAreIndexed() throws IOException {
+    // given
+    write("b.bin", "0123456789");
+    write("a.txt", "abc");
+    new File(sharedLocation, UploadRequestObserver.PARTIAL_DIRECTORY).mkdir();
+
+    // when
+    sharedIndex.rescan();
+
+    // then
+    assertThat(sharedIndex.filenames(), contains("a.txt", "b.bin"));
+    assertThat(sharedIndex.lookup("b.bin").get().getSize(), is(10L));
+    assertThat(sharedIndex.lookup(UploadRequestObserver.PARTIAL_DIRECTORY).isPresent(), is(false));
+  }
+
+  @Test
+  public void whenFilesChangeRefreshAndRescanKeepTheIndexCurrent() throws IOException {
+    // given
+    write("a.txt", "abc");
+    write("b.bin", "0123456789");
+    sharedIndex.rescan();
+
+    // when
+    write("a.txt", "abcdef");
+    sharedIndex.refresh(new File(sharedLocation, "a.txt").toPath());
+    Files.delete(new File(sharedLocation, "b.bin").toPath());
+    sharedIndex.rescan();
+
+    // then
+    assertThat(sharedIndex.lookup("a.txt").get().getSize(), is(6L));
+    assertThat(sharedIndex.lookup("b.bin").isPresent(), is(false));
+  }
+
+  @Test
+  public void whenChangesAreAskedSinceAJournaledVersionOnlyTheLastChangeOfEachFileIsReturned() throws IOException {
+    // given
+    write("a.txt", "abc");
+    sharedIndex.rescan();
+    final long seen = sharedIndex.getVersion();
+
+    // when
+    write("b.bin", "0123456789");
+    sharedIndex.rescan();
+    Files.delete(new File(sharedLocation, "a.txt").toPath());
+    sharedIndex.rescan();
+    final SharedIndex.Changes changes = sharedIndex.changesSince(seen).get();
+
+    // then
+    assertThat(changes.getVersion(), is(sharedIndex.getVersion()));
+    assertThat(changes.getAdded(), contains("b.bin"));
+    assertThat(changes.getRemoved(), contains("a.txt"));
+    assertThat(sharedIndex.changesSince(sharedIndex.getVersion()).get().getAdded(), is(empty()));
+  }
+
+  @Test
+  public void whenVersionIsOlderThanTheJournalOrUnknownNoChangesAreReturned() throws IOException {
+    // given
+    final long initial = sharedIndex.getVersion();
+    write("a.txt", "abc");
+    write("b.bin", "0123456789");
+    write("c.txt", "c");
+
+    // when
+    sharedIndex.rescan();
+
+    // then
+    assertThat(sharedIndex.changesSince(initial), is(Optional.empty()));
+    assertThat(sharedIndex.changesSince(sharedIndex.getVersion() + 1), is(Optional.empty()));
+    assertThat(sharedIndex.changesSince(sharedIndex.getVersion() - 2).get().getAdded().size(), is(2));
+  }
+
+  @Test
+  public void whenPeerRegisterIsInTheShareItIsNotIndexed() throws IOException {
+    // given
+    final File peerRegister = new File(sharedLocation, "PeerRegister.txt");
+    sharedIndex = new SharedIndex(sharedLocation.getPath(), new ManifestStore(sharedLocation.getPath(), 1024), new ChunkStore(sharedLocation.getPath(), true), 2, 0, Collections.singletonList(peerRegister.getPath()));
+    write("a.txt", "abc");
+    write(peerRegister.getName(), "localhost");
+
+    // when
+    sharedIndex.rescan();
+
+    // then
+    assertThat(sharedIndex.filenames(), contains("a.txt"));
+    assertThat(sharedIndex.publishes(peerRegister.getName()), is(false));
+  }
+
+  @Test
+  public void whenNameReachesOutsideTheShareOrIsNotIndexedItIsNotPublished() throws IOException {
+    // given
+    final File share = sharedFolder.newFolder("share");
+    sharedIndex = new SharedIndex(share.getPath(), new ManifestStore(share.getPath(), 1024), new ChunkStore(share.getPath(), true), 2, 0, Collections.emptyList());
+    write("secret.txt", "outside the share");
+    Files.write(new File(share, "a.txt").toPath(), "abc".getBytes(UTF_8));
+
+    // when
+    sharedIndex.rescan();
+
+    // then
+    assertThat(sharedIndex.publishes("a.txt"), is(true));
+    assertThat(sharedIndex.publishes("../secret.txt"), is(false));
+    assertThat(sharedIndex.publishes(new File(sharedLocation, "secret.txt").getPath()), is(false));
+    assertThat(sharedIndex.publishes("./a.txt"), is(false));
+    assertThat(sharedIndex.publishes("missing.txt"), is(false));
+  }
+
+  @Test
+  public void whenFileKeepsChangingItIsHashedOnlyOnceItSettles() throws Exception {
+    // given
+    final ManifestStore manifestStore = spy(new ManifestStore(sharedLocation.getPath(), 1024));
+    sharedIndex = new SharedIndex(sharedLocation.getPath(), manifestStore, new ChunkStore(sharedLocation.getPath(), true), 2, 200, Collections.emptyList());
+
+    // when
+    for (int i = 1; i <= 5; i++) {
+      write("growing.bin", Strings.repeat("x", i * 100));
+      sharedIndex.refresh(new File(sharedLocation, "growing.bin").toPath());
+      Thread.sleep(10);
+    }
+    for (int wait = 0; wait < 50 && sharedIndex.lookup("growing.bin").get().getRootDigest().isEmpty(); wait++) {
+      Thread.sleep(100);
+    }
+
+    // then
+    assertThat(sharedIndex.lookup("growing.bin").get().getRootDigest().isEmpty(), is(false));
+    verify(manifestStore, times(1)).getManifest("growing.bin");
+  }
+
+  @Test
+  public void whenChunksAreAskedOfAFileNotChunkedYetTheyAreComputedOnTheHasherThread() throws Exception {
+    // given
+    final ChunkStore chunkStore = spy(new ChunkStore(sharedLocation.getPath(), true));
+    final AtomicReference<String> chunkedOn = new AtomicReference<>();
+    doAnswer(invocation -> {
+      chunkedOn.set(Thread.currentThread().getName());
+      return invocation.callRealMethod();
+    }).when(chunkStore).chunksOf("a.txt");
+    sharedIndex = new SharedIndex(sharedLocation.getPath(), new ManifestStore(sharedLocation.getPath(), 1024), chunkStore, 2, 0, Collections.emptyList());
+    write("a.txt", "abc");
+
+    // when
+    final ChunkList cold = sharedIndex.chunksOf("a.txt").get(5, TimeUnit.SECONDS);
+    final CompletableFuture<ChunkList> warm = sharedIndex.chunksOf("a.txt");
+
+    // then
+    assertThat(cold.getSize(), is(3L));
+    assertThat(chunkedOn.get(), is("shared-index-hasher"));
+    assertThat(warm.isDone(), is(true));
+    verify(chunkStore, times(1)).chunksOf("a.txt");
+  }
+
+  private void write(final String filename, final String content) throws IOException {
+    Files.write(new File(sharedLocation, filename).toPath(), content.getBytes(UTF_8));
+  }
+}
@@ -0,0 +1,200 @@
+package org.bala.neela.service;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.bala.neela.grpc.DownloadRequest;
+import org.bala.neela.grpc.DownloadResponse;
+import org.bala.neela.grpc.FileManifest;
+import org.bala.neela.grpc.ManifestRequest;
+import org.bala.neela.grpc.NeelaGrpc;
+import org.bala.neela.grpc.SearchResponse;
+import org.bala.neela.ui.UserCommand;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.google.protobuf.ByteString;
+
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SwarmDownloaderTest {
+  private static final String FILENAME = "movie.mkv";
+  private static final int PIECE_SIZE = 1024;
+  private static final int PIECES = 12;
+
+  /* System under test */
+  private SwarmDownloader swarmDownloader;
+
+  @Mock private SearchEngine mockSearchEngine;
+
+  @Rule public TemporaryFolder serverFolder = new TemporaryFolder();
+  @Rule public TemporaryFolder clientFolder = new TemporaryFolder();
+
+  private final PeerHealth peerHealth = new PeerHealth(3, 30000);
+  private final List<Server> peers = new ArrayList<>();
+  private final List<SearchResponse> holders = new ArrayList<>();
+  private final ConcurrentMap<String, List<Integer>> requested = new ConcurrentHashMap<>();
+  private ManifestStore manifestStore;
+  private byte[] content;
+
+  @Before
+  public void setUp() throws IOException {
+    content = new byte[PIECES * PIECE_SIZE - 100];
+    new Random(7).nextBytes(content);
+    Files.write(serverFolder.getRoot().toPath().resolve(FILENAME), content);
+    manifestStore = new ManifestStore(serverFolder.getRoot().getPath(), PIECE_SIZE);
+    when(mockSearchEngine.searchAll(FILENAME)).thenReturn(CompletableFuture.completedFuture(holders));
+  }
+
+  @After
+  public void tearDown() {
+    peers.forEach(Server::shutdownNow);
+  }
+
+  @Test
+  public void whenSeveralSourcesHoldTheFileEachPieceIsFetchedOnceAcrossThem() throws Exception {
+    // given
+    swarmDownloader = newSwarmDownloader(10000);
+    startPeer("peer-0", false);
+    startPeer("peer-1", false);
+    startPeer("peer-2", false);
+
+    // when
+    final String outcome = swarm();
+
+    // then
+    assertThat(outcome, containsString("complete"));
+    assertThat(downloaded(), is(content));
+    assertThat(requested.values().stream().mapToInt(List::size).sum(), is(PIECES));
+    assertThat(allRequested(), is(pieces(0, PIECES)));
+  }
+
+  @Test
+  public void whenSourceStallsItsPieceIsStolenByAnother() throws Exception {
+    // given
+    swarmDownloader = newSwarmDownloader(100);
+    startPeer("peer-0", true);
+    startPeer("peer-1", false);
+
+    // when
+    final String outcome = swarm();
+
+    // then
+    assertThat(outcome, containsString("complete"));
+    assertThat(downloaded(), is(content));
+    assertThat(requested.get("peer-1"), hasItem(requested.get("peer-0").get(0)));
+  }
+
+  @Test
+  public void whenStateSidecarRecordsVerifiedPiecesOnlyTheRestAreFetched() throws Exception {
+    // given
+    swarmDownloader = newSwarmDownloader(10000);
+    startPeer("peer-0", false);
+    final FileManifest manifest = manifestStore.getManifest(FILENAME);
+    final PartialDownload interrupted = PartialDownload.open(clientFolder.getRoot().getPath(), manifest);
+    for (int index = 0; index < PIECES / 2; index++) {
+      interrupted.writePiece(index, ByteBuffer.wrap(content, (int) ManifestStore.pieceOffset(manifest, index), ManifestStore.pieceLength(manifest, index)));
+    }
+    interrupted.close();
+
+    // when
+    final String outcome = swarm();
+
+    // then
+    assertThat(outcome, containsString("complete"));
+    assertThat(downloaded(), is(content));
+    assertThat(allRequested(), is(pieces(PIECES / 2, PIECES)));
+    assertThat(clientFolder.getRoot().toPath().resolve(UploadRequestObserver.PARTIAL_DIRECTORY).toFile().list(), is(emptyArray()));
+  }
+
+  private SwarmDownloader newSwarmDownloader(final long stealAfterMillis) {
+    final PeerChannelPool peerChannelPool = new PeerChannelPool(51162, 64, 300000, 3, new PeerCallPolicy(3, 10000), peerHealth, Collections.emptyList(), host -> InProcessChannelBuilder.forName(host).directExecutor().build());
+    return new SwarmDownloader(clientFolder.getRoot().getPath(), 8, stealAfterMillis, 3, mockSearchEngine, peerChannelPool, peerHealth,
+                               new ChunkStore(clientFolder.getRoot().getPath(), true));
+  }
+
+  private String swarm() throws Exception {
+    final CompletableFuture<String> outcome = new CompletableFuture<>();
+    swarmDownloader.download(new UserCommand("SWARM " + FILENAME), outcome::complete);
+    return outcome.get(5, TimeUnit.SECONDS);
+  }
+
+  private byte[] downloaded() throws IOException {
+    return Files.readAllBytes(new File(clientFolder.getRoot(), FILENAME).toPath());
+  }
+
+  private Set<Integer> allRequested() {
+    return requested.values().stream().flatMap(List::stream).collect(Collectors.toCollection(TreeSet::new));
+  }
+
+  private static Set<Integer> pieces(final int from, final int to) {
+    return IntStream.range(from, to).boxed().collect(Collectors.toCollection(TreeSet::new));
+  }
+
+  // A stalling peer takes piece requests and never answers them
+  private void startPeer(final String host, final boolean stalls) throws IOException {
+    holders.add(SearchResponse.newBuilder().setHostAddress(host).setFilename(FILENAME).setFound(true).setSize(content.length).build());
+    peers.add(InProcessServerBuilder.forName(host).directExecutor().addService(new NeelaGrpc.NeelaImplBase() {
+      @Override
+      public void manifest(final ManifestRequest manifestRequest, final StreamObserver<FileManifest> responseObserver) {
+        try {
+          responseObserver.onNext(manifestStore.getManifest(manifestRequest.getFilename()));
+          responseObserver.onCompleted();
+        } catch (IOException e) {
+          responseObserver.onError(Status.NOT_FOUND.withCause(e).asRuntimeException());
+        }
+      }
+
+      @Override
+      public void download(final DownloadRequest downloadRequest, final StreamObserver<DownloadResponse> responseObserver) {
+        final List<Integer> pieces = requested.computeIfAbsent(host, key -> new CopyOnWriteArrayList<>());
+        pieces.add((int) (downloadRequest.getOffset() / PIECE_SIZE));
+        if (stalls) {
+          return;
+        }
+        final int offset = (int) downloadRequest.getOffset();
+        final int length = (int) Math.min(downloadRequest.getLength(), content.length - offset);
+        responseObserver.onNext(DownloadResponse.newBuilder()
+                                                .setFilename(downloadRequest.getFilename())
+                                                .setOffset(offset)
+                                                .setLength(length)
+                                                .setContent(ByteString.copyFrom(content, offset, length))
+                                                .build());
+        responseObserver.onCompleted();
+      }
+    }).build().start());
+  }
+}
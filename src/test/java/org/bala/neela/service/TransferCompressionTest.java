@@ -0,0 +1,101 @@
+package org.bala.neela.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+import org.bala.neela.grpc.Compression;
+import org.bala.neela.grpc.DownloadResponse;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.google.common.base.Strings;
+import com.google.protobuf.ByteString;
+
+public class TransferCompressionTest {
+  /* System under test */
+  private TransferCompression transferCompression;
+
+  @Rule public ExpectedException exception = ExpectedException.none();
+
+  @Before
+  public void setUp() {
+    transferCompression = new TransferCompression(6, 1, 0.9);
+  }
+
+  @Test
+  public void whenMaxRatioIsNotBelowOneConstructorToThrow() {
+    exception.expect(IllegalArgumentException.class);
+    transferCompression = new TransferCompression(6, 1, 1);
+  }
+
+  @Test
+  public void whenLevelIsChosenItFollowsTheFileExtension() {
+    assertThat(transferCompression.levelFor("server.LOG"), is(6));
+    assertThat(transferCompression.levelFor("movie.mp4"), is(Deflater.NO_COMPRESSION));
+    assertThat(transferCompression.levelFor("disk.img"), is(1));
+    assertThat(transferCompression.levelFor("README"), is(1));
+  }
+
+  @Test
+  public void whenTextIsDeflatedItInflatesBackToTheOriginal() throws ZipException {
+    // given
+    final ByteString text = ByteString.copyFrom(Strings.repeat("2016-12-01,GET,/index.html,200\n", 1000), UTF_8);
+
+    // when
+    final Optional<ByteString> deflated;
+    try (final TransferCompression.Encoder encoder = transferCompression.encoder("access.csv", TransferCompression.ACCEPTED)) {
+      deflated = encoder.deflate(text);
+      assertThat(encoder.getSentBytes(), is((long) deflated.get().size()));
+    }
+
+    // then
+    assertThat(deflated.get().size(), lessThan(text.size() / 10));
+    assertThat(TransferCompression.contentOf(response(deflated.get(), text.size())), is(text));
+  }
+
+  @Test
+  public void whenSampleDoesNotShrinkTheRestOfTheFileIsSentRaw() {
+    // given
+    final byte[] random = new byte[64 * 1024];
+    new Random(1).nextBytes(random);
+    final ByteString text = ByteString.copyFrom(Strings.repeat("a", 64 * 1024), UTF_8);
+
+    // when
+    try (final TransferCompression.Encoder encoder = transferCompression.encoder("disk.img", TransferCompression.ACCEPTED)) {
+      final Optional<ByteString> sample = encoder.deflate(ByteString.copyFrom(random));
+      final Optional<ByteString> next = encoder.deflate(text);
+
+      // then
+      assertThat(sample.isPresent(), is(false));
+      assertThat(next.isPresent(), is(false));
+      assertThat(encoder.getSentBytes(), is(encoder.getRawBytes()));
+    }
+  }
+
+  @Test
+  public void whenPeerDoesNotAcceptCompressionContentIsSentRaw() {
+    try (final TransferCompression.Encoder encoder = transferCompression.encoder("server.log", Collections.emptyList())) {
+      assertThat(encoder.deflate(ByteString.copyFrom(Strings.repeat("a", 1024), UTF_8)).isPresent(), is(false));
+    }
+  }
+
+  @Test
+  public void whenCompressedContentIsCorruptInflatingToThrow() throws ZipException {
+    exception.expect(ZipException.class);
+    TransferCompression.contentOf(response(ByteString.copyFrom("not deflated", UTF_8), 100));
+  }
+
+  private static DownloadResponse response(final ByteString content, final int length) {
+    return DownloadResponse.newBuilder().setContent(content).setLength(length).setCompression(Compression.DEFLATE).build();
+  }
+}
@@ -0,0 +1,158 @@
+package org.bala.neela.service;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.bala.neela.grpc.Chunk;
+import org.bala.neela.grpc.UploadRequest;
+import org.bala.neela.grpc.UploadResponse;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.google.protobuf.ByteString;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+@RunWith(MockitoJUnitRunner.class)
+public class UploadRequestObserverTest {
+  private static final long SIZE = 17;
+
+  /* System under test */
+  private UploadRequestObserver uploadRequestObserver;
+
+  @Mock private StreamObserver<UploadResponse> mockResponseObserver;
+
+  @Rule public TemporaryFolder sharedFolder = new TemporaryFolder();
+
+  private File sharedLocation;
+  private ChunkStore chunkStore;
+
+  @Before
+  public void setUp() {
+    sharedLocation = sharedFolder.getRoot();
+    chunkStore = new ChunkStore(sharedLocation.getPath(), true);
+    uploadRequestObserver = new UploadRequestObserver(mockResponseObserver, sharedLocation.getPath(), 8, FsyncPolicy.ON_COMPLETE, 1, chunkStore);
+  }
+
+  @Test
+  public void whenUploadCompletesContentIsMovedIntoSharedLocation() throws IOException {
+    // when
+    uploadRequestObserver.onNext(request(0, "first chunk"));
+    uploadRequestObserver.onNext(request(11, "second"));
+    uploadRequestObserver.onNext(digest(17, "first chunksecond"));
+    uploadRequestObserver.onCompleted();
+
+    // then
+    assertThat(Files.readAllBytes(new File(sharedLocation, "sample.txt").toPath()), is("first chunksecond".getBytes(UTF_8)));
+    assertThat(partialDirectory().listFiles(), arrayWithSize(0));
+    verify(mockResponseObserver).onNext(any(UploadResponse.class));
+    verify(mockResponseObserver).onCompleted();
+  }
+
+  @Test
+  public void whenUploadIsInterruptedItResumesFromTheCheckpointedOffset() throws IOException {
+    // given
+    uploadRequestObserver.onNext(request(0, "first chunk"));
+    uploadRequestObserver.onError(new RuntimeException("connection reset"));
+    final long resumeOffset = UploadRequestObserver.resumeOffset(sharedLocation.getPath(), "sample.txt", SIZE);
+
+    // when
+    uploadRequestObserver = new UploadRequestObserver(mockResponseObserver, sharedLocation.getPath(), 8, FsyncPolicy.ON_COMPLETE, 1, new ChunkStore(sharedLocation.getPath(), true));
+    uploadRequestObserver.onNext(request(resumeOffset, "second"));
+    uploadRequestObserver.onNext(digest(17, "first chunksecond"));
+    uploadRequestObserver.onCompleted();
+
+    // then
+    assertThat(resumeOffset, is(11L));
+    assertThat(Files.readAllBytes(new File(sharedLocation, "sample.txt").toPath()), is("first chunksecond".getBytes(UTF_8)));
+    assertThat(partialDirectory().listFiles(), arrayWithSize(0));
+    verify(mockResponseObserver).onCompleted();
+  }
+
+  @Test
+  public void whenContentArrivesOutOfOrderUploadIsRejected() {
+    // when
+    uploadRequestObserver.onNext(request(0, "first chunk"));
+    uploadRequestObserver.onNext(request(42, "second"));
+
+    // then
+    assertThat(partialDirectory().listFiles(), arrayWithSize(0));
+    verify(mockResponseObserver).onError(any(Throwable.class));
+  }
+
+  @Test
+  public void whenDigestDoesNotMatchUploadIsRejected() {
+    // when
+    uploadRequestObserver.onNext(request(0, "first chunk"));
+    uploadRequestObserver.onNext(digest(11, "something else"));
+    uploadRequestObserver.onCompleted();
+
+    // then
+    assertThat(new File(sharedLocation, "sample.txt").exists(), is(false));
+    assertThat(partialDirectory().listFiles(), arrayWithSize(0));
+    verify(mockResponseObserver).onError(any(Throwable.class));
+    verify(mockResponseObserver, never()).onCompleted();
+  }
+
+  @Test
+  public void whenChunkIsReferencedItIsCopiedFromTheSharedFileHoldingIt() throws IOException {
+    // given
+    Files.write(new File(sharedLocation, "older.txt").toPath(), "first chunk".getBytes(UTF_8));
+    final Chunk reference = chunkStore.chunksOf("older.txt").getChunks(0);
+
+    // when
+    uploadRequestObserver.onNext(request(0, "").toBuilder().setReference(reference).build());
+    uploadRequestObserver.onNext(request(11, "second"));
+    uploadRequestObserver.onNext(digest(17, "first chunksecond"));
+    uploadRequestObserver.onCompleted();
+
+    // then
+    assertThat(Files.readAllBytes(new File(sharedLocation, "sample.txt").toPath()), is("first chunksecond".getBytes(UTF_8)));
+    verify(mockResponseObserver).onCompleted();
+  }
+
+  @Test
+  public void whenReferencedChunkIsNoLongerHeldUploadIsRejectedForAFullResend() {
+    // given
+    final Chunk reference = Chunk.newBuilder().setOffset(0).setLength(11).setDigest(ByteString.copyFromUtf8("unknown")).build();
+    final ArgumentCaptor<Throwable> error = ArgumentCaptor.forClass(Throwable.class);
+
+    // when
+    uploadRequestObserver.onNext(request(0, "").toBuilder().setReference(reference).build());
+
+    // then
+    assertThat(partialDirectory().listFiles(), arrayWithSize(0));
+    verify(mockResponseObserver).onError(error.capture());
+    assertThat(Status.fromThrowable(error.getValue()).getCode(), is(Status.Code.FAILED_PRECONDITION));
+    verify(mockResponseObserver, never()).onCompleted();
+  }
+
+  private File partialDirectory() {
+    return new File(sharedLocation, UploadRequestObserver.PARTIAL_DIRECTORY);
+  }
+
+  private UploadRequest request(final long offset, final String content) {
+    return UploadRequest.newBuilder().setFilename("sample.txt").setSize(SIZE).setOffset(offset).setContent(ByteString.copyFromUtf8(content)).build();
+  }
+
+  private UploadRequest digest(final long offset, final String content) {
+    final byte[] digest = ManifestStore.newDigest().digest(content.getBytes(UTF_8));
+    return UploadRequest.newBuilder().setFilename("sample.txt").setSize(SIZE).setOffset(offset).setDigest(ByteString.copyFrom(digest)).build();
+  }
+}
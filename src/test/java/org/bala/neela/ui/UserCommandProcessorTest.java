@@ -4,6 +4,7 @@ import org.bala.neela.service.BootStrapper;
 import org.bala.neela.service.Browser;
 import org.bala.neela.service.Downloader;
 import org.bala.neela.service.SearchEngine;
+import org.bala.neela.service.SwarmDownloader;
 import org.bala.neela.service.Uploader;
 import org.bala.neela.ui.UserCommandProcessor;
 import org.junit.Rule;
@@ -24,6 +25,7 @@ public class UserCommandProcessorTest {
   @Mock private Browser mockBrowser;
   @Mock private SearchEngine mockSearchEngine;
   @Mock private Downloader mockDownloader;
+  @Mock private SwarmDownloader mockSwarmDownloader;
   @Mock private Uploader mockUploader;
   
   @Rule public ExpectedException exception = ExpectedException.none(); 
@@ -31,30 +33,36 @@ public class UserCommandProcessorTest {
   @Test
   public void whenBootStrapperIsNullConstructorToThrow() {
     exception.expect(NullPointerException.class);
-    userCommandProcessor = new UserCommandProcessor(null, mockBrowser, mockSearchEngine, mockDownloader, mockUploader);
+    userCommandProcessor = new UserCommandProcessor(null, mockBrowser, mockSearchEngine, mockDownloader, mockSwarmDownloader, mockUploader);
   }
  
   @Test
   public void whenBrowserIsNullConstructorToThrow() {
     exception.expect(NullPointerException.class);
-    userCommandProcessor = new UserCommandProcessor(mockBootStrapper, null, mockSearchEngine, mockDownloader, mockUploader);
+    userCommandProcessor = new UserCommandProcessor(mockBootStrapper, null, mockSearchEngine, mockDownloader, mockSwarmDownloader, mockUploader);
   }
 
   @Test
   public void whenSearchEngineIsNullConstructorToThrow() {
     exception.expect(NullPointerException.class);
-    userCommandProcessor = new UserCommandProcessor(mockBootStrapper, mockBrowser, null, mockDownloader, mockUploader);
+    userCommandProcessor = new UserCommandProcessor(mockBootStrapper, mockBrowser, null, mockDownloader, mockSwarmDownloader, mockUploader);
   }
 
   @Test
   public void whenDownloaderIsNullConstructorToThrow() {
     exception.expect(NullPointerException.class);
-    userCommandProcessor = new UserCommandProcessor(mockBootStrapper, mockBrowser, mockSearchEngine, null, mockUploader);
+    userCommandProcessor = new UserCommandProcessor(mockBootStrapper, mockBrowser, mockSearchEngine, null, mockSwarmDownloader, mockUploader);
+  }
+
+  @Test
+  public void whenSwarmDownloaderIsNullConstructorToThrow() {
+    exception.expect(NullPointerException.class);
+    userCommandProcessor = new UserCommandProcessor(mockBootStrapper, mockBrowser, mockSearchEngine, mockDownloader, null, mockUploader);
   }
 
   @Test
   public void whenAllArgumentsAreNullConstructorToThrow() {
     exception.expect(NullPointerException.class);
-    userCommandProcessor = new UserCommandProcessor(null, null, null, null, null);
+    userCommandProcessor = new UserCommandProcessor(null, null, null, null, null, null);
   }
 }